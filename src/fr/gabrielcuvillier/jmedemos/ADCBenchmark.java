@@ -0,0 +1,157 @@
+/**
+ * ADCBenchmark.java
+ * This file is part of RPIUIDemo
+ * Copyright 2014 Gabriel Cuvillier
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package fr.gabrielcuvillier.jmedemos;
+
+import java.io.PrintStream;
+
+/**
+ * Benchmark of RPIUI ADC configurations. <p>
+ *
+ * For each configuration, the benchmark applies it to the device (see
+ * RPIUIDevice.configureADC()), then reads all channels a given number of times,
+ * and reports: <br>
+ * - whether the board accepted the configuration <br>
+ * - the average and maximum read latency on the bus (in us) <br>
+ * - the approximate conversion time of the board (in us), that is how often a
+ *   new value is available <br>
+ * - the spread (max - min) of the values read on each channel, as a measure of
+ *   the noise <p>
+ *
+ * The benchmark may be run against the real board, or against a simulated one
+ * (see runSimulated()): the simulated conversion time and noise then depend
+ * on the number of channels and samples of each configuration, as on the real
+ * board. The configuration of the board is restored once
+ * done. The device must not be used by other threads while the benchmark
+ * runs. <p>
+ *
+ * @author Gabriel Cuvillier
+ */
+public class ADCBenchmark {
+
+    // Number of reads done before measuring each configuration
+    private static final int NUM_WARMUP_READS = 4;
+
+    // Raw value of the channels of the simulated board (about 25 degrees with
+    // the temperature sensors), and noise of its samples
+    private static final int SIMULATED_ADC_VALUE = 697;
+    private static final int SIMULATED_ADC_NOISE = 8;
+
+    // The device to benchmark, and the number of measured reads per configuration
+    private final RPIUIDevice _Device;
+    private final int _NumReads;
+
+    /** Construct an ADC benchmark.
+     * @param Device the device to benchmark
+     * @param nNumReads number of measured reads per configuration */
+    public ADCBenchmark(RPIUIDevice Device, int nNumReads) {
+        _Device = Device;
+        _NumReads = Math.max(1, nNumReads);
+    }
+
+    /** Create a set of temperature configurations, from fast and noisy (1
+     * sample per value) to slow and stable (64 samples per value) */
+    public static ADCConfiguration[] createTemperatureConfigurations() {
+        return new ADCConfiguration[] {
+            ADCConfiguration.createTemperatureConfiguration(0),
+            ADCConfiguration.createTemperatureConfiguration(2),
+            ADCConfiguration.createTemperatureConfiguration(4),
+            ADCConfiguration.createTemperatureConfiguration(ADCConfiguration.DEFAULT_SHIFT)
+        };
+    }
+
+    /** Run the benchmark against a simulated board, with noisy samples and the
+     * default conversion time (see SimulatedRPIUIBoard).
+     * @param nNumReads number of measured reads per configuration
+     * @param Configurations the ADC configurations to benchmark
+     * @param Out the stream receiving the results (one line per configuration) */
+    public static void runSimulated(int nNumReads, ADCConfiguration[] Configurations, PrintStream Out) {
+        SimulatedRPIUIBoard Board = new SimulatedRPIUIBoard();
+        for (int nChannel = 0; nChannel < ADCConfiguration.MAX_CHANNELS; nChannel++) {
+            Board.setADCValue(nChannel, SIMULATED_ADC_VALUE);
+        }
+        Board.setADCNoise(SIMULATED_ADC_NOISE);
+        RPIUIDevice Device = new RPIUIDevice(Board, RPIUIDevice.DEFAULT_I2C_CONTROLLER,
+                                             RPIUIDevice.DEFAULT_I2C_ADDRESS, false, false);
+        try {
+            Out.println("ADC benchmark on a simulated board:");
+            new ADCBenchmark(Device, nNumReads).run(Configurations, Out);
+        } finally {
+            Device.end();
+        }
+    }
+
+    /** Run the benchmark on each configuration, and print the results.
+     * @param Configurations the ADC configurations to benchmark
+     * @param Out the stream receiving the results (one line per configuration) */
+    public void run(ADCConfiguration[] Configurations, PrintStream Out) {
+        ADCConfiguration InitialConfig = _Device.readADCConfiguration();
+        try {
+            for (ADCConfiguration Config : Configurations) {
+                run(Config, Out);
+            }
+        } finally {
+            _Device.configureADC(InitialConfig);
+        }
+    }
+
+    /** Internal method benchmarking a single configuration */
+    private void run(ADCConfiguration Config, PrintStream Out) {
+        boolean bVerified = _Device.configureADC(Config);
+
+        int[] RawValues = new int[ADCConfiguration.MAX_CHANNELS];
+        for (int nRead = 0; nRead < NUM_WARMUP_READS; nRead++) {
+            _Device.readADCChannels(RawValues);
+        }
+
+        int[] MinValues = new int[ADCConfiguration.MAX_CHANNELS];
+        int[] MaxValues = new int[ADCConfiguration.MAX_CHANNELS];
+        for (int nChannel = 0; nChannel < ADCConfiguration.MAX_CHANNELS; nChannel++) {
+            MinValues[nChannel] = Integer.MAX_VALUE;
+            MaxValues[nChannel] = Integer.MIN_VALUE;
+        }
+
+        long nTotalTime = 0;
+        long nMaxTime = 0;
+        int nNumChannels = 0;
+        for (int nRead = 0; nRead < _NumReads; nRead++) {
+            long nStartTime = System.nanoTime();
+            nNumChannels = _Device.readADCChannels(RawValues);
+            long nTime = System.nanoTime() - nStartTime;
+            nTotalTime += nTime;
+            nMaxTime = Math.max(nMaxTime, nTime);
+
+            for (int nChannel = 0; nChannel < nNumChannels; nChannel++) {
+                MinValues[nChannel] = Math.min(MinValues[nChannel], RawValues[nChannel]);
+                MaxValues[nChannel] = Math.max(MaxValues[nChannel], RawValues[nChannel]);
+            }
+        }
+
+        StringBuilder Result = new StringBuilder();
+        Result.append("ADC ").append(Config)
+              .append(bVerified ? "" : " (NOT ACCEPTED)")
+              .append(": read ").append(nTotalTime / _NumReads / 1000)
+              .append(" us (max ").append(nMaxTime / 1000)
+              .append(" us), conversion ").append(Config.getConversionTime())
+              .append(" us, spread");
+        for (int nChannel = 0; nChannel < nNumChannels; nChannel++) {
+            Result.append(' ').append(MaxValues[nChannel] - MinValues[nChannel]);
+        }
+        Out.println(Result.toString());
+    }
+}
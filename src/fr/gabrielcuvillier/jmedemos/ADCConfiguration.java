@@ -0,0 +1,195 @@
+/**
+ * ADCConfiguration.java
+ * This file is part of RPIUIDemo
+ * Copyright 2014 Gabriel Cuvillier
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package fr.gabrielcuvillier.jmedemos;
+
+/**
+ * Configuration of the RPIUI analog to digital converter. <p>
+ *
+ * The RPIUI continuously scans its first "number of channels" ADC channels. Each
+ * channel is connected to an analog source (see SOURCE_* constants), and each
+ * reported value is the sum of "number of samples" conversions, shifted right by
+ * "shift" bits. <p>
+ *
+ * Using more samples reduces the noise of the values, but a new value is then
+ * available less often: see getConversionTime(). When the number of samples is
+ * 2^shift, the reported values are averaged 10 bits values, as expected by the
+ * RPIUIDevice temperature conversions. <p>
+ *
+ * A configuration is applied with RPIUIDevice.configureADC(), and the one of
+ * the board is read with RPIUIDevice.readADCConfiguration(). This class is NOT
+ * thread safe. <p>
+ *
+ * This is based on documentation from:
+ * http://www.bitwizard.nl/wiki/index.php/DIO_protocol#Using_the_analog_inputs
+ *
+ * @author Gabriel Cuvillier
+ */
+public class ADCConfiguration {
+
+    /** Internal temperature sensor, with 1.1V reference */
+    public static final int SOURCE_INTERNAL_TEMPERATURE_1V1 = 0xC7;
+    /** External temperature sensor, with 1.1V reference */
+    public static final int SOURCE_EXTERNAL_TEMPERATURE_1V1 = 0xC6;
+
+    /** Maximum number of scanned channels */
+    public static final int MAX_CHANNELS = 8;
+    /** Maximum number of samples per value */
+    public static final int MAX_SAMPLES = 0xFFFF;
+    /** Maximum shift of the sum of samples */
+    public static final int MAX_SHIFT = 15;
+
+    /** Default shift of temperature configurations (64 samples per value) */
+    public static final int DEFAULT_SHIFT = 6;
+
+    // Approximate duration of a single conversion by the board (in us): 13 ADC
+    // clock cycles at 125 kHz
+    private static final int CONVERSION_TIME = 104;
+
+    // Source of each channel, number of scanned channels, number of samples
+    // per value and shift
+    private final int[] _Sources = new int[MAX_CHANNELS];
+    private int _NumChannels;
+    private int _NumSamples;
+    private int _Shift;
+
+    /** Construct an ADC configuration. Channel sources are all 0, and must be
+     * set with setSource().
+     * @param nNumChannels number of scanned channels (1 to MAX_CHANNELS)
+     * @param nNumSamples number of samples per value (1 to MAX_SAMPLES)
+     * @param nShift shift of the sum of samples (0 to MAX_SHIFT) */
+    public ADCConfiguration(int nNumChannels, int nNumSamples, int nShift) {
+        setNumChannels(nNumChannels);
+        setNumSamples(nNumSamples);
+        setShift(nShift);
+    }
+
+    /** Create the configuration of the temperature sensors: internal sensor on
+     * channel 0, external sensor on channel 1, and 2^nShift samples per value. */
+    public static ADCConfiguration createTemperatureConfiguration(int nShift) {
+        return new ADCConfiguration(RPIUIDevice.NUM_TEMPERATURE_SENSORS, 1 << nShift, nShift)
+                .setSource(0, SOURCE_INTERNAL_TEMPERATURE_1V1)
+                .setSource(1, SOURCE_EXTERNAL_TEMPERATURE_1V1);
+    }
+
+    /** Set the source of a channel (0 to MAX_CHANNELS - 1) */
+    public ADCConfiguration setSource(int nChannel, int nSource) {
+        if (nChannel < 0 || nChannel >= MAX_CHANNELS) {
+            throw new IllegalArgumentException("Invalid ADC channel: " + nChannel);
+        }
+        _Sources[nChannel] = nSource & 0xFF;
+        return this;
+    }
+
+    /** Set the number of scanned channels (1 to MAX_CHANNELS) */
+    public final ADCConfiguration setNumChannels(int nNumChannels) {
+        if (nNumChannels < 1 || nNumChannels > MAX_CHANNELS) {
+            throw new IllegalArgumentException("Invalid number of ADC channels: " + nNumChannels);
+        }
+        _NumChannels = nNumChannels;
+        return this;
+    }
+
+    /** Set the number of samples per value (1 to MAX_SAMPLES) */
+    public final ADCConfiguration setNumSamples(int nNumSamples) {
+        if (nNumSamples < 1 || nNumSamples > MAX_SAMPLES) {
+            throw new IllegalArgumentException("Invalid number of ADC samples: " + nNumSamples);
+        }
+        _NumSamples = nNumSamples;
+        return this;
+    }
+
+    /** Set the shift of the sum of samples (0 to MAX_SHIFT) */
+    public final ADCConfiguration setShift(int nShift) {
+        if (nShift < 0 || nShift > MAX_SHIFT) {
+            throw new IllegalArgumentException("Invalid ADC shift: " + nShift);
+        }
+        _Shift = nShift;
+        return this;
+    }
+
+    /** Get the source of a channel */
+    public int getSource(int nChannel) {
+        return _Sources[nChannel];
+    }
+
+    /** Get the number of scanned channels */
+    public int getNumChannels() {
+        return _NumChannels;
+    }
+
+    /** Get the number of samples per value */
+    public int getNumSamples() {
+        return _NumSamples;
+    }
+
+    /** Get the shift of the sum of samples */
+    public int getShift() {
+        return _Shift;
+    }
+
+    /** Get the approximate time (in us) needed by the board to produce a new
+     * value of every scanned channel */
+    public int getConversionTime() {
+        return _NumChannels * _NumSamples * CONVERSION_TIME;
+    }
+
+    /** Two configurations are equal if they have the same number of channels,
+     * samples and shift, and the same sources for the scanned channels. */
+    @Override
+    public boolean equals(Object Other) {
+        if (!(Other instanceof ADCConfiguration)) {
+            return false;
+        }
+        ADCConfiguration OtherConfig = (ADCConfiguration) Other;
+        if (_NumChannels != OtherConfig._NumChannels
+                || _NumSamples != OtherConfig._NumSamples
+                || _Shift != OtherConfig._Shift) {
+            return false;
+        }
+        for (int nChannel = 0; nChannel < _NumChannels; nChannel++) {
+            if (_Sources[nChannel] != OtherConfig._Sources[nChannel]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int nHash = (_NumChannels * 31 + _NumSamples) * 31 + _Shift;
+        for (int nChannel = 0; nChannel < _NumChannels; nChannel++) {
+            nHash = nHash * 31 + _Sources[nChannel];
+        }
+        return nHash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder Result = new StringBuilder();
+        Result.append(_NumChannels).append(" channels [");
+        for (int nChannel = 0; nChannel < _NumChannels; nChannel++) {
+            if (nChannel > 0) {
+                Result.append(' ');
+            }
+            Result.append(Integer.toHexString(_Sources[nChannel]));
+        }
+        Result.append("], ").append(_NumSamples).append(" samples, shift ").append(_Shift);
+        return Result.toString();
+    }
+}
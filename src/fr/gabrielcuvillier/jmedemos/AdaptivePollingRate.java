@@ -0,0 +1,171 @@
+/**
+ * AdaptivePollingRate.java
+ * This file is part of RPIUIDemo
+ * Copyright 2014 Gabriel Cuvillier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package fr.gabrielcuvillier.jmedemos;
+
+/**
+ * Adaptive polling rate for the RPIUIDevice buttons. <p>
+ * 
+ * As buttons can not be notified, they have to be polled. Polling at a fixed fast 
+ * rate wastes most I2C bus round-trips, since most of the time nobody touches the 
+ * board. This class computes when the buttons must be polled: <br>
+ * - after any activity (button press or remote event), the buttons are polled at 
+ * the fast rate (minimum interval) during the "fast window" <br>
+ * - then, each poll without press makes the interval grow by the decay factor, 
+ * up to the maximum interval. <p>
+ * 
+ * The caller is expected to call shouldPoll() after getDelayToNextPoll() (typically 
+ * from a timer rescheduled after each poll, so that it does not wake up at the 
+ * minimum interval when idle), and to poll the buttons only when it returns true. <p>
+ * 
+ * The class also measures the bus utilisation (polls done compared to polling at 
+ * the fast rate all the time) and the effective press-to-action latency. <p>
+ * 
+ * This class is thread safe. <p>
+ * 
+ * @author Gabriel Cuvillier
+ */
+public class AdaptivePollingRate {
+    
+    // Configuration (intervals and window in milliseconds, decay in percents)
+    private final int _MinInterval;
+    private final int _MaxInterval;
+    private final int _FastWindow;
+    private final int _DecayPercent;
+    
+    // Current state, and polling interval in effect at the last poll
+    private int  _CurrentInterval;
+    private long _LastPollTime;
+    private long _FastWindowEnd;
+    private int  _PollInterval;
+    
+    // Statistics
+    private final long _StartTime;
+    private long _PollCount;
+    private long _PressCount;
+    private long _TotalPressLatency;
+    
+    /** Construct an adaptive polling rate. 
+     * @param nMinInterval polling interval (in ms) after activity (1 or more)
+     * @param nMaxInterval maximum polling interval (in ms) when idle
+     * @param nFastWindow duration (in ms) of fast polling after activity
+     * @param nDecayPercent growth of the interval (in percent of the current 
+     * interval, 100 or more) for each idle poll after the fast window */
+    public AdaptivePollingRate(int nMinInterval, int nMaxInterval, int nFastWindow, 
+                               int nDecayPercent) {
+        _MinInterval = Math.max(1, nMinInterval);
+        _MaxInterval = Math.max(_MinInterval, nMaxInterval);
+        _FastWindow = nFastWindow;
+        _DecayPercent = Math.max(100, nDecayPercent);
+        
+        _StartTime = System.currentTimeMillis();
+        _CurrentInterval = _MinInterval;
+        _FastWindowEnd = _StartTime + _FastWindow;
+    }
+    
+    /** Get the minimum polling interval, in ms */
+    public int getMinInterval() {
+        return _MinInterval;
+    }
+    
+    /** Check if the buttons must be polled now. If so, the poll is accounted, 
+     * and the caller must poll the buttons then call onPollResult(). */
+    public synchronized boolean shouldPoll() {
+        long nNow = System.currentTimeMillis();
+        // Tolerate timer jitter of half the minimum interval
+        if (nNow - _LastPollTime + _MinInterval / 2 >= _CurrentInterval) {
+            _LastPollTime = nNow;
+            _PollInterval = _CurrentInterval;
+            _PollCount++;
+            return true;
+        } else {
+            return false;
+        }
+    }
+    
+    /** Get the delay until the next poll, in ms: 0 if the buttons must be 
+     * polled now. An activity reported meanwhile may shorten it. */
+    public synchronized long getDelayToNextPoll() {
+        return Math.max(0, _LastPollTime + _CurrentInterval - System.currentTimeMillis());
+    }
+    
+    /** Report the result of a poll. The actions of the detected presses may 
+     * already be done: the detection latency is computed from the polling 
+     * interval in effect when shouldPoll() returned true. 
+     * @param nPresses number of button presses detected by the poll (each one 
+     * reported with onActionDone()) */
+    public synchronized void onPollResult(int nPresses) {
+        if (nPresses > 0) {
+            // Each press happened at some point during the last interval: 
+            // on average, half of it
+            _PressCount += nPresses;
+            _TotalPressLatency += (long) nPresses * (_PollInterval / 2);
+            onActivity();
+        } else if (System.currentTimeMillis() >= _FastWindowEnd) {
+            // Idle: slow down
+            _CurrentInterval = Math.min(_MaxInterval, 
+                    Math.max(_CurrentInterval + 1, _CurrentInterval * _DecayPercent / 100));
+        } else {
+            // Still in the fast window
+        }
+    }
+    
+    /** Report the duration of the action done for a detected press, to 
+     * account it in the press-to-action latency. It must be called once for 
+     * each press counted by onPollResult(). 
+     * @param nActionDuration action duration, in ms */
+    public synchronized void onActionDone(long nActionDuration) {
+        _TotalPressLatency += nActionDuration;
+    }
+    
+    /** Report an activity (button press or remote event): go back to the fast 
+     * polling rate for the fast window duration */
+    public synchronized void onActivity() {
+        _CurrentInterval = _MinInterval;
+        _FastWindowEnd = System.currentTimeMillis() + _FastWindow;
+    }
+    
+    /** Get the current polling interval, in ms */
+    public synchronized int getCurrentInterval() {
+        return _CurrentInterval;
+    }
+    
+    /** Get the number of polls done since construction */
+    public synchronized long getPollCount() {
+        return _PollCount;
+    }
+    
+    /** Get the bus utilisation, in percent: number of polls done compared to 
+     * the number of polls at the fast rate since construction */
+    public synchronized int getBusUtilisation() {
+        long nElapsed = System.currentTimeMillis() - _StartTime;
+        long nFastPolls = nElapsed / _MinInterval + 1;
+        return (int) Math.min(100, _PollCount * 100 / nFastPolls);
+    }
+    
+    /** Get the average latency between a button press and the end of its 
+     * action, in ms. The detection latency is estimated as half the polling 
+     * interval in effect when the press was detected. */
+    public synchronized long getAveragePressLatency() {
+        if (_PressCount == 0) {
+            return 0;
+        } else {
+            return _TotalPressLatency / _PressCount;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * AllocationCheck.java
+ * This file is part of RPIUIDemo
+ * Copyright 2014 Gabriel Cuvillier
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package fr.gabrielcuvillier.jmedemos;
+
+import java.io.PrintStream;
+
+/**
+ * Allocation check of the RPIUIDevice hot paths. <p>
+ *
+ * Once constructed, the driver does not allocate any memory. This check runs
+ * each hot path many times on a device, and measures the memory allocated
+ * meanwhile (from the free memory of the runtime). The checked operations
+ * are: <br>
+ * - displayText(), of a String and of a char array <br>
+ * - displayScreen(), of two Strings and of two char arrays <br>
+ * - getPushedButton(), getButtonStates(), getTemperature(), readADCChannels()
+ *   and readAllTemperatures() <br>
+ * - clearDisplay(), after a displayText() of a full line <p>
+ *
+ * Each of them must allocate 0 bytes per operation. An operation is only
+ * reported as allocating if every measure round allocated, so that the memory
+ * accounting noise (ie. allocations of other threads) is ignored. On virtual
+ * machines allocating by blocks (ie. thread local allocation buffers), a few
+ * bytes per operation may go unnoticed if the number of operations is too low. <p>
+ *
+ * @author Gabriel Cuvillier
+ */
+public class AllocationCheck {
+
+    // Number of operations run before measuring each operation
+    private static final int NUM_WARMUP_OPERATIONS = 1000;
+
+    // Maximum number of measure rounds of each operation (the check of an
+    // operation stops at the first round without allocation)
+    private static final int NUM_ROUNDS = 5;
+
+    // Checked operations, and their names
+    private static final int OP_DISPLAY_TEXT = 0;
+    private static final int OP_DISPLAY_CHARS = 1;
+    private static final int OP_DISPLAY_SCREEN = 2;
+    private static final int OP_DISPLAY_SCREEN_CHARS = 3;
+    private static final int OP_GET_PUSHED_BUTTON = 4;
+    private static final int OP_GET_BUTTON_STATES = 5;
+    private static final int OP_GET_TEMPERATURE = 6;
+    private static final int OP_READ_ADC_CHANNELS = 7;
+    private static final int OP_READ_ALL_TEMPERATURES = 8;
+    private static final int OP_CLEAR_DISPLAY = 9;
+    private static final String[] OPERATION_NAMES = {
+        "displayText", "displayText char[]", "displayScreen", "displayScreen char[]",
+        "getPushedButton", "getButtonStates", "getTemperature", "readADCChannels",
+        "readAllTemperatures", "displayText + clearDisplay"
+    };
+
+    // Number of measured operations per round
+    private final int _NumOperations;
+
+    // The two alternated texts of the display operations (half of their
+    // characters differ), also as char arrays
+    private final String _Text1;
+    private final String _Text2;
+    private final char[] _Chars1;
+    private final char[] _Chars2;
+
+    // Results of the ADC reads
+    private final int[] _RawValues = new int[RPIUIDevice.NUM_TEMPERATURE_SENSORS];
+    private final int[] _TenthsOfDegree = new int[RPIUIDevice.NUM_TEMPERATURE_SENSORS];
+
+    // Device of the running check
+    private RPIUIDevice _Device;
+
+    /** Construct an allocation check.
+     * @param nNumOperations number of measured operations per round */
+    public AllocationCheck(int nNumOperations) {
+        _NumOperations = Math.max(1, nNumOperations);
+        _Chars1 = new char[RPIUIDevice.LCD_NUM_COLUMNS];
+        _Chars2 = new char[RPIUIDevice.LCD_NUM_COLUMNS];
+        for (int i = 0; i < RPIUIDevice.LCD_NUM_COLUMNS; i++) {
+            _Chars1[i] = (char) ('A' + i);
+            _Chars2[i] = (i % 2 == 0) ? (char) ('a' + i) : _Chars1[i];
+        }
+        _Text1 = new String(_Chars1);
+        _Text2 = new String(_Chars2);
+    }
+
+    /** Check that no operation allocates memory on a device, and print the
+     * result of each operation. The LCD content is modified.
+     * @param Device the device to check
+     * @param Out the stream receiving the results (one line per operation)
+     * @return true if no operation allocates memory */
+    public boolean run(RPIUIDevice Device, PrintStream Out) {
+        boolean bPassed = true;
+        _Device = Device;
+        try {
+            for (int nOperation = 0; nOperation < OPERATION_NAMES.length; nOperation++) {
+                for (int i = 0; i < NUM_WARMUP_OPERATIONS; i++) {
+                    runOperation(nOperation, i);
+                }
+
+                // Lowest allocation of the rounds (-1 if unknown, when a
+                // garbage collection occurred during each round)
+                long nAllocated = -1;
+                for (int nRound = 0; nRound < NUM_ROUNDS && nAllocated != 0; nRound++) {
+                    long nRoundAllocated = measureAllocation(nOperation);
+                    if (nRoundAllocated >= 0 && (nAllocated < 0 || nRoundAllocated < nAllocated)) {
+                        nAllocated = nRoundAllocated;
+                    }
+                }
+
+                if (nAllocated == 0) {
+                    Out.println("Allocation check " + OPERATION_NAMES[nOperation] + ": 0 bytes/op");
+                } else {
+                    bPassed = false;
+                    Out.println("Allocation check " + OPERATION_NAMES[nOperation] + ": "
+                                + ((nAllocated < 0) ? "?" : Long.toString(nAllocated / _NumOperations))
+                                + " bytes/op, FAILED");
+                }
+            }
+        } finally {
+            _Device = null;
+        }
+        return bPassed;
+    }
+
+    /** Internal method measuring the memory allocated by a round of an
+     * operation (in bytes), or -1 if a garbage collection occurred */
+    private long measureAllocation(int nOperation) {
+        Runtime CurrentRuntime = Runtime.getRuntime();
+        System.gc();
+        long nStartMemory = CurrentRuntime.totalMemory() - CurrentRuntime.freeMemory();
+        for (int i = 0; i < _NumOperations; i++) {
+            runOperation(nOperation, i);
+        }
+        long nAllocated = CurrentRuntime.totalMemory() - CurrentRuntime.freeMemory() - nStartMemory;
+        return (nAllocated < 0) ? -1 : nAllocated;
+    }
+
+    /** Internal method running the i-th operation of a round */
+    private void runOperation(int nOperation, int i) {
+        switch (nOperation) {
+            case OP_DISPLAY_TEXT:
+                // Alternate two texts, so that each call changes characters
+                _Device.displayText(1, (i % 2 == 0) ? _Text1 : _Text2);
+                break;
+            case OP_DISPLAY_CHARS:
+                _Device.displayText(2, (i % 2 == 0) ? _Chars1 : _Chars2, 0, RPIUIDevice.LCD_NUM_COLUMNS);
+                break;
+            case OP_DISPLAY_SCREEN:
+                _Device.displayScreen((i % 2 == 0) ? _Text1 : _Text2, _Text1);
+                break;
+            case OP_DISPLAY_SCREEN_CHARS:
+                _Device.displayScreen((i % 2 == 0) ? _Chars1 : _Chars2, _Chars1);
+                break;
+            case OP_GET_PUSHED_BUTTON:
+                _Device.getPushedButton();
+                break;
+            case OP_GET_BUTTON_STATES:
+                _Device.getButtonStates();
+                break;
+            case OP_GET_TEMPERATURE:
+                _Device.getTemperature(0);
+                break;
+            case OP_READ_ADC_CHANNELS:
+                _Device.readADCChannels(_RawValues);
+                break;
+            case OP_READ_ALL_TEMPERATURES:
+                _Device.readAllTemperatures(_RawValues, _TenthsOfDegree);
+                break;
+            case OP_CLEAR_DISPLAY:
+                _Device.displayText(1, _Text1);
+                _Device.clearDisplay();
+                break;
+            default:
+                break;
+        }
+    }
+}
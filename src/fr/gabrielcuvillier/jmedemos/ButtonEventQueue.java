@@ -0,0 +1,194 @@
+/**
+ * ButtonEventQueue.java
+ * This file is part of RPIUIDemo
+ * Copyright 2014 Gabriel Cuvillier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package fr.gabrielcuvillier.jmedemos;
+
+/**
+ * Timestamped button event queue, on top of RPIUIDevice button polling. <p>
+ * 
+ * The poller feeds the queue with the button states read from the device (see 
+ * RPIUIDevice.getButtonStates()), and the queue turns them into timestamped 
+ * events: <br>
+ * - EVENT_PRESS and EVENT_RELEASE when a button state changes. State changes 
+ * happening less than the debounce window after the previous change of the same 
+ * button are ignored. <br>
+ * - EVENT_LONG_PRESS once a button have been kept pressed for the long press 
+ * delay. <br>
+ * - EVENT_REPEAT every repeat interval after a long press, while the button is 
+ * kept pressed (if auto-repeat is enabled). <p>
+ * 
+ * Events are stored in a fixed-size ring buffer, and consumers drain them in 
+ * batches with drain(). When the ring buffer is full, new events are dropped and 
+ * counted as overflows: the poller is never blocked. <p>
+ * 
+ * The queue does not allocate memory once constructed. It is lock-free, and 
+ * supports one poller thread and one consumer thread. <p>
+ * 
+ * @author Gabriel Cuvillier
+ */
+public class ButtonEventQueue {
+    
+    /** Event type: button pressed */
+    public static final int EVENT_PRESS = 1;
+    /** Event type: button released */
+    public static final int EVENT_RELEASE = 2;
+    /** Event type: button kept pressed for the long press delay */
+    public static final int EVENT_LONG_PRESS = 3;
+    /** Event type: auto-repeat of a button kept pressed after a long press */
+    public static final int EVENT_REPEAT = 4;
+    
+    // Configuration (in ms)
+    private final int _DebounceWindow;
+    private final int _LongPressDelay;
+    private final int _RepeatInterval;
+    
+    // Ring buffer. Events are packed as (button number << 8 | event type).
+    // Capacity is a power of two, so that indices are masked. _Head is only 
+    // written by the poller, _Tail only by the consumer.
+    private final int[]  _Events;
+    private final long[] _EventTimes;
+    private final int    _IndexMask;
+    private volatile int _Head;
+    private volatile int _Tail;
+    private volatile long _OverflowCount;
+    
+    // Debounced button states (bit n - 1 for button n), and per-button timing. 
+    // Only accessed by the poller.
+    private int _StableStates;
+    private int _LongPressedStates;
+    private final long[] _LastChangeTimes = new long[RPIUIDevice.NUM_BUTTONS];
+    private final long[] _NextHoldEventTimes = new long[RPIUIDevice.NUM_BUTTONS];
+    
+    /** Construct a button event queue.
+     * @param nCapacity minimum number of events the queue can hold (rounded up 
+     * to a power of two)
+     * @param nDebounceWindow debounce window, in ms
+     * @param nLongPressDelay delay before a long press event, in ms
+     * @param nRepeatInterval interval between auto-repeat events, in ms, or 0 
+     * to disable auto-repeat */
+    public ButtonEventQueue(int nCapacity, int nDebounceWindow, int nLongPressDelay, 
+                            int nRepeatInterval) {
+        int nRoundedCapacity = 1;
+        while (nRoundedCapacity < nCapacity) {
+            nRoundedCapacity <<= 1;
+        }
+        _Events = new int[nRoundedCapacity];
+        _EventTimes = new long[nRoundedCapacity];
+        _IndexMask = nRoundedCapacity - 1;
+        
+        _DebounceWindow = nDebounceWindow;
+        _LongPressDelay = nLongPressDelay;
+        _RepeatInterval = nRepeatInterval;
+    }
+    
+    /** Feed the queue with the button states read by the poller. 
+     * Must only be called by the poller thread.
+     * @param nButtonStates mask of pushed buttons (bit n - 1 for button n)
+     * @param nTime time of the poll, in ms */
+    public void onPoll(int nButtonStates, long nTime) {
+        
+        // State changes since last poll
+        int nChanges = nButtonStates ^ _StableStates;
+        
+        for (int nButton = 1; nButton <= RPIUIDevice.NUM_BUTTONS; nButton++) {
+            int nBit = 1 << (nButton - 1);
+            int nIndex = nButton - 1;
+            
+            if ((nChanges & nBit) != 0) {
+                // Ignore bounces
+                if (nTime - _LastChangeTimes[nIndex] >= _DebounceWindow) {
+                    _LastChangeTimes[nIndex] = nTime;
+                    _StableStates ^= nBit;
+                    if ((nButtonStates & nBit) != 0) {
+                        push(nButton, EVENT_PRESS, nTime);
+                        _NextHoldEventTimes[nIndex] = nTime + _LongPressDelay;
+                    } else {
+                        push(nButton, EVENT_RELEASE, nTime);
+                        _LongPressedStates &= ~nBit;
+                    }
+                }
+            } else if ((_StableStates & nBit) != 0 && nTime >= _NextHoldEventTimes[nIndex]) {
+                // Button kept pressed: long press, then auto-repeat
+                if ((_LongPressedStates & nBit) == 0) {
+                    _LongPressedStates |= nBit;
+                    push(nButton, EVENT_LONG_PRESS, nTime);
+                } else {
+                    push(nButton, EVENT_REPEAT, nTime);
+                }
+                
+                if (_RepeatInterval > 0) {
+                    _NextHoldEventTimes[nIndex] = nTime + _RepeatInterval;
+                } else {
+                    // No more event until released
+                    _NextHoldEventTimes[nIndex] = Long.MAX_VALUE;
+                }
+            } else {
+                // No change
+            }
+        }
+    }
+    
+    /** Check if some buttons are currently pressed (after debouncing). 
+     * Must only be called by the poller thread. */
+    public boolean isAnyButtonPressed() {
+        return _StableStates != 0;
+    }
+    
+    /** Drain events from the queue. Must only be called by the consumer thread.
+     * @param Buttons array receiving the button number of each event
+     * @param Types array receiving the type of each event
+     * @param Times array receiving the time of each event, in ms
+     * @return the number of events drained, at most the length of the arrays */
+    public int drain(int[] Buttons, int[] Types, long[] Times) {
+        int nTail = _Tail;
+        int nAvailable = _Head - nTail;
+        int nCount = Math.min(nAvailable, Buttons.length);
+        
+        for (int i = 0; i < nCount; i++) {
+            int nIndex = (nTail + i) & _IndexMask;
+            int nEvent = _Events[nIndex];
+            Buttons[i] = nEvent >> 8;
+            Types[i] = nEvent & 0xFF;
+            Times[i] = _EventTimes[nIndex];
+        }
+        
+        // Free the drained slots
+        _Tail = nTail + nCount;
+        return nCount;
+    }
+    
+    /** Get the number of events dropped because the queue was full */
+    public long getOverflowCount() {
+        return _OverflowCount;
+    }
+    
+    /** Internal method adding an event to the ring buffer, or dropping it if the 
+     * buffer is full */
+    private void push(int nButton, int nType, long nTime) {
+        int nHead = _Head;
+        if (nHead - _Tail > _IndexMask) {
+            _OverflowCount++;
+        } else {
+            int nIndex = nHead & _IndexMask;
+            _Events[nIndex] = (nButton << 8) | nType;
+            _EventTimes[nIndex] = nTime;
+            // Publish the event
+            _Head = nHead + 1;
+        }
+    }
+}
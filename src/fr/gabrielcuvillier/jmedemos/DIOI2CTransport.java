@@ -0,0 +1,162 @@
+/**
+ * DIOI2CTransport.java
+ * This file is part of RPIUIDemo
+ * Copyright 2014 Gabriel Cuvillier
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package fr.gabrielcuvillier.jmedemos;
+
+import jdk.dio.DeviceManager;
+import jdk.dio.i2cbus.I2CCombinedMessage;
+import jdk.dio.i2cbus.I2CDevice;
+import jdk.dio.i2cbus.I2CDeviceConfig;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * I2C transport of a real RPIUI board, through the Device I/O API. <p>
+ *
+ * The I2C device is opened from its controller number, address and clock
+ * frequency, and opened again on reopen() or when the clock frequency changes.
+ * An already opened I2C device may be given instead (ie. a fake device): it is
+ * then never reopened. <p>
+ *
+ * This class is NOT thread safe (see I2CTransport). <p>
+ *
+ * @author Gabriel Cuvillier
+ */
+public class DIOI2CTransport implements I2CTransport {
+
+    // I2C Device identification, configuration and instance (the configuration
+    // changes with the clock frequency, and is null for a device given at
+    // construction)
+    private final int       _ControllerNumber;
+    private final int       _Address;
+    private I2CDeviceConfig _DeviceConfig;
+    private I2CDevice       _Device;
+
+    /** Construct a transport, opening the I2C device of a board.
+     * @param nControllerNumber the I2C controller number of the board
+     * @param nAddress the I2C address of the board (7 bits)
+     * @param nClockFrequency the I2C clock frequency (in Hz), or
+     * RPIUIDevice.DEFAULT_CLOCK_FREQUENCY */
+    public DIOI2CTransport(int nControllerNumber, int nAddress, int nClockFrequency) throws IOException {
+        _ControllerNumber = nControllerNumber;
+        _Address = nAddress;
+        _DeviceConfig = createDeviceConfig(nClockFrequency);
+        _Device = DeviceManager.open(_DeviceConfig);
+    }
+
+    /** Construct a transport on an already opened I2C device. The device is
+     * never reopened. */
+    public DIOI2CTransport(I2CDevice Device) {
+        _ControllerNumber = RPIUIDevice.DEFAULT_I2C_CONTROLLER;
+        _Address = RPIUIDevice.DEFAULT_I2C_ADDRESS;
+        _Device = Device;
+    }
+
+    @Override
+    public int write(ByteBuffer Message) throws IOException {
+        return _Device.write(Message);
+    }
+
+    @Override
+    public int read(ByteBuffer Result) throws IOException {
+        return _Device.read(Result);
+    }
+
+    @Override
+    public CombinedMessage createCombinedMessage() throws IOException {
+        final I2CDevice Device = _Device;
+        final I2CCombinedMessage Message = Device.getBus().createCombinedMessage();
+        return new CombinedMessage() {
+            @Override
+            public CombinedMessage appendWrite(ByteBuffer Buffer) throws IOException {
+                Message.appendWrite(Device, Buffer);
+                return this;
+            }
+
+            @Override
+            public CombinedMessage appendRead(ByteBuffer Buffer) throws IOException {
+                Message.appendRead(Device, Buffer);
+                return this;
+            }
+
+            @Override
+            public void transfer() throws IOException {
+                Message.transfer();
+            }
+        };
+    }
+
+    @Override
+    public void reopen() throws IOException {
+        if (_DeviceConfig == null) {
+            return;
+        }
+        try {
+            _Device.close();
+        } catch (IOException ex) {
+            // The device may already be faulty: ignore it
+        }
+        _Device = DeviceManager.open(_DeviceConfig);
+    }
+
+    @Override
+    public void setClockFrequency(int nClockFrequency) throws IOException {
+        if (_DeviceConfig == null) {
+            return;
+        }
+        // The current configuration is only replaced once the device is 
+        // opened with the new one
+        I2CDeviceConfig NewDeviceConfig = createDeviceConfig(nClockFrequency);
+        try {
+            _Device.close();
+        } catch (IOException ex) {
+            // The device may already be faulty: ignore it
+        }
+        boolean bOpened = false;
+        try {
+            _Device = DeviceManager.open(NewDeviceConfig);
+            _DeviceConfig = NewDeviceConfig;
+            bOpened = true;
+        } finally {
+            if (!bOpened) {
+                // Open the device again at the former frequency, so that the 
+                // transport stays usable. If this fails too, the next reopen() 
+                // will try again.
+                try {
+                    _Device = DeviceManager.open(_DeviceConfig);
+                } catch (IOException ex) {
+                    // The failure of the new frequency is reported
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        _Device.close();
+    }
+
+    /** Internal method creating the I2C device configuration of the board */
+    private I2CDeviceConfig createDeviceConfig(int nClockFrequency) {
+        return new I2CDeviceConfig.Builder()
+                .setControllerNumber(_ControllerNumber)
+                .setAddress(_Address, I2CDeviceConfig.ADDR_SIZE_7)
+                .setClockFrequency(nClockFrequency)
+                .build();
+    }
+}
@@ -0,0 +1,235 @@
+/**
+ * DriverBenchmark.java
+ * This file is part of RPIUIDemo
+ * Copyright 2014 Gabriel Cuvillier
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package fr.gabrielcuvillier.jmedemos;
+
+import java.io.PrintStream;
+
+/**
+ * Benchmark of the RPIUIDevice hot paths. <p>
+ *
+ * The driver runs against a SimulatedRPIUIBoard without latency, with an
+ * unlimited clock and without ADC conversion time, so that only the cost of
+ * the driver itself (and of the in-memory board) is measured. The benchmarked
+ * operations are: <br>
+ * - displayText(), for several text lengths and change ratios (percentage of
+ *   the characters changed from one call to the next) <br>
+ * - displayText() of a char array, and displayScreen() of two char arrays <br>
+ * - getPushedButton(), getButtonStates(), getTemperature(), readADCChannels()
+ *   and readAllTemperatures() <br>
+ * - clearDisplay(), after a displayText() of a full line (a blank LCD is not
+ *   cleared again, see RPIUIDevice.Batch.clear()) <p>
+ *
+ * Each operation is run a number of times for warmup, then measured, and the
+ * benchmark reports: <br>
+ * - the average duration of an operation (in ns) <br>
+ * - the number of bytes sent on the bus per operation, address bytes included <br>
+ * - the number of bytes allocated per operation. This is derived from the free
+ *   memory, and is approximate: some virtual machines account it by blocks, and
+ *   it is only meaningful when no garbage collection occurred during the
+ *   measure (it is reported as "?" otherwise). <p>
+ *
+ * This allows to check every driver change for throughput and allocation
+ * regressions, on the target as well as on a standard JVM. <p>
+ *
+ * @author Gabriel Cuvillier
+ */
+public class DriverBenchmark {
+
+    /** Default text lengths of the displayText() benchmarks */
+    public static final int[] DEFAULT_TEXT_LENGTHS = { 4, 8, RPIUIDevice.LCD_NUM_COLUMNS };
+    /** Default change ratios of the displayText() benchmarks (in percent) */
+    public static final int[] DEFAULT_CHANGE_RATIOS = { 0, 25, 50, 100 };
+
+    // Unlimited clock frequency of the simulated board (in Hz)
+    private static final int UNLIMITED_CLOCK_FREQUENCY = Integer.MAX_VALUE;
+
+    // Number of operations run before measuring each benchmark
+    private static final int NUM_WARMUP_OPERATIONS = 10000;
+
+    // Benchmarked operations, and their names
+    private static final int OP_DISPLAY_TEXT = 0;
+    private static final int OP_DISPLAY_CHARS = 1;
+    private static final int OP_DISPLAY_SCREEN = 2;
+    private static final int OP_GET_PUSHED_BUTTON = 3;
+    private static final int OP_GET_BUTTON_STATES = 4;
+    private static final int OP_GET_TEMPERATURE = 5;
+    private static final int OP_READ_ADC_CHANNELS = 6;
+    private static final int OP_READ_ALL_TEMPERATURES = 7;
+    private static final int OP_CLEAR_DISPLAY = 8;
+    private static final String[] OPERATION_NAMES = {
+        "displayText", "displayText char[]", "displayScreen char[]", "getPushedButton", 
+        "getButtonStates", "getTemperature", "readADCChannels", "readAllTemperatures", 
+        "displayText + clearDisplay"
+    };
+
+    // Change ratio of the texts displayed by the benchmarks of the char array
+    // operations and of clearDisplay() (in percent)
+    private static final int FULL_LINE_CHANGE_RATIO = 50;
+
+    // Number of measured operations per benchmark, and transport mode
+    private final int _NumOperations;
+    private final boolean _UseCombinedMessages;
+
+    // Board and device of the running benchmark, the two alternated texts of
+    // displayText() (also as char arrays), and the results of the ADC reads
+    private SimulatedRPIUIBoard _Board;
+    private RPIUIDevice _Device;
+    private String _Text1;
+    private String _Text2;
+    private char[] _Chars1;
+    private char[] _Chars2;
+    private final int[] _RawValues = new int[RPIUIDevice.NUM_TEMPERATURE_SENSORS];
+    private final int[] _TenthsOfDegree = new int[RPIUIDevice.NUM_TEMPERATURE_SENSORS];
+
+    /** Construct a driver benchmark.
+     * @param nNumOperations number of measured operations per benchmark
+     * @param bUseCombinedMessages true to benchmark the driver with combined
+     * messages enabled */
+    public DriverBenchmark(int nNumOperations, boolean bUseCombinedMessages) {
+        _NumOperations = Math.max(1, nNumOperations);
+        _UseCombinedMessages = bUseCombinedMessages;
+    }
+
+    /** Run all benchmarks with the default parameters, and print the results */
+    public void run(PrintStream Out) {
+        run(DEFAULT_TEXT_LENGTHS, DEFAULT_CHANGE_RATIOS, Out);
+    }
+
+    /** Run all benchmarks, and print the results.
+     * @param TextLengths text lengths of the displayText() benchmarks
+     * @param ChangeRatios change ratios of the displayText() benchmarks (in
+     * percent)
+     * @param Out the stream receiving the results (one line per benchmark) */
+    public void run(int[] TextLengths, int[] ChangeRatios, PrintStream Out) {
+        open();
+        try {
+            for (int nLength : TextLengths) {
+                for (int nChangeRatio : ChangeRatios) {
+                    setTexts(nLength, nChangeRatio);
+                    run(OP_DISPLAY_TEXT, "displayText length " + nLength
+                                         + ", change " + nChangeRatio + "%", Out);
+                }
+            }
+            setTexts(RPIUIDevice.LCD_NUM_COLUMNS, FULL_LINE_CHANGE_RATIO);
+            for (int nOperation = OP_DISPLAY_CHARS; nOperation <= OP_CLEAR_DISPLAY; nOperation++) {
+                run(nOperation, OPERATION_NAMES[nOperation], Out);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /** Internal method creating the simulated board and the device */
+    private void open() {
+        _Board = new SimulatedRPIUIBoard();
+        _Device = new RPIUIDevice(_Board, RPIUIDevice.DEFAULT_I2C_CONTROLLER,
+                                  RPIUIDevice.DEFAULT_I2C_ADDRESS, _UseCombinedMessages, false);
+        _Board.setLatency(0);
+        _Board.setADCSampleTime(0);
+        _Device.setClockFrequency(UNLIMITED_CLOCK_FREQUENCY);
+    }
+
+    /** Internal method ending the device */
+    private void close() {
+        _Device.end();
+        _Device = null;
+        _Board = null;
+    }
+
+    /** Internal method setting the two alternated texts of displayText() */
+    private void setTexts(int nLength, int nChangeRatio) {
+        _Text1 = createText(nLength, 0);
+        _Text2 = createText(nLength, nChangeRatio);
+        _Chars1 = createText(RPIUIDevice.LCD_NUM_COLUMNS, 0).toCharArray();
+        _Chars2 = createText(RPIUIDevice.LCD_NUM_COLUMNS, nChangeRatio).toCharArray();
+    }
+
+    /** Internal method benchmarking a single operation */
+    private void run(int nOperation, String Name, PrintStream Out) {
+        for (int i = 0; i < NUM_WARMUP_OPERATIONS; i++) {
+            runOperation(nOperation, i);
+        }
+
+        Runtime CurrentRuntime = Runtime.getRuntime();
+        System.gc();
+        _Board.resetCounters();
+        long nStartMemory = CurrentRuntime.totalMemory() - CurrentRuntime.freeMemory();
+        long nStartTime = System.nanoTime();
+        for (int i = 0; i < _NumOperations; i++) {
+            runOperation(nOperation, i);
+        }
+        long nTime = System.nanoTime() - nStartTime;
+        long nAllocated = CurrentRuntime.totalMemory() - CurrentRuntime.freeMemory() - nStartMemory;
+
+        // Tenths of bytes, for a one decimal display
+        long nBusBytes = _Board.getByteCount() * 10 / _NumOperations;
+        Out.println(Name + ": " + nTime / _NumOperations + " ns/op, "
+                    + nBusBytes / 10 + "." + nBusBytes % 10 + " bus bytes/op, "
+                    + ((nAllocated < 0) ? "?" : Long.toString(nAllocated / _NumOperations))
+                    + " allocated bytes/op");
+    }
+
+    /** Internal method running the i-th operation of a benchmark */
+    private void runOperation(int nOperation, int i) {
+        switch (nOperation) {
+            case OP_DISPLAY_TEXT:
+                // Texts are alternated, so that each call changes the ratio of
+                // characters
+                _Device.displayText(1, (i % 2 == 0) ? _Text1 : _Text2);
+                break;
+            case OP_DISPLAY_CHARS:
+                _Device.displayText(2, (i % 2 == 0) ? _Chars1 : _Chars2, 0, _Chars1.length);
+                break;
+            case OP_DISPLAY_SCREEN:
+                _Device.displayScreen((i % 2 == 0) ? _Chars1 : _Chars2, _Chars1);
+                break;
+            case OP_GET_PUSHED_BUTTON:
+                _Device.getPushedButton();
+                break;
+            case OP_GET_BUTTON_STATES:
+                _Device.getButtonStates();
+                break;
+            case OP_GET_TEMPERATURE:
+                _Device.getTemperature(0);
+                break;
+            case OP_READ_ADC_CHANNELS:
+                _Device.readADCChannels(_RawValues);
+                break;
+            case OP_READ_ALL_TEMPERATURES:
+                _Device.readAllTemperatures(_RawValues, _TenthsOfDegree);
+                break;
+            case OP_CLEAR_DISPLAY:
+                _Device.displayText(1, _Text1);
+                _Device.clearDisplay();
+                break;
+        }
+    }
+
+    /** Internal method creating a text of nLength characters, where
+     * nChangeRatio percent of the characters (evenly spread) differ from the
+     * text created with a 0% ratio */
+    private static String createText(int nLength, int nChangeRatio) {
+        char[] Chars = new char[nLength];
+        for (int i = 0; i < nLength; i++) {
+            boolean bChanged = (i + 1) * nChangeRatio / 100 > i * nChangeRatio / 100;
+            Chars[i] = (char) ((bChanged ? 'a' : 'A') + i % 26);
+        }
+        return new String(Chars);
+    }
+}
@@ -0,0 +1,310 @@
+/**
+ * DriverStressTest.java
+ * This file is part of RPIUIDemo
+ * Copyright 2014 Gabriel Cuvillier
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package fr.gabrielcuvillier.jmedemos;
+
+import java.io.PrintStream;
+
+/**
+ * Multi-threaded stress test of the RPIUIDevice, against a SimulatedRPIUIBoard. <p>
+ *
+ * Several threads use the same device at once, as the application threads do: <br>
+ * - one thread per LCD line, displaying texts on its line (alternately as
+ *   strings and as char arrays): as no other thread writes this line, the
+ *   board must show each text once displayed <br>
+ * - one thread pressing and releasing buttons on the board: each push must be
+ *   reported once by getPushedButtons(), as the pushed button only <br>
+ * - one thread reading the temperatures and the ADC channels: they must match
+ *   the values set on the board. From time to time, it also changes the number
+ *   of scanned channels on the board, reads the ADC configuration back, then
+ *   configures the ADC again with configureADC(): the LCD commands sent
+ *   meanwhile must not change the number of channels read <p>
+ *
+ * Once all threads are done, each LCD line of the board must show the last
+ * text displayed by its thread: a command interleaved with the ones of another
+ * thread, or a shadow display out of sync with the LCD, would show there. <p>
+ *
+ * The test is run with and without combined messages. The board has no
+ * latency and an unlimited clock, so that the threads interleave as much as
+ * possible. <p>
+ *
+ * @author Gabriel Cuvillier
+ */
+public class DriverStressTest {
+
+    // Unlimited clock frequency of the simulated board (in Hz)
+    private static final int UNLIMITED_CLOCK_FREQUENCY = Integer.MAX_VALUE;
+
+    // Number of texts displayed in turn by each line thread
+    private static final int NUM_TEXTS = 8;
+
+    // Raw values of the temperature sensors of the board (different, so that
+    // mixed up channels are detected)
+    private static final int[] ADC_VALUES = { 697, 745 };
+
+    // Number of operations between two ADC reconfigurations of the temperature
+    // thread, number of channels set on the board meanwhile, number of reads
+    // checking them, and latency of the board while the configuration is read
+    // back (in us): the LCD commands staged meanwhile by the other threads wait
+    // for the bus
+    private static final int ADC_RECONFIGURATION_PERIOD = 4;
+    private static final int ADC_RECONFIGURED_NUM_CHANNELS = RPIUIDevice.NUM_TEMPERATURE_SENSORS + 1;
+    private static final int ADC_RECONFIGURED_NUM_READS = 4;
+    private static final int ADC_RECONFIGURATION_LATENCY = 100;
+
+    // Maximum number of failures printed
+    private static final int MAX_PRINTED_FAILURES = 10;
+
+    // Kinds of stress threads
+    private static final int THREAD_LINE_1 = 0;
+    private static final int THREAD_LINE_2 = 1;
+    private static final int THREAD_BUTTONS = 2;
+    private static final int THREAD_TEMPERATURES = 3;
+    private static final int NUM_THREADS = 4;
+
+    // Number of operations per thread
+    private final int _NumOperations;
+
+    // Texts displayed by the line threads (indexed by line, then by text),
+    // also as char arrays
+    private final String[][] _Texts = new String[RPIUIDevice.LCD_NUM_LINES][NUM_TEXTS];
+    private final char[][][] _Chars = new char[RPIUIDevice.LCD_NUM_LINES][NUM_TEXTS][];
+
+    // Board, device and output stream of the running test, temperatures read
+    // before the threads are started, index of the last text displayed by
+    // each line thread, and failures of the threads (guarded by this test)
+    private SimulatedRPIUIBoard _Board;
+    private RPIUIDevice _Device;
+    private PrintStream _Out;
+    private final double[] _ExpectedTemperatures = new double[RPIUIDevice.NUM_TEMPERATURE_SENSORS];
+    private final int[] _LastTexts = new int[RPIUIDevice.LCD_NUM_LINES];
+    private int _NumFailures;
+
+    /** Construct a driver stress test.
+     * @param nNumOperations number of operations per thread */
+    public DriverStressTest(int nNumOperations) {
+        _NumOperations = Math.max(1, nNumOperations);
+        for (int nLine = 0; nLine < RPIUIDevice.LCD_NUM_LINES; nLine++) {
+            for (int nText = 0; nText < NUM_TEXTS; nText++) {
+                char[] Chars = new char[RPIUIDevice.LCD_NUM_COLUMNS];
+                for (int i = 0; i < Chars.length; i++) {
+                    Chars[i] = (char) ('A' + (nText * 7 + i * 3 + nLine * 11) % 26);
+                }
+                _Chars[nLine][nText] = Chars;
+                _Texts[nLine][nText] = new String(Chars);
+            }
+        }
+    }
+
+    /** Run the test with and without combined messages, and print the
+     * results.
+     * @param Out the stream receiving the results (one line per mode, and the
+     * first failures)
+     * @return true if the test passed in both modes */
+    public boolean run(PrintStream Out) {
+        boolean bPassed = run(false, Out);
+        return run(true, Out) && bPassed;
+    }
+
+    /** Internal method running the test in a transport mode */
+    private boolean run(boolean bUseCombinedMessages, PrintStream Out) {
+        _Board = new SimulatedRPIUIBoard();
+        for (int nChannel = 0; nChannel < ADC_VALUES.length; nChannel++) {
+            _Board.setADCValue(nChannel, ADC_VALUES[nChannel]);
+        }
+        _Device = new RPIUIDevice(_Board, RPIUIDevice.DEFAULT_I2C_CONTROLLER,
+                                  RPIUIDevice.DEFAULT_I2C_ADDRESS, bUseCombinedMessages, false);
+        _Board.setLatency(0);
+        _Board.setADCSampleTime(0);
+        _Device.setClockFrequency(UNLIMITED_CLOCK_FREQUENCY);
+        synchronized (this) {
+            _Out = Out;
+            _NumFailures = 0;
+        }
+        String Mode = bUseCombinedMessages ? "combined messages" : "separate messages";
+
+        try {
+            // Reference temperatures, read while the device is not shared
+            for (int nChannel = 0; nChannel < RPIUIDevice.NUM_TEMPERATURE_SENSORS; nChannel++) {
+                _ExpectedTemperatures[nChannel] = _Device.getTemperature(nChannel);
+            }
+
+            long nStartTime = System.currentTimeMillis();
+            Thread[] Threads = new Thread[NUM_THREADS];
+            for (int nKind = 0; nKind < NUM_THREADS; nKind++) {
+                Threads[nKind] = new Thread(new StressThread(nKind));
+                Threads[nKind].start();
+            }
+            for (Thread T : Threads) {
+                try {
+                    T.join();
+                } catch (InterruptedException ex) {
+                    fail("Interrupted while waiting for the stress threads");
+                }
+            }
+            long nDuration = System.currentTimeMillis() - nStartTime;
+
+            // Each line must show the last text of its thread
+            for (int nLine = 0; nLine < RPIUIDevice.LCD_NUM_LINES; nLine++) {
+                String Expected = _Texts[nLine][_LastTexts[nLine]];
+                String Displayed = _Board.getLine(nLine + 1);
+                if (!Displayed.equals(Expected)) {
+                    fail("LCD line " + (nLine + 1) + " shows \"" + Displayed
+                         + "\" instead of \"" + Expected + "\"");
+                }
+            }
+
+            int nNumFailures;
+            synchronized (this) {
+                nNumFailures = _NumFailures;
+            }
+            Out.println("Stress test (" + Mode + "): " + NUM_THREADS + " threads x "
+                        + _NumOperations + " operations in " + nDuration + " ms, "
+                        + ((nNumFailures == 0) ? "passed" : nNumFailures + " failures, FAILED"));
+            return nNumFailures == 0;
+        } finally {
+            _Device.end();
+            _Device = null;
+            _Board = null;
+        }
+    }
+
+    /** Internal method recording a failure, and printing it if it is among
+     * the first ones */
+    private synchronized void fail(String Message) {
+        _NumFailures++;
+        if (_NumFailures <= MAX_PRINTED_FAILURES) {
+            _Out.println("Stress test failure: " + Message);
+        }
+    }
+
+    /**
+     * Stress thread: runs the operations of its kind on the shared device. <p>
+     */
+    private class StressThread implements Runnable {
+
+        // Kind of the thread (THREAD_xxx)
+        private final int _Kind;
+
+        // Results of the ADC reads
+        private final int[] _RawValues = new int[ADCConfiguration.MAX_CHANNELS];
+
+        StressThread(int nKind) {
+            _Kind = nKind;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < _NumOperations; i++) {
+                try {
+                    if (_Kind == THREAD_LINE_1 || _Kind == THREAD_LINE_2) {
+                        displayText(_Kind, i);
+                    } else if (_Kind == THREAD_BUTTONS) {
+                        pushButton(i % RPIUIDevice.NUM_BUTTONS + 1);
+                    } else if (_Kind == THREAD_TEMPERATURES) {
+                        if (i % ADC_RECONFIGURATION_PERIOD == ADC_RECONFIGURATION_PERIOD - 1) {
+                            reconfigureADC();
+                        } else {
+                            readTemperatures();
+                        }
+                    }
+                } catch (RuntimeException ex) {
+                    fail("Thread " + _Kind + ": " + ex);
+                }
+            }
+        }
+
+        // Display the next text of a line
+        private void displayText(int nLine, int nOperation) {
+            int nText = nOperation % NUM_TEXTS;
+            if (nOperation % 2 == 0) {
+                _Device.displayText(nLine + 1, _Texts[nLine][nText]);
+            } else {
+                _Device.displayText(nLine + 1, _Chars[nLine][nText], 0, RPIUIDevice.LCD_NUM_COLUMNS);
+            }
+            String Displayed = _Board.getLine(nLine + 1);
+            if (!Displayed.equals(_Texts[nLine][nText])) {
+                fail("LCD line " + (nLine + 1) + " shows \"" + Displayed
+                     + "\" after displaying \"" + _Texts[nLine][nText] + "\"");
+            }
+            // Only read once the thread is joined
+            _LastTexts[nLine] = nText;
+        }
+
+        // Press and release a button: the push must be reported once, alone
+        private void pushButton(int nButton) {
+            _Board.pressButton(nButton);
+            int nPushedButtons = _Device.getPushedButtons();
+            if (nPushedButtons != 1 << (nButton - 1)) {
+                fail("Button " + nButton + " pushed, reported mask 0x"
+                     + Integer.toHexString(nPushedButtons));
+            }
+            _Board.releaseButton(nButton);
+            nPushedButtons = _Device.getPushedButtons();
+            if (nPushedButtons != 0) {
+                fail("Button " + nButton + " released, reported mask 0x"
+                     + Integer.toHexString(nPushedButtons));
+            }
+        }
+
+        // Change the number of channels scanned by the board, and read it back:
+        // the LCD commands of the other threads must not restore the former
+        // number. Then configure the ADC of the temperature sensors again.
+        private void reconfigureADC() {
+            _Board.setADCNumChannels(ADC_RECONFIGURED_NUM_CHANNELS);
+            _Board.setLatency(ADC_RECONFIGURATION_LATENCY);
+            try {
+                _Device.readADCConfiguration();
+            } finally {
+                _Board.setLatency(0);
+            }
+            for (int i = 0; i < ADC_RECONFIGURED_NUM_READS; i++) {
+                int nNumChannels = _Device.readADCChannels(_RawValues);
+                if (nNumChannels != ADC_RECONFIGURED_NUM_CHANNELS) {
+                    fail("ADC read " + nNumChannels + " channels instead of "
+                         + ADC_RECONFIGURED_NUM_CHANNELS + " read back from the board");
+                }
+            }
+            if (!_Device.configureADC(ADCConfiguration.createTemperatureConfiguration(ADCConfiguration.DEFAULT_SHIFT))) {
+                fail("ADC configuration of the temperature sensors not accepted");
+            }
+        }
+
+        // Read the temperatures one by one, then all ADC channels at once
+        private void readTemperatures() {
+            for (int nChannel = 0; nChannel < RPIUIDevice.NUM_TEMPERATURE_SENSORS; nChannel++) {
+                double Temperature = _Device.getTemperature(nChannel);
+                if (Temperature != _ExpectedTemperatures[nChannel]) {
+                    fail("Temperature " + nChannel + " read " + Temperature
+                         + " instead of " + _ExpectedTemperatures[nChannel]);
+                }
+            }
+            int nNumChannels = _Device.readADCChannels(_RawValues);
+            for (int nChannel = 0; nChannel < nNumChannels && nChannel < ADC_VALUES.length; nChannel++) {
+                if (_RawValues[nChannel] != ADC_VALUES[nChannel]) {
+                    fail("ADC channel " + nChannel + " read " + _RawValues[nChannel]
+                         + " instead of " + ADC_VALUES[nChannel]);
+                }
+            }
+            if (nNumChannels != RPIUIDevice.NUM_TEMPERATURE_SENSORS) {
+                fail("ADC read " + nNumChannels + " channels instead of "
+                     + RPIUIDevice.NUM_TEMPERATURE_SENSORS);
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Glyph.java
+ * This file is part of RPIUIDemo
+ * Copyright 2014 Gabriel Cuvillier
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package fr.gabrielcuvillier.jmedemos;
+
+/**
+ * Custom LCD character (glyph). <p>
+ *
+ * A glyph is a 5x8 pixels bitmap, displayed by the LCD controller from one of
+ * its user-definable character slots (see GlyphCache). Each row is given as 5
+ * bits, the leftmost pixel being the most significant bit. <p>
+ *
+ * A glyph also has a fallback ASCII character, displayed instead of it when all
+ * slots are already used by other glyphs on screen. <p>
+ *
+ * Common glyphs are predefined: degree sign, arrows, and horizontal bar graph
+ * cells. Glyphs are displayed with RPIUIDevice.displayGlyph(), or inline in text
+ * with RPIUIDevice.mapGlyph(). This class is immutable. <p>
+ *
+ * @author Gabriel Cuvillier
+ */
+public final class Glyph {
+
+    /** Number of pixel rows of a glyph */
+    public static final int NUM_ROWS = 8;
+    /** Number of pixel columns of a glyph */
+    public static final int NUM_COLUMNS = 5;
+
+    /** Degree sign */
+    public static final Glyph DEGREE = new Glyph(new int[] {
+        0b01100, 0b10010, 0b10010, 0b01100, 0b00000, 0b00000, 0b00000, 0b00000 }, 'o');
+    /** Up arrow */
+    public static final Glyph ARROW_UP = new Glyph(new int[] {
+        0b00100, 0b01110, 0b10101, 0b00100, 0b00100, 0b00100, 0b00100, 0b00000 }, '^');
+    /** Down arrow */
+    public static final Glyph ARROW_DOWN = new Glyph(new int[] {
+        0b00100, 0b00100, 0b00100, 0b00100, 0b10101, 0b01110, 0b00100, 0b00000 }, 'v');
+    /** Left arrow */
+    public static final Glyph ARROW_LEFT = new Glyph(new int[] {
+        0b00000, 0b00100, 0b01000, 0b11111, 0b01000, 0b00100, 0b00000, 0b00000 }, '<');
+    /** Right arrow */
+    public static final Glyph ARROW_RIGHT = new Glyph(new int[] {
+        0b00000, 0b00100, 0b00010, 0b11111, 0b00010, 0b00100, 0b00000, 0b00000 }, '>');
+
+    // Horizontal bar graph cells, indexed by their number of filled columns
+    private static final Glyph[] BARS = new Glyph[NUM_COLUMNS + 1];
+    static {
+        for (int nColumns = 0; nColumns <= NUM_COLUMNS; nColumns++) {
+            int nRow = (0x1F << (NUM_COLUMNS - nColumns)) & 0x1F;
+            int[] Rows = new int[NUM_ROWS];
+            for (int i = 0; i < NUM_ROWS; i++) {
+                Rows[i] = nRow;
+            }
+            BARS[nColumns] = new Glyph(Rows, 
+                    (nColumns == 0) ? ' ' : ((nColumns < NUM_COLUMNS) ? '|' : '#'));
+        }
+    }
+
+    // Pixel rows, and fallback character
+    private final byte[] _Rows = new byte[NUM_ROWS];
+    private final char   _FallbackChar;
+
+    /** Construct a glyph.
+     * @param Rows the NUM_ROWS pixel rows, 5 bits each (leftmost pixel as most
+     * significant bit)
+     * @param FallbackChar ASCII character displayed when the glyph can not be */
+    public Glyph(int[] Rows, char FallbackChar) {
+        if (Rows.length != NUM_ROWS) {
+            throw new IllegalArgumentException("Invalid number of glyph rows: " + Rows.length);
+        }
+        for (int i = 0; i < NUM_ROWS; i++) {
+            _Rows[i] = (byte) (Rows[i] & 0x1F);
+        }
+        _FallbackChar = FallbackChar;
+    }
+
+    /** Get a horizontal bar graph cell, with nColumns filled columns from the
+     * left (0 to NUM_COLUMNS, clamped). Note that an empty cell is better
+     * displayed as a blank character, which does not use a slot. */
+    public static Glyph getBar(int nColumns) {
+        return BARS[Math.max(0, Math.min(nColumns, NUM_COLUMNS))];
+    }
+
+    /** Get a pixel row (5 bits) */
+    public int getRow(int nRow) {
+        return _Rows[nRow];
+    }
+
+    /** Get the fallback ASCII character */
+    public char getFallbackChar() {
+        return _FallbackChar;
+    }
+
+    /** Two glyphs are equal if they have the same pixels (whatever their
+     * fallback character): they may share a slot. */
+    @Override
+    public boolean equals(Object Other) {
+        if (!(Other instanceof Glyph)) {
+            return false;
+        }
+        Glyph OtherGlyph = (Glyph) Other;
+        for (int i = 0; i < NUM_ROWS; i++) {
+            if (_Rows[i] != OtherGlyph._Rows[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int nHash = 0;
+        for (int i = 0; i < NUM_ROWS; i++) {
+            nHash = nHash * 31 + _Rows[i];
+        }
+        return nHash;
+    }
+}
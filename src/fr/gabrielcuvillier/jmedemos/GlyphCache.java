@@ -0,0 +1,134 @@
+/**
+ * GlyphCache.java
+ * This file is part of RPIUIDemo
+ * Copyright 2014 Gabriel Cuvillier
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package fr.gabrielcuvillier.jmedemos;
+
+/**
+ * Cache of the glyphs resident in the LCD custom character slots. <p>
+ *
+ * The LCD controller (HD44780) has NUM_SLOTS user-definable character slots
+ * (CGRAM). The cache tracks which glyph is resident in each slot, so that a
+ * glyph bitmap is only uploaded to the LCD when it is not already resident. <p>
+ *
+ * When all slots are used, the least recently used slot is evicted. Slots
+ * displayed on screen are "pinned" by the caller and never evicted, as
+ * replacing their bitmap would change the screen: the glyph fallback character
+ * is then displayed instead. <p>
+ *
+ * The cache is used by RPIUIDevice (see RPIUIDevice.getGlyphCache()), which
+ * uploads the glyphs. It keeps hit, miss, eviction and fallback counters. This
+ * class is thread safe. <p>
+ *
+ * @author Gabriel Cuvillier
+ */
+public class GlyphCache {
+
+    /** Number of custom character slots of the LCD */
+    public static final int NUM_SLOTS = 8;
+
+    // Glyph resident in each slot (null if none), and last use of each slot
+    // (value of the use counter)
+    private final Glyph[] _SlotGlyphs = new Glyph[NUM_SLOTS];
+    private final long[]  _SlotLastUse = new long[NUM_SLOTS];
+    private long _UseCounter;
+
+    // Statistics
+    private long _HitCount;
+    private long _MissCount;
+    private long _EvictionCount;
+    private long _FallbackCount;
+
+    /** Look up a glyph. If it is resident, its slot is marked as used.
+     * @return the slot of the glyph, or -1 if it is not resident */
+    synchronized int lookup(Glyph G) {
+        for (int nSlot = 0; nSlot < NUM_SLOTS; nSlot++) {
+            if (G.equals(_SlotGlyphs[nSlot])) {
+                _SlotLastUse[nSlot] = ++_UseCounter;
+                _HitCount++;
+                return nSlot;
+            }
+        }
+        _MissCount++;
+        return -1;
+    }
+
+    /** Allocate a slot to a glyph which is not resident (see lookup()): a free
+     * slot if any, otherwise the least recently used slot which is not pinned.
+     * The caller must then upload the glyph to the slot.
+     * @param nPinnedSlots mask of the slots which must not be evicted (bit n
+     * set for slot n)
+     * @return the allocated slot, or -1 if all slots are pinned (the fallback
+     * character must be displayed) */
+    synchronized int allocate(Glyph G, int nPinnedSlots) {
+        int nSelectedSlot = -1;
+        for (int nSlot = 0; nSlot < NUM_SLOTS; nSlot++) {
+            if (_SlotGlyphs[nSlot] == null) {
+                nSelectedSlot = nSlot;
+                break;
+            }
+            if ((nPinnedSlots & (1 << nSlot)) == 0 
+                    && (nSelectedSlot == -1 || _SlotLastUse[nSlot] < _SlotLastUse[nSelectedSlot])) {
+                nSelectedSlot = nSlot;
+            }
+        }
+
+        if (nSelectedSlot == -1) {
+            _FallbackCount++;
+            return -1;
+        }
+        if (_SlotGlyphs[nSelectedSlot] != null) {
+            _EvictionCount++;
+        }
+        _SlotGlyphs[nSelectedSlot] = G;
+        _SlotLastUse[nSelectedSlot] = ++_UseCounter;
+        return nSelectedSlot;
+    }
+
+    /** Forget the glyphs of some slots, when their upload did not reach the
+     * LCD (or when the LCD was reinitialized).
+     * @param nSlots mask of the slots (bit n set for slot n) */
+    synchronized void invalidate(int nSlots) {
+        for (int nSlot = 0; nSlot < NUM_SLOTS; nSlot++) {
+            if ((nSlots & (1 << nSlot)) != 0) {
+                _SlotGlyphs[nSlot] = null;
+            }
+        }
+    }
+
+    /** Get the number of glyph lookups finding the glyph resident */
+    public synchronized long getHitCount() {
+        return _HitCount;
+    }
+
+    /** Get the number of glyph lookups not finding the glyph resident (each
+     * one costs an upload, unless the fallback character is displayed) */
+    public synchronized long getMissCount() {
+        return _MissCount;
+    }
+
+    /** Get the number of resident glyphs evicted to make room for another */
+    public synchronized long getEvictionCount() {
+        return _EvictionCount;
+    }
+
+    /** Get the number of times a fallback character was displayed, as all
+     * slots were on screen */
+    public synchronized long getFallbackCount() {
+        return _FallbackCount;
+    }
+}
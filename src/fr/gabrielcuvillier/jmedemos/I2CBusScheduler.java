@@ -0,0 +1,219 @@
+/**
+ * I2CBusScheduler.java
+ * This file is part of RPIUIDemo
+ * Copyright 2014 Gabriel Cuvillier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package fr.gabrielcuvillier.jmedemos;
+
+/**
+ * Priority-aware scheduler for the I2C bus of a RPIUIDevice. <p>
+ * 
+ * The scheduler grants exclusive access to the bus, one user at a time. Users 
+ * belong to a priority class: input polling (highest priority), display writes, 
+ * and ADC sampling (lowest priority). Each bus access must be wrapped between 
+ * acquire() and release(): <br>
+ * <code>
+ * if (scheduler.acquire(I2CBusScheduler.PRIORITY_INPUT)) { <br>
+ * &nbsp;&nbsp;try { device.getPushedButton(); } finally { scheduler.release(); } <br>
+ * }
+ * </code> <p>
+ * 
+ * When the bus is released, it is granted to the oldest waiter of the highest 
+ * priority class having waiters. To prevent starvation, a waiter which have been 
+ * waiting for more than the starvation delay is served first, whatever its class. 
+ * Inside a class, waiters are served in arrival order. <p>
+ * 
+ * The queue of each class is bounded: acquire() fails immediately when the queue 
+ * of the class is full. <p>
+ * 
+ * The scheduler keeps track of the queue wait time of each class. This class is 
+ * thread safe, and does not allocate memory once constructed. <p>
+ * 
+ * @author Gabriel Cuvillier
+ */
+public class I2CBusScheduler {
+    
+    /** Priority class of input polling (buttons) */
+    public static final int PRIORITY_INPUT = 0;
+    /** Priority class of display writes */
+    public static final int PRIORITY_DISPLAY = 1;
+    /** Priority class of ADC sampling (temperatures) */
+    public static final int PRIORITY_ADC = 2;
+    /** Number of priority classes */
+    public static final int NUM_PRIORITY_CLASSES = 3;
+    
+    /** Default maximum number of waiters per priority class */
+    public static final int  DEFAULT_MAX_QUEUE_LENGTH = 4;
+    /** Default starvation delay, in milliseconds */
+    public static final long DEFAULT_STARVATION_DELAY = 500;
+    
+    // Configuration
+    private final int  _MaxQueueLength;
+    private final long _StarvationDelayNanos;
+    
+    // Bus state: true when granted to a user
+    private boolean _IsBusy;
+    // Class to which the bus is about to be granted, or -1 if not yet decided.
+    // The decision is taken once when the bus becomes free, so that all waiters 
+    // agree on it. See dispatch() method.
+    private int _GrantedClass = -1;
+    
+    // Per-class queues. Waiters of a class take consecutive tickets, and are 
+    // served in ticket order. Arrival times are stored in a ring indexed by 
+    // ticket number.
+    private final long[]   _NextTicket    = new long[NUM_PRIORITY_CLASSES];
+    private final long[]   _ServedTicket  = new long[NUM_PRIORITY_CLASSES];
+    private final int[]    _QueueLength   = new int[NUM_PRIORITY_CLASSES];
+    private final long[][] _ArrivalTimes;
+    
+    // Per-class statistics
+    private final long[] _GrantCount     = new long[NUM_PRIORITY_CLASSES];
+    private final long[] _RejectedCount  = new long[NUM_PRIORITY_CLASSES];
+    private final long[] _TotalWaitNanos = new long[NUM_PRIORITY_CLASSES];
+    private final long[] _MaxWaitNanos   = new long[NUM_PRIORITY_CLASSES];
+    
+    /** Construct a scheduler with default queue length and starvation delay */
+    public I2CBusScheduler() {
+        this(DEFAULT_MAX_QUEUE_LENGTH, DEFAULT_STARVATION_DELAY);
+    }
+    
+    /** Construct a scheduler.
+     * @param nMaxQueueLength maximum number of waiters per priority class
+     * @param nStarvationDelay delay (in milliseconds) after which a waiter is 
+     * served first, whatever its priority class */
+    public I2CBusScheduler(int nMaxQueueLength, long nStarvationDelay) {
+        _MaxQueueLength = nMaxQueueLength;
+        _StarvationDelayNanos = nStarvationDelay * 1000000L;
+        _ArrivalTimes = new long[NUM_PRIORITY_CLASSES][nMaxQueueLength];
+    }
+    
+    /** Acquire the bus for a priority class, waiting until it is granted.
+     * @param nClass the priority class (PRIORITY_INPUT, PRIORITY_DISPLAY or 
+     * PRIORITY_ADC)
+     * @return true if the bus have been acquired, or false if the queue of the 
+     * class is full (in this case, release() must not be called) */
+    public synchronized boolean acquire(int nClass) {
+        
+        if (_QueueLength[nClass] >= _MaxQueueLength) {
+            _RejectedCount[nClass]++;
+            return false;
+        }
+        
+        // Enqueue
+        long nArrivalTime = System.nanoTime();
+        long nTicket = _NextTicket[nClass]++;
+        _ArrivalTimes[nClass][(int) (nTicket % _MaxQueueLength)] = nArrivalTime;
+        _QueueLength[nClass]++;
+        dispatch();
+        
+        // Wait for our turn. Interruptions can not abort the wait, as tickets 
+        // must be served in order: they are deferred until the bus is acquired.
+        boolean bInterrupted = false;
+        while (_IsBusy || _GrantedClass != nClass || _ServedTicket[nClass] != nTicket) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                bInterrupted = true;
+            }
+        }
+        
+        // Granted
+        _IsBusy = true;
+        _GrantedClass = -1;
+        _ServedTicket[nClass]++;
+        _QueueLength[nClass]--;
+        
+        long nWait = System.nanoTime() - nArrivalTime;
+        _GrantCount[nClass]++;
+        _TotalWaitNanos[nClass] += nWait;
+        if (nWait > _MaxWaitNanos[nClass]) {
+            _MaxWaitNanos[nClass] = nWait;
+        }
+        
+        if (bInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+    
+    /** Release the bus, previously acquired with acquire() */
+    public synchronized void release() {
+        _IsBusy = false;
+        dispatch();
+    }
+    
+    /** Get the number of bus grants of a priority class */
+    public synchronized long getGrantCount(int nClass) {
+        return _GrantCount[nClass];
+    }
+    
+    /** Get the number of rejected acquisitions (full queue) of a priority class */
+    public synchronized long getRejectedCount(int nClass) {
+        return _RejectedCount[nClass];
+    }
+    
+    /** Get the average queue wait time of a priority class, in microseconds */
+    public synchronized long getAverageWaitTime(int nClass) {
+        if (_GrantCount[nClass] == 0) {
+            return 0;
+        } else {
+            return _TotalWaitNanos[nClass] / _GrantCount[nClass] / 1000;
+        }
+    }
+    
+    /** Get the maximum queue wait time of a priority class, in microseconds */
+    public synchronized long getMaxWaitTime(int nClass) {
+        return _MaxWaitNanos[nClass] / 1000;
+    }
+    
+    /** Internal method deciding to which class the bus is granted next, if the 
+     * bus is free and not already promised to a class. 
+     * 
+     * The head waiter which have been waiting for the longest time is served 
+     * first if it exceeded the starvation delay. Otherwise, the highest 
+     * priority class having waiters is served. 
+     * 
+     * Must be called with the scheduler monitor held. */
+    private void dispatch() {
+        if (_IsBusy || _GrantedClass != -1) {
+            return;
+        }
+        
+        long nNow = System.nanoTime();
+        int nSelectedClass = -1;
+        long nLongestWait = _StarvationDelayNanos;
+        for (int nClass = 0; nClass < NUM_PRIORITY_CLASSES; nClass++) {
+            if (_QueueLength[nClass] > 0) {
+                if (nSelectedClass == -1) {
+                    // Highest priority class with waiters
+                    nSelectedClass = nClass;
+                }
+                long nHeadWait = nNow 
+                        - _ArrivalTimes[nClass][(int) (_ServedTicket[nClass] % _MaxQueueLength)];
+                if (nHeadWait >= nLongestWait) {
+                    // Starving head waiter
+                    nSelectedClass = nClass;
+                    nLongestWait = nHeadWait;
+                }
+            }
+        }
+        
+        if (nSelectedClass != -1) {
+            _GrantedClass = nSelectedClass;
+            notifyAll();
+        }
+    }
+}
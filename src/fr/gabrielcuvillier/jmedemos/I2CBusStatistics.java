@@ -0,0 +1,268 @@
+/**
+ * I2CBusStatistics.java
+ * This file is part of RPIUIDemo
+ * Copyright 2014 Gabriel Cuvillier
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package fr.gabrielcuvillier.jmedemos;
+
+import java.io.PrintStream;
+
+/**
+ * Per-command statistics of the I2C traffic of a RPIUI board. <p>
+ *
+ * For each command (the first byte of a message: register number or command
+ * code), the following are counted: transactions, bytes written and read
+ * (address bytes excluded), and failed transfer attempts. The latency of each
+ * successful transfer is counted in a fixed bucket histogram: bucket n holds
+ * the transfers that took less than getBucketLimit(n) us (and at least the
+ * limit of bucket n - 1), the last bucket holds all the slower ones. A message
+ * sent in a combined message is counted with the latency of the whole combined
+ * message. <p>
+ *
+ * Recording does not allocate memory: counters are preallocated for up to
+ * MAX_COMMANDS distinct commands (more commands are counted together, as
+ * command -1). The statistics are recorded by RPIUIDevice (see
+ * RPIUIDevice.getBusStatistics()). Use snapshot() to read a consistent copy of
+ * all counters. This class is thread safe. <p>
+ *
+ * @author Gabriel Cuvillier
+ */
+public class I2CBusStatistics {
+
+    /** Maximum number of distinct commands counted separately */
+    public static final int MAX_COMMANDS = 24;
+    /** Number of buckets of the latency histograms */
+    public static final int NUM_BUCKETS = 16;
+
+    // Latency limit of the first bucket (in us), doubled for each next bucket
+    private static final int FIRST_BUCKET_LIMIT = 16;
+
+    // Slot of each command byte (slot + 1, or 0 if the command was not seen
+    // yet), and command of each slot. The last slot counts the overflowing
+    // commands.
+    private final byte[] _Slots = new byte[256];
+    private final int[]  _Commands = new int[MAX_COMMANDS + 1];
+    private int _NumCommands;
+
+    // Counters of each slot
+    private final long[] _Transactions = new long[MAX_COMMANDS + 1];
+    private final long[] _BytesWritten = new long[MAX_COMMANDS + 1];
+    private final long[] _BytesRead = new long[MAX_COMMANDS + 1];
+    private final long[] _Errors = new long[MAX_COMMANDS + 1];
+    private final long[] _TotalLatency = new long[MAX_COMMANDS + 1];
+    private final int[]  _Histograms = new int[(MAX_COMMANDS + 1) * NUM_BUCKETS];
+
+    // Time of the last reset (in ms)
+    private long _StartTime = System.currentTimeMillis();
+
+    /** Record a successful transaction.
+     * @param nCommand command byte of the message
+     * @param nBytesWritten number of bytes written (command byte included)
+     * @param nBytesRead number of bytes read
+     * @param nLatency duration of the transfer (in ns) */
+    synchronized void recordTransaction(int nCommand, int nBytesWritten, int nBytesRead, long nLatency) {
+        int nSlot = getSlot(nCommand);
+        _Transactions[nSlot]++;
+        _BytesWritten[nSlot] += nBytesWritten;
+        _BytesRead[nSlot] += nBytesRead;
+        long nMicros = nLatency / 1000;
+        _TotalLatency[nSlot] += nMicros;
+        _Histograms[nSlot * NUM_BUCKETS + getBucket(nMicros)]++;
+    }
+
+    /** Record a failed transfer attempt of a command */
+    synchronized void recordError(int nCommand) {
+        _Errors[getSlot(nCommand)]++;
+    }
+
+    /** Reset all counters */
+    public synchronized void reset() {
+        for (int nSlot = 0; nSlot <= MAX_COMMANDS; nSlot++) {
+            _Transactions[nSlot] = 0;
+            _BytesWritten[nSlot] = 0;
+            _BytesRead[nSlot] = 0;
+            _Errors[nSlot] = 0;
+            _TotalLatency[nSlot] = 0;
+        }
+        for (int i = 0; i < _Histograms.length; i++) {
+            _Histograms[i] = 0;
+        }
+        _StartTime = System.currentTimeMillis();
+    }
+
+    /** Get a copy of all counters, taken atomically. The copy is not updated
+     * anymore. */
+    public synchronized I2CBusStatistics snapshot() {
+        I2CBusStatistics Snapshot = new I2CBusStatistics();
+        System.arraycopy(_Slots, 0, Snapshot._Slots, 0, _Slots.length);
+        System.arraycopy(_Commands, 0, Snapshot._Commands, 0, _Commands.length);
+        Snapshot._NumCommands = _NumCommands;
+        System.arraycopy(_Transactions, 0, Snapshot._Transactions, 0, _Transactions.length);
+        System.arraycopy(_BytesWritten, 0, Snapshot._BytesWritten, 0, _BytesWritten.length);
+        System.arraycopy(_BytesRead, 0, Snapshot._BytesRead, 0, _BytesRead.length);
+        System.arraycopy(_Errors, 0, Snapshot._Errors, 0, _Errors.length);
+        System.arraycopy(_TotalLatency, 0, Snapshot._TotalLatency, 0, _TotalLatency.length);
+        System.arraycopy(_Histograms, 0, Snapshot._Histograms, 0, _Histograms.length);
+        Snapshot._StartTime = _StartTime;
+        return Snapshot;
+    }
+
+    /** Get the commands seen so far, in order of first use. Command -1 stands
+     * for the commands exceeding MAX_COMMANDS. */
+    public synchronized int[] getCommands() {
+        int nNumCommands = _NumCommands + ((_Transactions[MAX_COMMANDS] != 0
+                                            || _Errors[MAX_COMMANDS] != 0) ? 1 : 0);
+        int[] Commands = new int[nNumCommands];
+        System.arraycopy(_Commands, 0, Commands, 0, _NumCommands);
+        if (nNumCommands > _NumCommands) {
+            Commands[_NumCommands] = -1;
+        }
+        return Commands;
+    }
+
+    /** Get the number of successful transactions of a command */
+    public synchronized long getTransactionCount(int nCommand) {
+        int nSlot = findSlot(nCommand);
+        return (nSlot < 0) ? 0 : _Transactions[nSlot];
+    }
+
+    /** Get the number of bytes written with a command (command bytes included) */
+    public synchronized long getBytesWritten(int nCommand) {
+        int nSlot = findSlot(nCommand);
+        return (nSlot < 0) ? 0 : _BytesWritten[nSlot];
+    }
+
+    /** Get the number of bytes read with a command */
+    public synchronized long getBytesRead(int nCommand) {
+        int nSlot = findSlot(nCommand);
+        return (nSlot < 0) ? 0 : _BytesRead[nSlot];
+    }
+
+    /** Get the number of failed transfer attempts of a command */
+    public synchronized long getErrorCount(int nCommand) {
+        int nSlot = findSlot(nCommand);
+        return (nSlot < 0) ? 0 : _Errors[nSlot];
+    }
+
+    /** Get the average latency of the transactions of a command (in us) */
+    public synchronized long getAverageLatency(int nCommand) {
+        int nSlot = findSlot(nCommand);
+        return (nSlot < 0 || _Transactions[nSlot] == 0) ? 0
+                : _TotalLatency[nSlot] / _Transactions[nSlot];
+    }
+
+    /** Get the number of transactions of a command in a latency bucket (0 to
+     * NUM_BUCKETS - 1) */
+    public synchronized int getBucketCount(int nCommand, int nBucket) {
+        int nSlot = findSlot(nCommand);
+        return (nSlot < 0) ? 0 : _Histograms[nSlot * NUM_BUCKETS + nBucket];
+    }
+
+    /** Get the latency below which a transaction is counted in a bucket (in
+     * us), or Long.MAX_VALUE for the last bucket */
+    public static long getBucketLimit(int nBucket) {
+        return (nBucket >= NUM_BUCKETS - 1) ? Long.MAX_VALUE : (long) FIRST_BUCKET_LIMIT << nBucket;
+    }
+
+    /** Get the latency (in us) below which a given percentage of the
+     * transactions of a command completed, as the limit of the bucket reaching
+     * that percentage */
+    public synchronized long getLatencyPercentile(int nCommand, int nPercent) {
+        int nSlot = findSlot(nCommand);
+        if (nSlot < 0 || _Transactions[nSlot] == 0) {
+            return 0;
+        }
+        long nThreshold = (_Transactions[nSlot] * nPercent + 99) / 100;
+        long nCount = 0;
+        for (int nBucket = 0; nBucket < NUM_BUCKETS; nBucket++) {
+            nCount += _Histograms[nSlot * NUM_BUCKETS + nBucket];
+            if (nCount >= nThreshold) {
+                return getBucketLimit(nBucket);
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /** Get the time elapsed since construction or last reset (in ms) */
+    public synchronized long getElapsedTime() {
+        return System.currentTimeMillis() - _StartTime;
+    }
+
+    /** Print the statistics: one line per used command, and the total bus
+     * usage (bytes per second) */
+    public synchronized void report(PrintStream Out) {
+        long nTotalBytes = 0;
+        int[] Commands = getCommands();
+        for (int nCommand : Commands) {
+            int nSlot = findSlot(nCommand);
+            nTotalBytes += _BytesWritten[nSlot] + _BytesRead[nSlot];
+            if (_Transactions[nSlot] == 0 && _Errors[nSlot] == 0) {
+                // Not used since last reset
+                continue;
+            }
+            String Latency = (_Transactions[nSlot] == 0) ? "-"
+                    : getAverageLatency(nCommand) + " us (p99 < "
+                      + formatLimit(getLatencyPercentile(nCommand, 99)) + ")";
+            Out.format("I2C cmd 0x%02X: %d transactions, %d bytes written, %d bytes read, %d errors, latency %s\n",
+                    nCommand & 0xFF, _Transactions[nSlot], _BytesWritten[nSlot],
+                    _BytesRead[nSlot], _Errors[nSlot], Latency);
+        }
+        long nElapsedTime = Math.max(1, getElapsedTime());
+        Out.format("I2C bus: %d bytes in %d ms (%d bytes/s)\n",
+                nTotalBytes, nElapsedTime, nTotalBytes * 1000 / nElapsedTime);
+    }
+
+    /** Internal method formatting a bucket limit */
+    private static String formatLimit(long nLimit) {
+        return (nLimit == Long.MAX_VALUE) ? "inf" : Long.toString(nLimit);
+    }
+
+    /** Internal method getting the slot of a command, assigning it one if it
+     * was not seen yet */
+    private int getSlot(int nCommand) {
+        int nSlot = _Slots[nCommand & 0xFF];
+        if (nSlot != 0) {
+            return nSlot - 1;
+        } else if (_NumCommands < MAX_COMMANDS) {
+            _Commands[_NumCommands] = nCommand & 0xFF;
+            _NumCommands++;
+            _Slots[nCommand & 0xFF] = (byte) _NumCommands;
+            return _NumCommands - 1;
+        } else {
+            return MAX_COMMANDS;
+        }
+    }
+
+    /** Internal method finding the slot of a command, or -1 if it was not
+     * seen */
+    private int findSlot(int nCommand) {
+        if (nCommand == -1) {
+            return MAX_COMMANDS;
+        }
+        return _Slots[nCommand & 0xFF] - 1;
+    }
+
+    /** Internal method getting the histogram bucket of a latency (in us) */
+    private static int getBucket(long nMicros) {
+        int nBucket = 0;
+        long nLimit = FIRST_BUCKET_LIMIT;
+        while (nBucket < NUM_BUCKETS - 1 && nMicros >= nLimit) {
+            nBucket++;
+            nLimit <<= 1;
+        }
+        return nBucket;
+    }
+}
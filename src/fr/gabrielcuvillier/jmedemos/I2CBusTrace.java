@@ -0,0 +1,179 @@
+/**
+ * I2CBusTrace.java
+ * This file is part of RPIUIDemo
+ * Copyright 2014 Gabriel Cuvillier
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package fr.gabrielcuvillier.jmedemos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Trace of the last I2C transfers of a RPIUI board. <p>
+ *
+ * Each transfer attempt is recorded in a ring buffer of fixed capacity: the
+ * oldest entries are overwritten by the new ones. An entry holds the command
+ * byte, the number of bytes written and read, the start time and duration of
+ * the transfer, and its outcome (see OUTCOME_* constants). Entries are stored
+ * in preallocated arrays of primitives (ENTRY_SIZE bytes per entry): recording
+ * does not allocate memory, and takes a constant time. A capacity of 0 disables
+ * the trace. <p>
+ *
+ * The trace is recorded by RPIUIDevice (see RPIUIDevice.getBusTrace()). It is
+ * written with dump(), in the following binary format (big endian): <br>
+ * - header: magic "I2CT", format version (1 byte), number of entries (int),
+ *   dump time in ms since the epoch (long) <br>
+ * - entries, oldest first: age in us at dump time (int), command (1 byte),
+ *   outcome (1 byte), bytes written (unsigned short), bytes read (unsigned
+ *   short), duration in us (int) <p>
+ *
+ * This class is thread safe. <p>
+ *
+ * @author Gabriel Cuvillier
+ */
+public class I2CBusTrace {
+
+    /** The transfer succeeded */
+    public static final int OUTCOME_OK = 0;
+    /** The transfer failed */
+    public static final int OUTCOME_ERROR = 1;
+
+    /** Default number of entries */
+    public static final int DEFAULT_CAPACITY = 256;
+    /** Memory used by an entry (in bytes) */
+    public static final int ENTRY_SIZE = 8 + 1 + 1 + 2 + 2 + 4;
+
+    // Dump format
+    private static final byte[] DUMP_MAGIC = { 'I', '2', 'C', 'T' };
+    private static final int    DUMP_VERSION = 1;
+    private static final int    DUMP_HEADER_SIZE = 4 + 1 + 4 + 8;
+    private static final int    DUMP_ENTRY_SIZE = 4 + 1 + 1 + 2 + 2 + 4;
+
+    // Entries: start time (in us, from System.nanoTime()), command, outcome,
+    // bytes written and read (saturated to 0xFFFF), and duration (in us)
+    private long[]  _Times;
+    private byte[]  _Commands;
+    private byte[]  _Outcomes;
+    private short[] _BytesWritten;
+    private short[] _BytesRead;
+    private int[]   _Durations;
+
+    // Index of the next entry to write, and number of valid entries
+    private int _NextEntry;
+    private int _NumEntries;
+
+    // Number of entries recorded since last clear (overwritten ones included)
+    private long _RecordCount;
+
+    /** Construct a trace.
+     * @param nCapacity number of entries (0 to disable the trace) */
+    public I2CBusTrace(int nCapacity) {
+        setCapacity(nCapacity);
+    }
+
+    /** Set the number of entries (0 to disable the trace). The trace is
+     * cleared. */
+    public final synchronized void setCapacity(int nCapacity) {
+        nCapacity = Math.max(0, nCapacity);
+        _Times = new long[nCapacity];
+        _Commands = new byte[nCapacity];
+        _Outcomes = new byte[nCapacity];
+        _BytesWritten = new short[nCapacity];
+        _BytesRead = new short[nCapacity];
+        _Durations = new int[nCapacity];
+        clear();
+    }
+
+    /** Get the number of entries */
+    public synchronized int getCapacity() {
+        return _Times.length;
+    }
+
+    /** Remove all entries */
+    public synchronized void clear() {
+        _NextEntry = 0;
+        _NumEntries = 0;
+        _RecordCount = 0;
+    }
+
+    /** Get the number of entries recorded since last clear, including the
+     * overwritten ones */
+    public synchronized long getRecordCount() {
+        return _RecordCount;
+    }
+
+    /** Record a transfer attempt.
+     * @param nCommand command byte of the message
+     * @param nBytesWritten number of bytes written (command byte included)
+     * @param nBytesRead number of bytes read
+     * @param nStartTime start time of the transfer (System.nanoTime(), in ns)
+     * @param nDuration duration of the transfer (in ns)
+     * @param nOutcome outcome of the transfer (OUTCOME_* constant) */
+    synchronized void record(int nCommand, int nBytesWritten, int nBytesRead,
+                             long nStartTime, long nDuration, int nOutcome) {
+        int nCapacity = _Times.length;
+        if (nCapacity == 0) {
+            return;
+        }
+        int nEntry = _NextEntry;
+        _Times[nEntry] = nStartTime / 1000;
+        _Commands[nEntry] = (byte) nCommand;
+        _Outcomes[nEntry] = (byte) nOutcome;
+        _BytesWritten[nEntry] = (short) Math.min(nBytesWritten, 0xFFFF);
+        _BytesRead[nEntry] = (short) Math.min(nBytesRead, 0xFFFF);
+        _Durations[nEntry] = (int) Math.min(nDuration / 1000, Integer.MAX_VALUE);
+        _NextEntry = (nEntry + 1 == nCapacity) ? 0 : nEntry + 1;
+        if (_NumEntries < nCapacity) {
+            _NumEntries++;
+        }
+        _RecordCount++;
+    }
+
+    /** Write the trace to a stream, in the binary format described above. The
+     * entries are encoded while holding the trace lock, and written to the
+     * stream afterwards, so that a slow stream does not delay the transfers. */
+    public void dump(OutputStream Out) throws IOException {
+        byte[] Data;
+        synchronized (this) {
+            ByteArrayOutputStream Buffer = new ByteArrayOutputStream(
+                    DUMP_HEADER_SIZE + _NumEntries * DUMP_ENTRY_SIZE);
+            DataOutputStream DataOut = new DataOutputStream(Buffer);
+            long nDumpTime = System.nanoTime() / 1000;
+            DataOut.write(DUMP_MAGIC);
+            DataOut.writeByte(DUMP_VERSION);
+            DataOut.writeInt(_NumEntries);
+            DataOut.writeLong(System.currentTimeMillis());
+
+            int nCapacity = _Times.length;
+            int nEntry = (_NextEntry - _NumEntries + nCapacity) % Math.max(1, nCapacity);
+            for (int i = 0; i < _NumEntries; i++) {
+                DataOut.writeInt((int) Math.min(nDumpTime - _Times[nEntry], Integer.MAX_VALUE));
+                DataOut.writeByte(_Commands[nEntry]);
+                DataOut.writeByte(_Outcomes[nEntry]);
+                DataOut.writeShort(_BytesWritten[nEntry]);
+                DataOut.writeShort(_BytesRead[nEntry]);
+                DataOut.writeInt(_Durations[nEntry]);
+                nEntry = (nEntry + 1 == nCapacity) ? 0 : nEntry + 1;
+            }
+            DataOut.flush();
+            Data = Buffer.toByteArray();
+        }
+        Out.write(Data);
+        Out.flush();
+    }
+}
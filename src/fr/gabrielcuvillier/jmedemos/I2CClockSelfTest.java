@@ -0,0 +1,126 @@
+/**
+ * I2CClockSelfTest.java
+ * This file is part of RPIUIDemo
+ * Copyright 2014 Gabriel Cuvillier
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package fr.gabrielcuvillier.jmedemos;
+
+import java.io.PrintStream;
+
+/**
+ * Self-test selecting the I2C clock frequency of a RPIUI board. <p>
+ *
+ * Boards on short wiring may run at fast mode (400 kHz), while boards on long
+ * cables need the standard mode (100 kHz) or less. The self-test tries the
+ * candidate frequencies from the fastest to the slowest: at each frequency, a
+ * known pattern is written to the board and read back a given number of times
+ * (see RPIUIDevice.testBusThroughput()). The first frequency passing without
+ * any error is selected, and kept by the device. <p>
+ *
+ * The measured throughput (in bytes per second) of each tried frequency is
+ * reported. The test pattern is written to the ADC channel source registers,
+ * which are restored after each pattern (see RPIUIDevice.testBusThroughput()).
+ * As a failed frequency may not allow it, the ADC configuration of the board
+ * is also restored once done. The device must not be used by other threads
+ * while the self-test runs. <p>
+ *
+ * @author Gabriel Cuvillier
+ */
+public class I2CClockSelfTest {
+
+    /** Default number of pattern transfers per frequency */
+    public static final int DEFAULT_NUM_TRANSFERS = 20;
+
+    // The device to test, and the number of pattern transfers per frequency
+    private final RPIUIDevice _Device;
+    private final int _NumTransfers;
+
+    /** Construct an I2C clock self-test.
+     * @param Device the device to test
+     * @param nNumTransfers number of pattern transfers per frequency */
+    public I2CClockSelfTest(RPIUIDevice Device, int nNumTransfers) {
+        _Device = Device;
+        _NumTransfers = Math.max(1, nNumTransfers);
+    }
+
+    /** Run the self-test, and print the results.
+     * @param Frequencies the candidate clock frequencies (in Hz)
+     * @param Out the stream receiving the results (one line per tried frequency)
+     * @return the selected frequency, now used by the device. If no candidate
+     * passes, the initial frequency of the device is kept and returned. */
+    public int run(int[] Frequencies, PrintStream Out) {
+        // Fastest frequencies first
+        int[] Candidates = new int[Frequencies.length];
+        System.arraycopy(Frequencies, 0, Candidates, 0, Frequencies.length);
+        for (int i = 1; i < Candidates.length; i++) {
+            int nFrequency = Candidates[i];
+            int j = i;
+            while (j > 0 && Candidates[j - 1] < nFrequency) {
+                Candidates[j] = Candidates[j - 1];
+                j--;
+            }
+            Candidates[j] = nFrequency;
+        }
+
+        int nInitialFrequency = _Device.getClockFrequency();
+        ADCConfiguration InitialConfig = _Device.readADCConfiguration();
+        int nSelectedFrequency = nInitialFrequency;
+        try {
+            for (int nFrequency : Candidates) {
+                if (test(nFrequency, Out)) {
+                    nSelectedFrequency = nFrequency;
+                    break;
+                }
+            }
+        } finally {
+            _Device.setClockFrequency(nSelectedFrequency);
+            _Device.configureADC(InitialConfig);
+        }
+
+        Out.println("I2C clock " + formatFrequency(nSelectedFrequency) + " selected");
+        return nSelectedFrequency;
+    }
+
+    /** Internal method testing a single frequency. Return true if it passed. */
+    private boolean test(int nFrequency, PrintStream Out) {
+        long nThroughput;
+        try {
+            _Device.setClockFrequency(nFrequency);
+            nThroughput = _Device.testBusThroughput(_NumTransfers);
+        } catch (RuntimeException ex) {
+            // The device could not be opened at this frequency
+            nThroughput = -1;
+        }
+
+        if (nThroughput < 0) {
+            Out.println("I2C clock " + formatFrequency(nFrequency) + ": FAILED");
+            return false;
+        } else {
+            Out.println("I2C clock " + formatFrequency(nFrequency) + ": passed, "
+                    + nThroughput + " bytes/s");
+            return true;
+        }
+    }
+
+    /** Internal method formatting a clock frequency (in kHz) */
+    private static String formatFrequency(int nFrequency) {
+        if (nFrequency == RPIUIDevice.DEFAULT_CLOCK_FREQUENCY) {
+            return "default";
+        } else {
+            return (nFrequency / 1000) + " kHz";
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * I2CFaultHandler.java
+ * This file is part of RPIUIDemo
+ * Copyright 2014 Gabriel Cuvillier
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package fr.gabrielcuvillier.jmedemos;
+
+/**
+ * Fault handling policy of I2C transfers: bounded retries with exponential
+ * backoff, and circuit breaker. <p>
+ *
+ * A failed transfer is retried up to "max retries" times, with a delay starting
+ * at the initial backoff and doubled on each retry (up to the max backoff). When
+ * all retries fail, the operation fails. <p>
+ *
+ * After "failure threshold" consecutive failed operations, the circuit is
+ * opened: operations are rejected at once, without touching the bus. Every
+ * "reopen delay", the device is reopened and a single operation is tried. The
+ * circuit is closed again by the first successful transfer, and the time spent
+ * with the circuit open is recorded as the recovery time. <p>
+ *
+ * The handler is used by RPIUIDevice (see RPIUIDevice.getFaultHandler()). Its
+ * configuration may be changed at any time. This class is thread safe. <p>
+ *
+ * @author Gabriel Cuvillier
+ */
+public class I2CFaultHandler {
+
+    /** Default maximum number of retries of a transfer */
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    /** Default delay before the first retry (ms) */
+    public static final int DEFAULT_INITIAL_BACKOFF = 2;
+    /** Default maximum delay between two retries (ms) */
+    public static final int DEFAULT_MAX_BACKOFF = 50;
+    /** Default number of consecutive failed operations opening the circuit */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    /** Default delay between two reopen attempts when the circuit is open (ms) */
+    public static final int DEFAULT_REOPEN_DELAY = 1000;
+
+    // Configuration
+    private int _MaxRetries = DEFAULT_MAX_RETRIES;
+    private int _InitialBackoff = DEFAULT_INITIAL_BACKOFF;
+    private int _MaxBackoff = DEFAULT_MAX_BACKOFF;
+    private int _FailureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private int _ReopenDelay = DEFAULT_REOPEN_DELAY;
+
+    // Circuit state: number of consecutive failed operations, time the circuit
+    // was opened (0 if closed), and time of the next reopen attempt
+    private int  _ConsecutiveFailures;
+    private long _OpenTime;
+    private long _NextReopenTime;
+
+    // Statistics
+    private long _ErrorCount;
+    private long _RetryCount;
+    private long _FailureCount;
+    private long _RejectedCount;
+    private long _CircuitOpenCount;
+    private long _ReopenCount;
+    private long _LastRecoveryTime;
+    private long _MaxRecoveryTime;
+
+    /** Set the maximum number of retries of a transfer (0 to disable retries) */
+    public synchronized void setMaxRetries(int nMaxRetries) {
+        _MaxRetries = Math.max(0, nMaxRetries);
+    }
+
+    /** Set the retry delays (ms): delay before the first retry, and maximum
+     * delay between two retries */
+    public synchronized void setBackoff(int nInitialBackoff, int nMaxBackoff) {
+        _InitialBackoff = Math.max(0, nInitialBackoff);
+        _MaxBackoff = Math.max(_InitialBackoff, nMaxBackoff);
+    }
+
+    /** Set the number of consecutive failed operations opening the circuit */
+    public synchronized void setFailureThreshold(int nFailureThreshold) {
+        _FailureThreshold = Math.max(1, nFailureThreshold);
+    }
+
+    /** Set the delay between two reopen attempts when the circuit is open (ms) */
+    public synchronized void setReopenDelay(int nReopenDelay) {
+        _ReopenDelay = Math.max(0, nReopenDelay);
+    }
+
+    /** Return true if the circuit is open */
+    public synchronized boolean isOpen() {
+        return _OpenTime != 0;
+    }
+
+    /** Called before a transfer when the circuit is open. Return true if the
+     * device should be reopened and the transfer tried, false if the transfer
+     * must be rejected. */
+    synchronized boolean onOpenCircuit() {
+        long nNow = System.currentTimeMillis();
+        if (nNow >= _NextReopenTime) {
+            // Next attempt after another delay, whatever the result of this one
+            _NextReopenTime = nNow + _ReopenDelay;
+            _ReopenCount++;
+            return true;
+        } else {
+            _RejectedCount++;
+            return false;
+        }
+    }
+
+    /** Called after a failed transfer attempt (nAttempt is 0 for the first
+     * attempt). Return the delay before retrying (ms), or -1 if the transfer
+     * must not be retried: the operation has then failed. */
+    synchronized int onError(int nAttempt) {
+        _ErrorCount++;
+        if (_OpenTime == 0 && nAttempt < _MaxRetries) {
+            _RetryCount++;
+            return (int) Math.min((long) _InitialBackoff << nAttempt, _MaxBackoff);
+        }
+
+        // No more retries (or circuit open): the operation failed
+        _FailureCount++;
+        _ConsecutiveFailures++;
+        if (_OpenTime == 0 && _ConsecutiveFailures >= _FailureThreshold) {
+            _OpenTime = System.currentTimeMillis();
+            _NextReopenTime = _OpenTime + _ReopenDelay;
+            _CircuitOpenCount++;
+        }
+        return -1;
+    }
+
+    /** Called after a successful transfer. Close the circuit if it was open. */
+    synchronized void onSuccess() {
+        _ConsecutiveFailures = 0;
+        if (_OpenTime != 0) {
+            _LastRecoveryTime = System.currentTimeMillis() - _OpenTime;
+            _MaxRecoveryTime = Math.max(_MaxRecoveryTime, _LastRecoveryTime);
+            _OpenTime = 0;
+        }
+    }
+
+    /** Get the number of failed transfer attempts */
+    public synchronized long getErrorCount() {
+        return _ErrorCount;
+    }
+
+    /** Get the number of retried transfers */
+    public synchronized long getRetryCount() {
+        return _RetryCount;
+    }
+
+    /** Get the number of failed operations (all retries failed) */
+    public synchronized long getFailureCount() {
+        return _FailureCount;
+    }
+
+    /** Get the number of operations rejected because the circuit was open */
+    public synchronized long getRejectedCount() {
+        return _RejectedCount;
+    }
+
+    /** Get the number of times the circuit was opened */
+    public synchronized long getCircuitOpenCount() {
+        return _CircuitOpenCount;
+    }
+
+    /** Get the number of device reopen attempts */
+    public synchronized long getReopenCount() {
+        return _ReopenCount;
+    }
+
+    /** Get the duration of the last circuit opening (ms), from the failure
+     * opening it to the next successful transfer */
+    public synchronized long getLastRecoveryTime() {
+        return _LastRecoveryTime;
+    }
+
+    /** Get the maximum duration of a circuit opening (ms) */
+    public synchronized long getMaxRecoveryTime() {
+        return _MaxRecoveryTime;
+    }
+}
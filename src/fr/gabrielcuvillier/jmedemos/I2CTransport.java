@@ -0,0 +1,88 @@
+/**
+ * I2CTransport.java
+ * This file is part of RPIUIDemo
+ * Copyright 2014 Gabriel Cuvillier
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package fr.gabrielcuvillier.jmedemos;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Transport of the I2C messages of a RPIUIDevice. <p>
+ *
+ * The transport sends and receives the raw I2C messages of a single board.
+ * Implementations are: <br>
+ * - DIOI2CTransport: the real board, through a DIO I2C device <br>
+ * - SimulatedRPIUIBoard: an in-memory simulation of the board, with a
+ *   configurable bus latency and bandwidth <p>
+ *
+ * Messages are transferred from or to the remaining bytes of the given
+ * buffers (from position to limit), and the buffer positions are advanced, as
+ * done by the DIO API. Implementations do not need to be thread safe: the
+ * RPIUIDevice calls them while holding its bus lock. <p>
+ *
+ * @author Gabriel Cuvillier
+ */
+public interface I2CTransport {
+
+    /** Write a message to the board.
+     * @return the number of bytes written */
+    int write(ByteBuffer Message) throws IOException;
+
+    /** Read a message from the board.
+     * @return the number of bytes read */
+    int read(ByteBuffer Result) throws IOException;
+
+    /** Create an empty combined message: several messages transferred as a
+     * single I2C transaction. */
+    CombinedMessage createCombinedMessage() throws IOException;
+
+    /** Close and open again the connection to the board (after repeated
+     * failures). The combined messages previously created are not valid
+     * anymore. A transport that cannot be reopened does nothing. */
+    void reopen() throws IOException;
+
+    /** Change the I2C clock frequency (in Hz, or
+     * RPIUIDevice.DEFAULT_CLOCK_FREQUENCY for the platform default). The
+     * connection may be reopened, as by reopen(), even if the change fails:
+     * the former frequency is then kept. */
+    void setClockFrequency(int nClockFrequency) throws IOException;
+
+    /** Close the connection to the board */
+    void close() throws IOException;
+
+    /**
+     * Messages transferred as a single I2C transaction (see
+     * I2CTransport.createCombinedMessage()). <p>
+     *
+     * A combined message is assembled once on preallocated buffers, and may be
+     * transferred several times: buffers must be rewound before each transfer. <p>
+     */
+    interface CombinedMessage {
+
+        /** Append a write message to the combined message.
+         * @return this combined message */
+        CombinedMessage appendWrite(ByteBuffer Message) throws IOException;
+
+        /** Append a read message to the combined message.
+         * @return this combined message */
+        CombinedMessage appendRead(ByteBuffer Result) throws IOException;
+
+        /** Transfer all messages, in order, as a single I2C transaction */
+        void transfer() throws IOException;
+    }
+}
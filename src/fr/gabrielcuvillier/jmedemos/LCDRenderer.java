@@ -0,0 +1,425 @@
+/**
+ * LCDRenderer.java
+ * This file is part of RPIUIDemo
+ * Copyright 2014 Gabriel Cuvillier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package fr.gabrielcuvillier.jmedemos;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous LCD renderer for the RPIUIDevice. <p>
+ * 
+ * Producers submit the desired 2-line frame with submitFrame(), which returns 
+ * immediately. A dedicated renderer thread then displays the frame on the 
+ * device. <p>
+ * 
+ * Only the latest submitted frame is kept: if a new frame is submitted before the 
+ * previous one have been rendered, the previous one is dropped ("coalesced"). This 
+ * way, bursts of display updates never queue up slow I2C writes. <p>
+ * 
+ * Lines longer than the LCD width are scrolled (marquee), after a start delay, 
+ * one character per step, until a new frame is submitted. Each step only sends 
+ * the characters that changed on the LCD (see RPIUIDevice.displayScreen()), and 
+ * does not allocate any memory. The step rate is capped so that scrolling does 
+ * not use more than a given share of the bus time, as measured on previous 
+ * steps: on a slow bus, text scrolls slower. See setScrolling(). <p>
+ * 
+ * Frames may also be submitted as char arrays of LCD_NUM_COLUMNS characters: 
+ * they are copied to preallocated buffers, so that submitting and rendering 
+ * them does not allocate any memory. Such frames are never scrolled. <p>
+ * 
+ * The renderer thread acquires the bus from an I2CBusScheduler (with display 
+ * priority) while rendering a frame, so that button polling is served first. 
+ * Other users of the device should go through the same scheduler. <p>
+ * 
+ * The time to first frame (from the renderer start, or from the time given to 
+ * setStartTime()) is logged when the first frame is rendered. <p>
+ * 
+ * This class is thread safe. <p>
+ * 
+ * @author Gabriel Cuvillier
+ */
+public class LCDRenderer implements Runnable {
+    
+    /** Default scrolling step interval (ms per character) */
+    public static final int DEFAULT_SCROLL_STEP_INTERVAL = 300;
+    /** Default delay before scrolling a new frame (ms) */
+    public static final int DEFAULT_SCROLL_START_DELAY = 1000;
+    /** Default maximum share of the bus time used by scrolling (percent) */
+    public static final int DEFAULT_SCROLL_MAX_BUS_SHARE = 25;
+    
+    // Number of blanks between the end of a scrolled line and its start
+    private static final int SCROLL_GAP = 3;
+    
+    // The device to render frames to, and the scheduler of its bus
+    private final RPIUIDevice     _Device;
+    private final I2CBusScheduler _BusScheduler;
+    
+    // Renderer thread, and its running flag
+    private Thread  _RendererThread;
+    private boolean _IsRunning;
+    
+    // Latest submitted frame, not yet rendered
+    private String  _PendingLine1;
+    private String  _PendingLine2;
+    private boolean _HasPendingFrame;
+    // Latest submitted char array frame (see submitFrame(char[], char[])): 
+    // the pending frame is taken from there if _PendingIsChars is set
+    private final char[][] _PendingChars = new char[RPIUIDevice.LCD_NUM_LINES][RPIUIDevice.LCD_NUM_COLUMNS];
+    private boolean _PendingIsChars;
+    
+    // Statistics
+    private long _FramesSubmitted;
+    private long _FramesRendered;
+    private long _FramesCoalesced;
+    private long _ScrollSteps;
+    private long _ThrottledScrollSteps;
+    
+    // Scrolling configuration (see setScrolling())
+    private volatile int _ScrollStepInterval = DEFAULT_SCROLL_STEP_INTERVAL;
+    private volatile int _ScrollStartDelay = DEFAULT_SCROLL_START_DELAY;
+    private volatile int _ScrollMaxBusShare = DEFAULT_SCROLL_MAX_BUS_SHARE;
+    
+    // Scrolling state, only used by the renderer thread: lines of the current 
+    // frame, scroll offset of each line, and displayed window of each line. 
+    // A line is scrolled if it is longer than the LCD width.
+    private final String[] _Lines = new String[RPIUIDevice.LCD_NUM_LINES];
+    private final int[]    _ScrollOffsets = new int[RPIUIDevice.LCD_NUM_LINES];
+    private final char[][] _Windows = new char[RPIUIDevice.LCD_NUM_LINES][RPIUIDevice.LCD_NUM_COLUMNS];
+    private boolean _IsScrolling;
+    private long    _NextScrollTime;
+    // Average bus time of a scrolling step (ns, moving average)
+    private long    _AverageStepNanos;
+    
+    // Reference time of the time to first frame, and time of the first 
+    // rendered frame (0 until then)
+    private long _StartTime;
+    private long _FirstFrameTime;
+    
+    /** Construct a LCDRenderer for a device. The renderer thread is not started.
+     * @param Device the device to render frames to 
+     * @param BusScheduler the scheduler of the device bus */
+    public LCDRenderer(RPIUIDevice Device, I2CBusScheduler BusScheduler) {
+        _Device = Device;
+        _BusScheduler = BusScheduler;
+    }
+    
+    /** Start the renderer thread. */
+    public synchronized void start() {
+        if (!_IsRunning) {
+            _IsRunning = true;
+            if (_StartTime == 0) {
+                _StartTime = System.currentTimeMillis();
+            }
+            _RendererThread = new Thread(this);
+            _RendererThread.start();
+        } else {
+            // Already started
+        }
+    }
+    
+    /** Stop the renderer thread, dropping any pending frame. 
+     * 
+     * The method waits for the frame being currently rendered (if any) to be 
+     * completed, so that the device may be safely ended afterwards. */
+    public void stop() {
+        Thread RendererThread;
+        synchronized (this) {
+            _IsRunning = false;
+            _HasPendingFrame = false;
+            _PendingLine1 = null;
+            _PendingLine2 = null;
+            _PendingIsChars = false;
+            RendererThread = _RendererThread;
+            _RendererThread = null;
+            notifyAll();
+        }
+        
+        // Wait outside of the renderer monitor, as the renderer thread needs it 
+        // to complete
+        if (RendererThread != null && RendererThread != Thread.currentThread()) {
+            try {
+                RendererThread.join();
+            } catch (InterruptedException ex) {
+                Logger.getLogger(LCDRenderer.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+    
+    /** Submit a frame to display. The method returns immediately.
+     * @param Line1 text of the first LCD line
+     * @param Line2 text of the second LCD line */
+    public synchronized void submitFrame(String Line1, String Line2) {
+        if (_IsRunning) {
+            _FramesSubmitted++;
+            if (_HasPendingFrame) {
+                // The previous frame have not been rendered yet: drop it
+                _FramesCoalesced++;
+            }
+            _PendingLine1 = Line1;
+            _PendingLine2 = Line2;
+            _PendingIsChars = false;
+            _HasPendingFrame = true;
+            notifyAll();
+        } else {
+            System.out.println("submitFrame: renderer have been stopped. Frame skipped.");
+        }
+    }
+    
+    /** Submit a frame to display, from two char arrays of LCD_NUM_COLUMNS 
+     * characters each. The arrays are copied, so that the caller may reuse 
+     * them once the method returns. The method returns immediately, and does 
+     * not allocate any memory. The frame is not scrolled.
+     * @param Line1 characters of the first LCD line
+     * @param Line2 characters of the second LCD line */
+    public synchronized void submitFrame(char[] Line1, char[] Line2) {
+        if (_IsRunning) {
+            _FramesSubmitted++;
+            if (_HasPendingFrame) {
+                // The previous frame have not been rendered yet: drop it
+                _FramesCoalesced++;
+            }
+            System.arraycopy(Line1, 0, _PendingChars[0], 0, RPIUIDevice.LCD_NUM_COLUMNS);
+            System.arraycopy(Line2, 0, _PendingChars[1], 0, RPIUIDevice.LCD_NUM_COLUMNS);
+            _PendingLine1 = null;
+            _PendingLine2 = null;
+            _PendingIsChars = true;
+            _HasPendingFrame = true;
+            notifyAll();
+        } else {
+            System.out.println("submitFrame: renderer have been stopped. Frame skipped.");
+        }
+    }
+    
+    /** Set the reference time of the time to first frame (ie. the application 
+     * start time), in ms. By default, this is the time the renderer is started.*/
+    public synchronized void setStartTime(long nStartTime) {
+        _StartTime = nStartTime;
+    }
+    
+    /** Get the time (in ms) the first frame was rendered, or 0 if none was */
+    public synchronized long getFirstFrameTime() {
+        return _FirstFrameTime;
+    }
+    
+    /** Configure the scrolling of lines longer than the LCD width.
+     * @param nStepInterval scrolling step interval (ms per character)
+     * @param nStartDelay delay before scrolling a new frame (ms)
+     * @param nMaxBusShare maximum share of the bus time used by scrolling 
+     * (percent, 1 to 100): steps are delayed beyond nStepInterval if needed */
+    public void setScrolling(int nStepInterval, int nStartDelay, int nMaxBusShare) {
+        _ScrollStepInterval = Math.max(1, nStepInterval);
+        _ScrollStartDelay = Math.max(0, nStartDelay);
+        _ScrollMaxBusShare = Math.max(1, Math.min(nMaxBusShare, 100));
+    }
+    
+    /** Get the number of frames submitted since construction */
+    public synchronized long getFramesSubmitted() {
+        return _FramesSubmitted;
+    }
+    
+    /** Get the number of frames effectively rendered since construction */
+    public synchronized long getFramesRendered() {
+        return _FramesRendered;
+    }
+    
+    /** Get the number of frames dropped since construction, because a newer 
+     * frame was submitted before they were rendered */
+    public synchronized long getFramesCoalesced() {
+        return _FramesCoalesced;
+    }
+    
+    /** Get the number of scrolling steps rendered since construction */
+    public synchronized long getScrollSteps() {
+        return _ScrollSteps;
+    }
+    
+    /** Get the number of scrolling steps delayed beyond the step interval, to 
+     * respect the maximum bus share */
+    public synchronized long getThrottledScrollSteps() {
+        return _ThrottledScrollSteps;
+    }
+    
+    // Renderer thread implementation
+    @Override
+    public void run() {
+        while (true) {
+            boolean bNewFrame;
+            boolean bCharsFrame = false;
+            
+            // Wait for a frame to render, or for the next scrolling step
+            synchronized (this) {
+                while (_IsRunning && !_HasPendingFrame) {
+                    long nDelay = _IsScrolling ? _NextScrollTime - System.currentTimeMillis() : 0;
+                    if (_IsScrolling && nDelay <= 0) {
+                        break;
+                    }
+                    try {
+                        wait(nDelay);
+                    } catch (InterruptedException ex) {
+                        Logger.getLogger(LCDRenderer.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+                if (!_IsRunning) {
+                    return;
+                } else if (_HasPendingFrame && _PendingIsChars) {
+                    // Take the pending char array frame, straight into the 
+                    // displayed windows: it is never scrolled
+                    for (int nLine = 0; nLine < RPIUIDevice.LCD_NUM_LINES; nLine++) {
+                        System.arraycopy(_PendingChars[nLine], 0, _Windows[nLine], 0, RPIUIDevice.LCD_NUM_COLUMNS);
+                    }
+                    _IsScrolling = false;
+                    _PendingIsChars = false;
+                    _HasPendingFrame = false;
+                    bNewFrame = true;
+                    bCharsFrame = true;
+                } else if (_HasPendingFrame) {
+                    // Take the pending frame
+                    _Lines[0] = _PendingLine1;
+                    _Lines[1] = _PendingLine2;
+                    _PendingLine1 = null;
+                    _PendingLine2 = null;
+                    _HasPendingFrame = false;
+                    bNewFrame = true;
+                } else {
+                    bNewFrame = false;
+                }
+            }
+            
+            // Render it, without holding the renderer monitor so that producers 
+            // are never blocked by I2C writes
+            if (bNewFrame) {
+                if (!bCharsFrame) {
+                    startScrolling();
+                }
+                renderFrame();
+            } else {
+                scrollStep();
+            }
+        }
+    }
+    
+    // Render the first window of a new frame
+    private void renderFrame() {
+        try {
+            if (_BusScheduler.acquire(I2CBusScheduler.PRIORITY_DISPLAY)) {
+                try {
+                    _Device.displayScreen(_Windows[0], _Windows[1]);
+                } finally {
+                    _BusScheduler.release();
+                }
+                synchronized (this) {
+                    _FramesRendered++;
+                    if (_FirstFrameTime == 0) {
+                        _FirstFrameTime = System.currentTimeMillis();
+                        System.out.format("Time to first frame: %d ms\n", _FirstFrameTime - _StartTime);
+                    }
+                }
+            } else {
+                // Display queue is full: the frame is dropped
+                Logger.getLogger(LCDRenderer.class.getName()).log(Level.WARNING, "Display bus queue full, frame dropped", "");
+            }
+        } catch (RuntimeException ex) {
+            // Keep the renderer alive: next frame will be tried anyway
+            Logger.getLogger(LCDRenderer.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+    
+    // Reset the scrolling state for the new frame lines, and fill the windows 
+    // with their start
+    private void startScrolling() {
+        _IsScrolling = false;
+        for (int nLine = 0; nLine < RPIUIDevice.LCD_NUM_LINES; nLine++) {
+            if (_Lines[nLine] == null) {
+                _Lines[nLine] = "";
+            }
+            _ScrollOffsets[nLine] = 0;
+            fillWindow(nLine);
+            if (_Lines[nLine].length() > RPIUIDevice.LCD_NUM_COLUMNS) {
+                _IsScrolling = true;
+            }
+        }
+        _NextScrollTime = System.currentTimeMillis() + _ScrollStartDelay;
+    }
+    
+    // Scroll the long lines by one character, and render the changes. The next 
+    // step is scheduled after the step interval, or later if the measured bus 
+    // time of the steps exceeds the maximum bus share.
+    private void scrollStep() {
+        for (int nLine = 0; nLine < RPIUIDevice.LCD_NUM_LINES; nLine++) {
+            int nLength = _Lines[nLine].length();
+            if (nLength > RPIUIDevice.LCD_NUM_COLUMNS) {
+                _ScrollOffsets[nLine] = (_ScrollOffsets[nLine] + 1) % (nLength + SCROLL_GAP);
+                fillWindow(nLine);
+            }
+        }
+        
+        try {
+            if (_BusScheduler.acquire(I2CBusScheduler.PRIORITY_DISPLAY)) {
+                long nStepNanos;
+                try {
+                    long nStartTime = System.nanoTime();
+                    _Device.displayScreen(_Windows[0], _Windows[1]);
+                    nStepNanos = System.nanoTime() - nStartTime;
+                } finally {
+                    _BusScheduler.release();
+                }
+                _AverageStepNanos = (_AverageStepNanos == 0) ? nStepNanos 
+                                        : (_AverageStepNanos * 7 + nStepNanos) / 8;
+                synchronized (this) {
+                    _ScrollSteps++;
+                }
+            } else {
+                // Display queue is full: the step is skipped
+            }
+        } catch (RuntimeException ex) {
+            // Keep the renderer alive: next step will be tried anyway
+            Logger.getLogger(LCDRenderer.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        
+        // A step using nStepNanos of bus time must not occur more often than 
+        // every nStepNanos * 100 / share
+        long nInterval = _ScrollStepInterval;
+        long nMinInterval = _AverageStepNanos * 100 / _ScrollMaxBusShare / 1000000;
+        if (nMinInterval > nInterval) {
+            nInterval = nMinInterval;
+            synchronized (this) {
+                _ThrottledScrollSteps++;
+            }
+        }
+        _NextScrollTime = System.currentTimeMillis() + nInterval;
+    }
+    
+    // Fill the window of a line from its scroll offset: the line is followed 
+    // by SCROLL_GAP blanks, then starts again. Short lines are padded with 
+    // blanks.
+    private void fillWindow(int nLine) {
+        String Line = _Lines[nLine];
+        char[] Window = _Windows[nLine];
+        int nLength = Line.length();
+        int nIndex = _ScrollOffsets[nLine];
+        for (int i = 0; i < RPIUIDevice.LCD_NUM_COLUMNS; i++) {
+            if (nLength > RPIUIDevice.LCD_NUM_COLUMNS) {
+                Window[i] = (nIndex < nLength) ? Line.charAt(nIndex) : ' ';
+                nIndex = (nIndex + 1) % (nLength + SCROLL_GAP);
+            } else {
+                Window[i] = (i < nLength) ? Line.charAt(i) : ' ';
+            }
+        }
+    }
+}
@@ -31,8 +31,8 @@ import com.oracle.json.JsonObject;
 import com.oracle.json.JsonReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Date;
-import java.util.Formatter;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.logging.Level;
@@ -72,22 +72,46 @@ import javax.microedition.midlet.MIDlet;
  * Additionally, the application may also be controlled remotely from another device. 
  * This is the purpose of the companion program "RemoteRPIUIControllerDemo" allowing
  * to control the MIDLet externally from the Emulator device (using input Buttons 
- * of "External Events Generator"). <p>
+ * of "External Events Generator"). The remote side sends button numbers (1 to 6) 
+ * as single bytes. It may also send 'T' to receive the trace of the last I2C bus 
+ * transfers (see I2CBusTrace for its binary format). <p>
  * 
  * Special attention have been taken to handle concurrency and synchronization nicely, 
  * as well as resource cleanup. <p>
  * 
+ * Display updates are never done synchronously: screens are submitted as frames to 
+ * a LCDRenderer, which displays them from its own thread. All accesses to the 
+ * RPIUIDevice go through an I2CBusScheduler, giving priority to button polling over 
+ * display writes, and to display writes over temperature reads. Temperatures are 
+ * only read by a TemperatureSampler: actions display its latest reading, and never 
+ * wait for the bus while holding the MIDlet lock. <p>
+ * 
+ * As the RPIUIDevice is thread safe, button polling does not take the MIDlet lock: 
+ * it is only used for the application lifecycle and the display state. <p>
+ * 
+ * Additional RPIUI boards (on the same or on other I2C buses) may be listed in the 
+ * "AdditionalRPIUIBoards" MIDlet attribute. They are driven by a RPIUIDeviceGroup: 
+ * they mirror the screens of the main board, and their buttons trigger the same 
+ * actions. <p>
+ * 
  * See class source code for description of internal implementation. <p>
  * 
  * @author Gabriel Cuvillier
  */
 public class RPIUIDemoMIDlet extends MIDlet {
 
-    // Flag controlling application initialization
-    private boolean _AppIsInit;
+    // Flag controlling application initialization (read without the MIDlet 
+    // lock by button polling)
+    private volatile boolean _AppIsInit;
 
     // Instance to the RPIUIDevice
-    private RPIUIDevice _UIdev;
+    private volatile RPIUIDevice _UIdev;
+    // Scheduler of the RPIUIDevice I2C bus
+    private volatile I2CBusScheduler _BusScheduler;
+    // Asynchronous renderer for the RPIUIDevice LCD
+    private LCDRenderer _Renderer;
+    // Additional RPIUI boards, mirroring the main one (null if none)
+    private RPIUIDeviceGroup _BoardGroup;
 
     // Connection data to allow remote control of the program
     private ServerSocketConnection _ServerSocket;
@@ -97,15 +121,139 @@ public class RPIUIDemoMIDlet extends MIDlet {
     private static final int DEFAULT_LISTENING_PORT = 19054;
     /** MIDlet attribute name to define the server listening port */
     private static final String PORT_ATTRIBUTE = "ListeningPort";
+    /** Remote request byte dumping the I2C bus trace to the remote connection 
+     * (other bytes are button numbers) */
+    private static final int REMOTE_DUMP_TRACE_REQUEST = 'T';
+    /** MIDlet attribute name to enable I2C combined messages ("true" or "false") */
+    private static final String COMBINED_MESSAGES_ATTRIBUTE = "UseCombinedI2CMessages";
+    /** MIDlet attribute name to skip the RPIUI reinit when it is already configured 
+     * ("true" or "false") */
+    private static final String WARM_ATTACH_ATTRIBUTE = "WarmAttachRPIUI";
+    private static final int DEFAULT_SHUTDOWN_TIMEOUT = 1000;
+    /** MIDlet attribute name to define the maximum duration of the RPIUI shutdown (ms) */
+    private static final String SHUTDOWN_TIMEOUT_ATTRIBUTE = "ShutdownTimeout";
+    
+    // Additional RPIUI boards configuration
+    private static final int MAX_ADDITIONAL_BOARDS = 8;
+    /** MIDlet attribute name to list additional RPIUI boards, as "controller:address" 
+     * items separated by commas (ie. "1:0x4B,0:0x4A") */
+    private static final String ADDITIONAL_BOARDS_ATTRIBUTE = "AdditionalRPIUIBoards";
+    /** MIDlet attribute name to define the button polling interval of additional boards (ms) */
+    private static final String BOARD_POLL_INTERVAL_ATTRIBUTE = "AdditionalRPIUIPollInterval";
+    
+    // Adaptive button polling configuration
+    private static final int DEFAULT_POLL_MIN_INTERVAL = 20;
+    private static final int DEFAULT_POLL_MAX_INTERVAL = 500;
+    private static final int DEFAULT_POLL_FAST_WINDOW = 3000;
+    private static final int DEFAULT_POLL_DECAY_PERCENT = 125;
+    /** MIDlet attribute name to define the button polling interval after activity (ms) */
+    private static final String POLL_MIN_INTERVAL_ATTRIBUTE = "ButtonPollMinInterval";
+    /** MIDlet attribute name to define the maximum button polling interval when idle (ms) */
+    private static final String POLL_MAX_INTERVAL_ATTRIBUTE = "ButtonPollMaxInterval";
+    /** MIDlet attribute name to define the duration of fast polling after activity (ms) */
+    private static final String POLL_FAST_WINDOW_ATTRIBUTE = "ButtonPollFastWindow";
+    /** MIDlet attribute name to define the polling interval growth per idle poll (percent) */
+    private static final String POLL_DECAY_PERCENT_ATTRIBUTE = "ButtonPollDecayPercent";
+    
+    // Button events configuration
+    private static final int DEFAULT_EVENT_QUEUE_SIZE = 16;
+    private static final int DEFAULT_DEBOUNCE_WINDOW = 30;
+    private static final int DEFAULT_LONG_PRESS_DELAY = 1000;
+    private static final int DEFAULT_REPEAT_INTERVAL = 0;
+    private static final int MAX_EVENT_QUEUE_SIZE = 1024;
+    /** MIDlet attribute name to define the button event queue size */
+    private static final String EVENT_QUEUE_SIZE_ATTRIBUTE = "ButtonEventQueueSize";
+    /** MIDlet attribute name to define the button debounce window (ms) */
+    private static final String DEBOUNCE_WINDOW_ATTRIBUTE = "ButtonDebounceWindow";
+    /** MIDlet attribute name to define the button long press delay (ms) */
+    private static final String LONG_PRESS_DELAY_ATTRIBUTE = "ButtonLongPressDelay";
+    /** MIDlet attribute name to define the button auto-repeat interval (ms, 0 to disable) */
+    private static final String REPEAT_INTERVAL_ATTRIBUTE = "ButtonRepeatInterval";
+    
+    // Temperature sampling configuration
+    private static final int DEFAULT_TEMPERATURE_SAMPLING_INTERVAL = 2000;
+    private static final int DEFAULT_TEMPERATURE_IDLE_SAMPLING_INTERVAL = 30000;
+    private static final int DEFAULT_TEMPERATURE_IDLE_TIMEOUT = 60000;
+    private static final int DEFAULT_TEMPERATURE_MAX_AGE = 5000;
+    /** MIDlet attribute name to define the temperature sampling interval (ms) */
+    private static final String TEMPERATURE_SAMPLING_INTERVAL_ATTRIBUTE = "TemperatureSamplingInterval";
+    /** MIDlet attribute name to define the temperature sampling interval when not displayed (ms) */
+    private static final String TEMPERATURE_IDLE_SAMPLING_INTERVAL_ATTRIBUTE = "TemperatureIdleSamplingInterval";
+    /** MIDlet attribute name to define the delay after which temperatures are not considered displayed (ms) */
+    private static final String TEMPERATURE_IDLE_TIMEOUT_ATTRIBUTE = "TemperatureIdleTimeout";
+    /** MIDlet attribute name to define the maximum age of displayed temperatures (ms) */
+    private static final String TEMPERATURE_MAX_AGE_ATTRIBUTE = "TemperatureMaxAge";
+    
+    // I2C fault handling configuration (see I2CFaultHandler for defaults)
+    /** MIDlet attribute name to define the maximum number of retries of a failed I2C transfer */
+    private static final String I2C_MAX_RETRIES_ATTRIBUTE = "I2CMaxRetries";
+    /** MIDlet attribute name to define the number of consecutive I2C failures reopening the device */
+    private static final String I2C_FAILURE_THRESHOLD_ATTRIBUTE = "I2CFailureThreshold";
+    /** MIDlet attribute name to define the delay between two I2C device reopen attempts (ms) */
+    private static final String I2C_REOPEN_DELAY_ATTRIBUTE = "I2CReopenDelay";
+    /** MIDlet attribute name to define the number of entries of the I2C bus trace 
+     * (0 to disable it), dumped on remote request */
+    private static final String I2C_TRACE_CAPACITY_ATTRIBUTE = "I2CTraceCapacity";
+    private static final int MAX_I2C_TRACE_CAPACITY = 65536;
+    
+    // I2C clock configuration
+    /** MIDlet attribute name to define the I2C clock frequency (Hz, ie. 400000 for fast mode) */
+    private static final String I2C_CLOCK_FREQUENCY_ATTRIBUTE = "I2CClockFrequency";
+    /** MIDlet attribute name to list the candidate I2C clock frequencies of the startup 
+     * self-test, separated by commas (ie. "400000,100000"). The fastest passing one is used. */
+    private static final String I2C_CLOCK_CANDIDATES_ATTRIBUTE = "I2CClockCandidates";
+    /** MIDlet attribute name to define the number of pattern transfers per frequency of 
+     * the I2C clock self-test */
+    private static final String I2C_CLOCK_SELF_TEST_TRANSFERS_ATTRIBUTE = "I2CClockSelfTestTransfers";
+    
+    // LCD scrolling configuration
+    /** MIDlet attribute name to define the scrolling step interval of long LCD lines (ms per character) */
+    private static final String MARQUEE_STEP_INTERVAL_ATTRIBUTE = "MarqueeStepInterval";
+    /** MIDlet attribute name to define the delay before scrolling long LCD lines (ms) */
+    private static final String MARQUEE_START_DELAY_ATTRIBUTE = "MarqueeStartDelay";
+    /** MIDlet attribute name to define the maximum share of the I2C bus time used by 
+     * scrolling (percent) */
+    private static final String MARQUEE_MAX_BUS_SHARE_ATTRIBUTE = "MarqueeMaxBusShare";
     
-    // UI Event Timer
+    // ADC configuration
+    /** MIDlet attribute name to define the ADC oversampling shift (2^shift samples per value) */
+    private static final String ADC_SHIFT_ATTRIBUTE = "ADCShift";
+    
+    // UI Event Timer, its pending button poll and the time it is scheduled at 
+    // (guarded by _ButtonPollLock), its button polling rate and button event queue
+    private final Object _ButtonPollLock = new Object();
     private Timer _UIEventTimer;
+    private ButtonPollTask _ButtonPollTask;
+    private long _ButtonPollTime;
+    // Events drained by the button poll tasks (the timer thread is the only 
+    // consumer)
+    private final int[] _EventButtons = new int[DEFAULT_EVENT_QUEUE_SIZE];
+    private final int[] _EventTypes = new int[DEFAULT_EVENT_QUEUE_SIZE];
+    private final long[] _EventTimes = new long[DEFAULT_EVENT_QUEUE_SIZE];
+    private AdaptivePollingRate _PollingRate;
+    private ButtonEventQueue _ButtonEvents;
     // Remote Event Thread
     private Thread _RemoteEventThread;
 
     // Asynchronous HTTP request flag
     private boolean _AsyncHTTPRequestIsActive;
 
+    // Background temperature sampler, and maximum age of displayed temperatures
+    private TemperatureSampler _TemperatureSampler;
+    private int _TemperatureMaxAge;
+    // Raw temperature values read from the device (internal and external 
+    // sensors), and buffers used to format them: one LCD line per sensor, and 
+    // the characters of a temperature
+    private final int[] _TemperatureRawValues = new int[RPIUIDevice.NUM_TEMPERATURE_SENSORS];
+    private final char[][] _TemperatureLines = new char[RPIUIDevice.NUM_TEMPERATURE_SENSORS][RPIUIDevice.LCD_NUM_COLUMNS];
+    private final char[] _TemperatureChars = new char[RPIUIDevice.TEMPERATURE_MAX_CHARS];
+
+    // Shutdown of the RPIUI device and of the additional boards, while it is 
+    // in progress (or timed out), and its maximum duration
+    private ShutdownHandle _PendingShutdown;
+    private ShutdownHandle _PendingGroupShutdown;
+    private int _ShutdownTimeout;
+
     // Internal Display State data
     private int _CurrentDisplayState;
     private int _NextDisplayState;
@@ -120,28 +268,87 @@ public class RPIUIDemoMIDlet extends MIDlet {
     @Override
     public void startApp() {
         System.out.println("I2CExample App Started");
+        long nStartTime = System.currentTimeMillis();
+        
+        // The RPIUI device of a previous run may still be shutting down: wait 
+        // for it (without holding the MIDlet lock) before opening it again
+        ShutdownHandle PendingShutdown;
+        ShutdownHandle PendingGroupShutdown;
+        synchronized (this) {
+            PendingShutdown = _PendingShutdown;
+            PendingGroupShutdown = _PendingGroupShutdown;
+        }
+        awaitShutdown("RPIUI", PendingShutdown);
+        awaitShutdown("Additional RPIUI boards", PendingGroupShutdown);
 
         synchronized (this) {
             if (!_AppIsInit) {
+                _PendingShutdown = null;
+                _PendingGroupShutdown = null;
+                _ShutdownTimeout = getIntAppProperty(SHUTDOWN_TIMEOUT_ATTRIBUTE, DEFAULT_SHUTDOWN_TIMEOUT, 0, Integer.MAX_VALUE);
+                
                 // Initialize RPIUI device              
-                _UIdev = new RPIUIDevice();               
+                boolean bUseCombinedMessages = "true".equals(getAppProperty(COMBINED_MESSAGES_ATTRIBUTE));
+                boolean bWarmAttach = "true".equals(getAppProperty(WARM_ATTACH_ATTRIBUTE));
+                int nClockFrequency = getIntAppProperty(I2C_CLOCK_FREQUENCY_ATTRIBUTE, RPIUIDevice.DEFAULT_CLOCK_FREQUENCY, 1, Integer.MAX_VALUE);
+                _UIdev = new RPIUIDevice(RPIUIDevice.DEFAULT_I2C_CONTROLLER, RPIUIDevice.DEFAULT_I2C_ADDRESS, 
+                                         nClockFrequency, bUseCombinedMessages, bWarmAttach);
+                System.out.format("RPIUI ready in %d ms (%s)\n", System.currentTimeMillis() - nStartTime,
+                                  _UIdev.isWarmAttached() ? "warm attach" : "reinit");
+                I2CFaultHandler FaultHandler = _UIdev.getFaultHandler();
+                FaultHandler.setMaxRetries(getIntAppProperty(I2C_MAX_RETRIES_ATTRIBUTE, I2CFaultHandler.DEFAULT_MAX_RETRIES, 0, Integer.MAX_VALUE));
+                FaultHandler.setFailureThreshold(getIntAppProperty(I2C_FAILURE_THRESHOLD_ATTRIBUTE, I2CFaultHandler.DEFAULT_FAILURE_THRESHOLD, 1, Integer.MAX_VALUE));
+                FaultHandler.setReopenDelay(getIntAppProperty(I2C_REOPEN_DELAY_ATTRIBUTE, I2CFaultHandler.DEFAULT_REOPEN_DELAY, 0, Integer.MAX_VALUE));
+                _UIdev.getBusTrace().setCapacity(getIntAppProperty(I2C_TRACE_CAPACITY_ATTRIBUTE, I2CBusTrace.DEFAULT_CAPACITY, 0, MAX_I2C_TRACE_CAPACITY));
+                selectClockFrequency(_UIdev);
+                
+                // Apply the oversampling requested (if not the default one)
+                int nADCShift = getIntAppProperty(ADC_SHIFT_ATTRIBUTE, ADCConfiguration.DEFAULT_SHIFT, 0, ADCConfiguration.MAX_SHIFT);
+                if (nADCShift != ADCConfiguration.DEFAULT_SHIFT) {
+                    boolean bVerified = _UIdev.configureADC(ADCConfiguration.createTemperatureConfiguration(nADCShift));
+                    System.out.println("ADC shift set to " + nADCShift + (bVerified ? "" : " (not accepted by RPIUI)"));
+                }
+                
+                _BusScheduler = new I2CBusScheduler();
+                _Renderer = new LCDRenderer(_UIdev, _BusScheduler);
+                _Renderer.setStartTime(nStartTime);
+                _Renderer.setScrolling(
+                        getIntAppProperty(MARQUEE_STEP_INTERVAL_ATTRIBUTE, LCDRenderer.DEFAULT_SCROLL_STEP_INTERVAL, 1, Integer.MAX_VALUE),
+                        getIntAppProperty(MARQUEE_START_DELAY_ATTRIBUTE, LCDRenderer.DEFAULT_SCROLL_START_DELAY, 0, Integer.MAX_VALUE),
+                        getIntAppProperty(MARQUEE_MAX_BUS_SHARE_ATTRIBUTE, LCDRenderer.DEFAULT_SCROLL_MAX_BUS_SHARE, 1, 100));
+                _Renderer.start();
+                _BoardGroup = createBoardGroup(nClockFrequency, bUseCombinedMessages, bWarmAttach);
+                // When idle, the sampler backs off: temperatures displayed then 
+                // may be older than their maximum age, and the sampler reads 
+                // new ones at once
+                _TemperatureMaxAge = getIntAppProperty(TEMPERATURE_MAX_AGE_ATTRIBUTE, DEFAULT_TEMPERATURE_MAX_AGE, 0, Integer.MAX_VALUE);
+                _TemperatureSampler = new TemperatureSampler(_UIdev, _BusScheduler,
+                        getIntAppProperty(TEMPERATURE_SAMPLING_INTERVAL_ATTRIBUTE, DEFAULT_TEMPERATURE_SAMPLING_INTERVAL, 1, Integer.MAX_VALUE),
+                        getIntAppProperty(TEMPERATURE_IDLE_SAMPLING_INTERVAL_ATTRIBUTE, DEFAULT_TEMPERATURE_IDLE_SAMPLING_INTERVAL, 1, Integer.MAX_VALUE),
+                        getIntAppProperty(TEMPERATURE_IDLE_TIMEOUT_ATTRIBUTE, DEFAULT_TEMPERATURE_IDLE_TIMEOUT, 0, Integer.MAX_VALUE));
+                _TemperatureSampler.start();
 
                 // UI Events timer (periodically checks for RPIUI pressed buttons)
-                _UIEventTimer = new Timer();
-                _UIEventTimer.scheduleAtFixedRate(
-                        new TimerTask() {
-                            @Override
-                            public void run() {
-                                int pressedButton = getPressedButton();
-
-                                if (pressedButton > 0) {
-                                    System.out.format("Button %d pressed on RPIUI\n", pressedButton);
-                                    doAction(pressedButton);
-                                } else {
-                                    // Nothing pressed
-                                }
-                            }
-                        }, 0, 100);
+                // Each poll schedules the next one after the interval of the 
+                // adaptive polling rate, so that the timer does not wake up 
+                // more often than the buttons are polled
+                final AdaptivePollingRate PollingRate = new AdaptivePollingRate(
+                        getIntAppProperty(POLL_MIN_INTERVAL_ATTRIBUTE, DEFAULT_POLL_MIN_INTERVAL, 1, Integer.MAX_VALUE),
+                        getIntAppProperty(POLL_MAX_INTERVAL_ATTRIBUTE, DEFAULT_POLL_MAX_INTERVAL, 1, Integer.MAX_VALUE),
+                        getIntAppProperty(POLL_FAST_WINDOW_ATTRIBUTE, DEFAULT_POLL_FAST_WINDOW, 0, Integer.MAX_VALUE),
+                        getIntAppProperty(POLL_DECAY_PERCENT_ATTRIBUTE, DEFAULT_POLL_DECAY_PERCENT, 100, Integer.MAX_VALUE));
+                _PollingRate = PollingRate;
+                // Button states are turned into timestamped events
+                final ButtonEventQueue ButtonEvents = new ButtonEventQueue(
+                        getIntAppProperty(EVENT_QUEUE_SIZE_ATTRIBUTE, DEFAULT_EVENT_QUEUE_SIZE, 1, MAX_EVENT_QUEUE_SIZE),
+                        getIntAppProperty(DEBOUNCE_WINDOW_ATTRIBUTE, DEFAULT_DEBOUNCE_WINDOW, 0, Integer.MAX_VALUE),
+                        getIntAppProperty(LONG_PRESS_DELAY_ATTRIBUTE, DEFAULT_LONG_PRESS_DELAY, 1, Integer.MAX_VALUE),
+                        getIntAppProperty(REPEAT_INTERVAL_ATTRIBUTE, DEFAULT_REPEAT_INTERVAL, 0, Integer.MAX_VALUE));
+                _ButtonEvents = ButtonEvents;
+                synchronized (_ButtonPollLock) {
+                    _UIEventTimer = new Timer();
+                    scheduleButtonPoll(PollingRate, ButtonEvents, 0);
+                }
 
                 try {
                     _ListeningPort = Integer.parseInt(getAppProperty(PORT_ATTRIBUTE));
@@ -188,63 +395,332 @@ public class RPIUIDemoMIDlet extends MIDlet {
 
         System.out.println("IC2Example Destroyed");
 
+        // Stop accepting new work at once, and wait for the RPIUI shutdown 
+        // outside of the MIDlet lock, so that other threads are not blocked
+        ShutdownHandle Shutdown;
+        ShutdownHandle GroupShutdown;
         synchronized (this) {
-            if (_AppIsInit == true) {
+            Shutdown = beginShutdown();
+            GroupShutdown = _PendingGroupShutdown;
+        }
+        awaitShutdown("RPIUI", Shutdown);
+        awaitShutdown("Additional RPIUI boards", GroupShutdown);
+    }
 
-                _AppIsInit = false;
+    // Begin the shutdown of the application: stop accepting new work, stop all 
+    // components, and end the RPIUI device asynchronously. Return the device 
+    // shutdown handle (or null if the application is not init).
+    // Must be called with the MIDlet lock held
+    private ShutdownHandle beginShutdown() {
+        ShutdownHandle Shutdown = null;
 
-                if (_ServerSocket != null) {
-                    // Close server socket connection
-                    try {
-                        _ServerSocket.close();
-                        _ServerSocket = null;
-                    } catch (IOException ex) {
-                        Logger.getLogger(RPIUIDemoMIDlet.class.getName()).log(Level.SEVERE, null, ex);
-                    }
+        if (_AppIsInit == true) {
 
-                    try {
-                        if (_RemoteStream != null) {
-                            _RemoteStream.close();
-                            _RemoteStream = null;
-                        }
-                    } catch (IOException ex) {
-                        Logger.getLogger(RPIUIDemoMIDlet.class.getName()).log(Level.SEVERE, null, ex);
+            _AppIsInit = false;
+
+            if (_ServerSocket != null) {
+                // Close server socket connection
+                try {
+                    _ServerSocket.close();
+                    _ServerSocket = null;
+                } catch (IOException ex) {
+                    Logger.getLogger(RPIUIDemoMIDlet.class.getName()).log(Level.SEVERE, null, ex);
+                }
+
+                try {
+                    if (_RemoteStream != null) {
+                        _RemoteStream.close();
+                        _RemoteStream = null;
                     }
+                } catch (IOException ex) {
+                    Logger.getLogger(RPIUIDemoMIDlet.class.getName()).log(Level.SEVERE, null, ex);
+                }
 
-                    try {
-                        if (_RemoteConnection != null) {
-                            _RemoteConnection.close();
-                            _RemoteConnection = null;
-                        }
-                    } catch (IOException ex) {
-                        Logger.getLogger(RPIUIDemoMIDlet.class.getName()).log(Level.SEVERE, null, ex);
+                try {
+                    if (_RemoteConnection != null) {
+                        _RemoteConnection.close();
+                        _RemoteConnection = null;
                     }
-                    
-                    _RemoteEventThread = null;
+                } catch (IOException ex) {
+                    Logger.getLogger(RPIUIDemoMIDlet.class.getName()).log(Level.SEVERE, null, ex);
                 }
+                
+                _RemoteEventThread = null;
+            }
 
-                // Cancel Timer 
-                // Note due to the way timer work, it is possible a last task will be run once
+            // Cancel Timer 
+            // Note due to the way timer work, it is possible a last task will be run once
+            synchronized (_ButtonPollLock) {
                 if (_UIEventTimer != null) {
                     _UIEventTimer.cancel();
                     _UIEventTimer = null;
+                    _ButtonPollTask = null;
                 }
+            }
+            
+            if (_PollingRate != null) {
+                System.out.format("Button polling: %d polls, bus utilisation %d%%, average press latency %d ms\n",
+                        _PollingRate.getPollCount(), _PollingRate.getBusUtilisation(),
+                        _PollingRate.getAveragePressLatency());
+                _PollingRate = null;
+            }
+            
+            if (_ButtonEvents != null) {
+                System.out.format("Button events: %d dropped\n", _ButtonEvents.getOverflowCount());
+                _ButtonEvents = null;
+            }
 
-                // This will cancel Async HTTP Task
-                _AsyncHTTPRequestIsActive = false;
+            // This will cancel Async HTTP Task
+            _AsyncHTTPRequestIsActive = false;
+
+            // Stop the temperature sampler
+            if (_TemperatureSampler != null) {
+                _TemperatureSampler.stop();
+                System.out.format("Temperature samples: %d\n", _TemperatureSampler.getSampleCount());
+                _TemperatureSampler = null;
+            }
+
+            // Stop and end the additional boards (asynchronously, as their 
+            // workers may be waiting for the MIDlet lock)
+            if (_BoardGroup != null) {
+                _BoardGroup.report(System.out);
+                _PendingGroupShutdown = _BoardGroup.endAsync(_ShutdownTimeout);
+                _BoardGroup = null;
+            }
+
+            // Stop the renderer, so that nothing is displayed anymore
+            if (_Renderer != null) {
+                _Renderer.stop();
+                System.out.format("LCD frames: %d submitted, %d rendered, %d coalesced\n",
+                        _Renderer.getFramesSubmitted(), _Renderer.getFramesRendered(),
+                        _Renderer.getFramesCoalesced());
+                System.out.format("LCD scrolling: %d steps, %d throttled\n",
+                        _Renderer.getScrollSteps(), _Renderer.getThrottledScrollSteps());
+                _Renderer = null;
+            }
+            
+            if (_BusScheduler != null) {
+                System.out.format("I2C bus wait (avg/max us): input %d/%d, display %d/%d, ADC %d/%d\n",
+                        _BusScheduler.getAverageWaitTime(I2CBusScheduler.PRIORITY_INPUT),
+                        _BusScheduler.getMaxWaitTime(I2CBusScheduler.PRIORITY_INPUT),
+                        _BusScheduler.getAverageWaitTime(I2CBusScheduler.PRIORITY_DISPLAY),
+                        _BusScheduler.getMaxWaitTime(I2CBusScheduler.PRIORITY_DISPLAY),
+                        _BusScheduler.getAverageWaitTime(I2CBusScheduler.PRIORITY_ADC),
+                        _BusScheduler.getMaxWaitTime(I2CBusScheduler.PRIORITY_ADC));
+                _BusScheduler = null;
+            }
+
+            // finally, close the UI (asynchronously)
+            if (_UIdev != null) {
+                I2CFaultHandler FaultHandler = _UIdev.getFaultHandler();
+                System.out.format("I2C faults: %d errors, %d retries, %d failures, %d rejected, "
+                        + "circuit opened %d times, %d reopens, recovery (last/max) %d/%d ms\n",
+                        FaultHandler.getErrorCount(), FaultHandler.getRetryCount(),
+                        FaultHandler.getFailureCount(), FaultHandler.getRejectedCount(),
+                        FaultHandler.getCircuitOpenCount(), FaultHandler.getReopenCount(),
+                        FaultHandler.getLastRecoveryTime(), FaultHandler.getMaxRecoveryTime());
+                GlyphCache Glyphs = _UIdev.getGlyphCache();
+                System.out.format("LCD glyphs: %d hits, %d misses, %d evictions, %d fallbacks\n",
+                        Glyphs.getHitCount(), Glyphs.getMissCount(), Glyphs.getEvictionCount(),
+                        Glyphs.getFallbackCount());
+                _UIdev.getBusStatistics().snapshot().report(System.out);
+
+                Shutdown = _UIdev.endAsync(_ShutdownTimeout);
+                _PendingShutdown = Shutdown;
+                _UIdev = null;
+            }
+
+            _CurrentDisplayState = 0;
+            _NextDisplayState = 0;
+        } else {
+            //Application is not init
+        }
 
-                // finally, close the UI
-                if (_UIdev != null) {
-                    _UIdev.end();
-                    _UIdev = null;
+        return Shutdown;
+    }
+
+    // Wait for a RPIUI device shutdown (if any), at most the shutdown timeout, 
+    // and report its duration. Must NOT be called with the MIDlet lock held
+    private void awaitShutdown(String Name, ShutdownHandle Shutdown) {
+        if (Shutdown == null) {
+            return;
+        }
+        if (Shutdown.await(_ShutdownTimeout)) {
+            System.out.format("%s shutdown: %d ms\n", Name, Shutdown.getDuration());
+        } else {
+            Logger.getLogger(RPIUIDemoMIDlet.class.getName()).log(Level.WARNING, 
+                    Name + " shutdown not completed after " + Shutdown.getDuration() + " ms");
+        }
+    }
+
+    // Submit a frame to the LCD renderer, and mirror it on the additional boards
+    // Must be called with the MIDlet lock held
+    private void submitFrame(String Line1, String Line2) {
+        _Renderer.submitFrame(Line1, Line2);
+        if (_BoardGroup != null) {
+            _BoardGroup.submitFrameToAll(Line1, Line2);
+        }
+    }
+
+    // Submit a frame of two char arrays of LCD_NUM_COLUMNS characters (see 
+    // submitFrame(String, String)). This does not allocate any memory.
+    // Must be called with the MIDlet lock held
+    private void submitFrame(char[] Line1, char[] Line2) {
+        _Renderer.submitFrame(Line1, Line2);
+        if (_BoardGroup != null) {
+            _BoardGroup.submitFrameToAll(Line1, Line2);
+        }
+    }
+
+    // Create and start the group of the additional RPIUI boards listed in the 
+    // MIDlet attribute, or return null if there is none. Boards failing to 
+    // initialize are skipped.
+    private RPIUIDeviceGroup createBoardGroup(int nClockFrequency, boolean bUseCombinedMessages, 
+                                              boolean bWarmAttach) {
+        String Boards = getAppProperty(ADDITIONAL_BOARDS_ATTRIBUTE);
+        if (Boards == null || Boards.trim().length() == 0) {
+            return null;
+        }
+
+        RPIUIDeviceGroup BoardGroup = new RPIUIDeviceGroup(MAX_ADDITIONAL_BOARDS,
+                getIntAppProperty(BOARD_POLL_INTERVAL_ATTRIBUTE, RPIUIDeviceGroup.DEFAULT_POLL_INTERVAL, 1, Integer.MAX_VALUE));
+        int nStart = 0;
+        while (nStart < Boards.length() && BoardGroup.getNumBoards() < MAX_ADDITIONAL_BOARDS) {
+            int nEnd = Boards.indexOf(',', nStart);
+            if (nEnd < 0) {
+                nEnd = Boards.length();
+            }
+            String Board = Boards.substring(nStart, nEnd).trim();
+            nStart = nEnd + 1;
+
+            int nSeparator = Board.indexOf(':');
+            try {
+                int nController = parseInt(Board.substring(0, nSeparator));
+                int nAddress = parseInt(Board.substring(nSeparator + 1));
+                RPIUIDevice Device = new RPIUIDevice(nController, nAddress, nClockFrequency, 
+                                                     bUseCombinedMessages, bWarmAttach);
+                // Each board has its own wiring: select its clock separately
+                selectClockFrequency(Device);
+                BoardGroup.add(Device);
+                System.out.format("Additional RPIUI board %s ready\n", Board);
+            } catch (NumberFormatException | IndexOutOfBoundsException ex) {
+                Logger.getLogger(RPIUIDemoMIDlet.class.getName()).log(Level.WARNING, 
+                        "Invalid additional RPIUI board: " + Board);
+            } catch (RuntimeException ex) {
+                // IO error while initializing the board: continue without it
+                Logger.getLogger(RPIUIDemoMIDlet.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        if (BoardGroup.getNumBoards() == 0) {
+            return null;
+        }
+
+        BoardGroup.setButtonListener(new RPIUIDeviceGroup.ButtonListener() {
+            @Override
+            public void onButtonsPushed(int nBoard, int nPushedButtons) {
+                // Same actions as the buttons of the main board, for each 
+                // pushed button (lower button numbers first)
+                for (int nButtons = nPushedButtons; nButtons != 0; nButtons &= nButtons - 1) {
+                    int nButton = Integer.numberOfTrailingZeros(nButtons) + 1;
+                    System.out.format("Button %d pressed on additional RPIUI board %d\n", nButton, nBoard);
+                    doAction(nButton);
                 }
+            }
+        });
+        BoardGroup.start();
+        return BoardGroup;
+    }
 
-                _CurrentDisplayState = 0;
-                _NextDisplayState = 0;
+    // Select the fastest I2C clock frequency supported by a RPIUI board, among 
+    // the candidates of the MIDlet attribute (if defined)
+    private void selectClockFrequency(RPIUIDevice Device) {
+        String Candidates = getAppProperty(I2C_CLOCK_CANDIDATES_ATTRIBUTE);
+        if (Candidates == null || Candidates.trim().length() == 0) {
+            return;
+        }
+
+        // Count the candidates, then parse them
+        int nNumCandidates = 1;
+        for (int nIndex = Candidates.indexOf(','); nIndex >= 0; nIndex = Candidates.indexOf(',', nIndex + 1)) {
+            nNumCandidates++;
+        }
+        int[] Frequencies = new int[nNumCandidates];
+        int nStart = 0;
+        try {
+            for (int i = 0; i < nNumCandidates; i++) {
+                int nEnd = Candidates.indexOf(',', nStart);
+                if (nEnd < 0) {
+                    nEnd = Candidates.length();
+                }
+                Frequencies[i] = parseInt(Candidates.substring(nStart, nEnd));
+                nStart = nEnd + 1;
+            }
+        } catch (NumberFormatException nfe) {
+            Logger.getLogger(RPIUIDemoMIDlet.class.getName()).log(Level.WARNING, 
+                    "Invalid I2C clock candidates: " + Candidates);
+            return;
+        }
+
+        new I2CClockSelfTest(Device, getIntAppProperty(I2C_CLOCK_SELF_TEST_TRANSFERS_ATTRIBUTE, 
+                                                       I2CClockSelfTest.DEFAULT_NUM_TRANSFERS, 1, Integer.MAX_VALUE))
+                .run(Frequencies, System.out);
+    }
+
+    // Parse a decimal or hexadecimal ("0x" prefix) integer
+    private static int parseInt(String Value) {
+        Value = Value.trim();
+        if (Value.startsWith("0x") || Value.startsWith("0X")) {
+            return Integer.parseInt(Value.substring(2), 16);
+        } else {
+            return Integer.parseInt(Value);
+        }
+    }
+
+    // Format the LCD line of a temperature sensor into its preallocated buffer, 
+    // as Prefix + temperature + degree sign + "C" (or "?" instead of "C" if the 
+    // temperature is stale, or "n/a" if not available), right aligned and padded 
+    // with blanks. There is no floating point computation, and no memory 
+    // allocation. The degree sign is displayed as a LCD glyph (see 
+    // RPIUIDevice.mapGlyph())
+    private char[] formatTemperatureLine(String Prefix, int nChannel, boolean bAvailable, boolean bStale) {
+        char[] Line = _TemperatureLines[nChannel];
+        for (int i = 0; i < RPIUIDevice.LCD_NUM_COLUMNS; i++) {
+            Line[i] = ' ';
+        }
+        Prefix.getChars(0, Prefix.length(), Line, 0);
+        if (bAvailable) {
+            int nLength = RPIUIDevice.formatTemperature(_TemperatureRawValues[nChannel], _TemperatureChars, 0);
+            System.arraycopy(_TemperatureChars, 0, Line, RPIUIDevice.LCD_NUM_COLUMNS - 2 - nLength, nLength);
+            Line[RPIUIDevice.LCD_NUM_COLUMNS - 2] = '\u00B0';
+            Line[RPIUIDevice.LCD_NUM_COLUMNS - 1] = bStale ? '?' : 'C';
+        } else {
+            "n/a".getChars(0, 3, Line, RPIUIDevice.LCD_NUM_COLUMNS - 3);
+        }
+        return Line;
+    }
+
+    // Get an integer MIDlet attribute, or its default value if not defined. A value 
+    // which is invalid, or out of the [nMinValue, nMaxValue] range, is ignored (with 
+    // a warning): the default value is used instead
+    private int getIntAppProperty(String Name, int nDefaultValue, int nMinValue, int nMaxValue) {
+        String Value = getAppProperty(Name);
+        if (Value == null) {
+            return nDefaultValue;
+        }
+        try {
+            int nValue = Integer.parseInt(Value.trim());
+            if (nValue >= nMinValue && nValue <= nMaxValue) {
+                return nValue;
             } else {
-                //Application is not init
+                Logger.getLogger(RPIUIDemoMIDlet.class.getName()).log(Level.WARNING, 
+                        "Out of range " + Name + " attribute: " + Value + " (" + nMinValue + " to " 
+                        + nMaxValue + "), using default value " + nDefaultValue);
             }
+        } catch (NumberFormatException nfe) {
+            Logger.getLogger(RPIUIDemoMIDlet.class.getName()).log(Level.WARNING, 
+                    "Invalid " + Name + " attribute: " + Value + ", using default value " + nDefaultValue);
         }
+        return nDefaultValue;
     }
 
     // This method is Thread Safe
@@ -257,12 +733,139 @@ public class RPIUIDemoMIDlet extends MIDlet {
         }
     }
 
+    // Write the I2C bus trace to a stream (see I2CBusTrace for the format)
     // This method is Thread Safe
-    public synchronized int getPressedButton() {
-        if (_AppIsInit != false) {
-            return _UIdev.getPushedButton();
+    // The MIDlet lock is not taken: the trace is only locked while encoded
+    public void dumpBusTrace(OutputStream Out) throws IOException {
+        RPIUIDevice UIdev = _UIdev;
+        if (_AppIsInit != false && UIdev != null) {
+            UIdev.getBusTrace().dump(Out);
+        } else {
+            // Dump an empty trace, so that the remote side is not left waiting
+            System.out.println("dumpBusTrace: application have been stopped. Empty trace dumped.");
+            new I2CBusTrace(0).dump(Out);
+        }
+    }
+
+    // Schedule the next button poll in nDelay ms, unless a poll is already 
+    // scheduled earlier: a later pending poll is cancelled. 
+    // Must be called with _ButtonPollLock held
+    private void scheduleButtonPoll(AdaptivePollingRate PollingRate, ButtonEventQueue ButtonEvents, 
+                                    long nDelay) {
+        long nPollTime = System.currentTimeMillis() + nDelay;
+        if (_UIEventTimer != null && (_ButtonPollTask == null || nPollTime < _ButtonPollTime)) {
+            if (_ButtonPollTask != null) {
+                _ButtonPollTask.cancel();
+            }
+            _ButtonPollTask = new ButtonPollTask(PollingRate, ButtonEvents);
+            _ButtonPollTime = nPollTime;
+            _UIEventTimer.schedule(_ButtonPollTask, nDelay);
+        } else {
+            // Timer cancelled, or a poll is already scheduled earlier
+        }
+    }
+
+    /**
+     * Button poll task: polls the buttons if the adaptive polling rate says so, 
+     * does the actions of their events, then schedules the next poll. 
+     * Only one task is pending at a time (see scheduleButtonPoll()). <p>
+     */
+    private class ButtonPollTask extends TimerTask {
+        
+        // Polling rate and event queue of the application
+        private final AdaptivePollingRate _Rate;
+        private final ButtonEventQueue _Events;
+        
+        ButtonPollTask(AdaptivePollingRate PollingRate, ButtonEventQueue ButtonEvents) {
+            _Rate = PollingRate;
+            _Events = ButtonEvents;
+        }
+        
+        @Override
+        public void run() {
+            // An uncaught exception would cancel the timer, and 
+            // the buttons would not be polled anymore
+            try {
+                poll();
+            } catch (RuntimeException ex) {
+                Logger.getLogger(RPIUIDemoMIDlet.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            
+            // Schedule the next poll, unless this task was replaced meanwhile
+            synchronized (_ButtonPollLock) {
+                if (_ButtonPollTask == this) {
+                    _ButtonPollTask = null;
+                    scheduleButtonPoll(_Rate, _Events, _Rate.getDelayToNextPoll());
+                } else {
+                    // Replaced by an earlier poll, or timer cancelled
+                }
+            }
+        }
+        
+        private void poll() {
+            if (!_Rate.shouldPoll()) {
+                return;
+            }
+            
+            int nStates;
+            try {
+                nStates = getButtonStates();
+            } catch (RuntimeException ex) {
+                // I2C fault (the transfer was already retried): 
+                // skip this poll, states are unknown
+                return;
+            }
+            _Events.onPoll(nStates, System.currentTimeMillis());
+            
+            int nPresses = 0;
+            int nEvents;
+            do {
+                nEvents = _Events.drain(_EventButtons, _EventTypes, _EventTimes);
+                for (int i = 0; i < nEvents; i++) {
+                    int nButton = _EventButtons[i];
+                    if (_EventTypes[i] == ButtonEventQueue.EVENT_PRESS) {
+                        System.out.format("Button %d pressed on RPIUI\n", nButton);
+                        nPresses++;
+                        doAction(nButton);
+                        _Rate.onActionDone(System.currentTimeMillis() - _EventTimes[i]);
+                    } else if (_EventTypes[i] == ButtonEventQueue.EVENT_REPEAT) {
+                        doAction(nButton);
+                    } else if (_EventTypes[i] == ButtonEventQueue.EVENT_LONG_PRESS) {
+                        System.out.format("Button %d long pressed on RPIUI\n", nButton);
+                    } else {
+                        // Release: nothing to do
+                    }
+                }
+            } while (nEvents == _EventButtons.length);
+            
+            _Rate.onPollResult(nPresses);
+            if (_Events.isAnyButtonPressed()) {
+                // Keep polling fast to detect the release
+                _Rate.onActivity();
+            }
+        }
+    }
+
+    // Get the mask of button states (bit n - 1 set for button n)
+    // This method is Thread Safe
+    // The MIDlet lock is not taken: the RPIUIDevice is thread safe, so that 
+    // polling is never blocked by other actions
+    public int getButtonStates() {
+        RPIUIDevice UIdev = _UIdev;
+        I2CBusScheduler BusScheduler = _BusScheduler;
+        if (_AppIsInit != false && UIdev != null && BusScheduler != null) {
+            if (BusScheduler.acquire(I2CBusScheduler.PRIORITY_INPUT)) {
+                try {
+                    return UIdev.getButtonStates();
+                } finally {
+                    BusScheduler.release();
+                }
+            } else {
+                // Input bus queue is full: consider nothing is pressed
+                return 0;
+            }
         } else {
-            System.out.println("getPressedButton: application have been stopped. Method skipped.");
+            System.out.println("getButtonStates: application have been stopped. Method skipped.");
             return 0;
         }
     }
@@ -272,17 +875,23 @@ public class RPIUIDemoMIDlet extends MIDlet {
         if (_AppIsInit != false) {
             System.out.format("Doing action for button %d\n", nButtonId);
             _CurrentDisplayState = _NextDisplayState;
+            
+            // Any action means the user is active: poll buttons at fast rate, 
+            // without waiting for a poll scheduled at the former rate
+            _PollingRate.onActivity();
+            synchronized (_ButtonPollLock) {
+                scheduleButtonPoll(_PollingRate, _ButtonEvents, _PollingRate.getDelayToNextPoll());
+            }
 
             if (nButtonId == 1) {
-                _UIdev.clearDisplay();
-
+                // Each screen replaces the whole display content, so there is 
+                // no need to clear the LCD first
                 if (_CurrentDisplayState == 0) {
                     System.out.println("Display Hello World on LCD");
-                    _UIdev.displayText(1, "  Hello World!");
+                    submitFrame("  Hello World!", "");
                     _NextDisplayState = 1;
                 } else if (_CurrentDisplayState == 1) {
                     System.out.println("Display IP on LCD");
-                    _UIdev.displayText(1, "IP: ");
                     AccessPoint[] apList = AccessPoint.getAccessPoints(true);
                     String IPstr = "<not connected>";
                     if (apList != null && apList.length >= 2) {
@@ -296,34 +905,42 @@ public class RPIUIDemoMIDlet extends MIDlet {
                         // There is no valid connections
                     }
 
-                    _UIdev.displayText(2, IPstr);
+                    submitFrame("IP: ", IPstr);
 
                     _NextDisplayState = 2;
                 } else if (_CurrentDisplayState == 2) {
                     System.out.println("Display Date on LCD");
                     Date CurrentDate = new Date();
-                    _UIdev.displayText(1, CurrentDate.toString());
+                    submitFrame(CurrentDate.toString(), "");
 
                     _NextDisplayState = 0;
                 } else {
                     // Unknown display state
+                    submitFrame("", "");
                 }
 
                 // In all case, prevent the async HTTP Request started by Button 3 to proceed
                 _AsyncHTTPRequestIsActive = false;
             } else if (nButtonId == 2) {
                 System.out.println("Display Temperatures on LCD");
-                double dInt = _UIdev.getTemperature(0);
-                double dExt = _UIdev.getTemperature(1);
-
-                Formatter InternalTempFormat = new Formatter();
-                InternalTempFormat.format("%.1f", dInt);
-                Formatter ExternalTempFormat = new Formatter();
-                ExternalTempFormat.format("%.1f", dExt);
+                // Use the latest sampled temperatures. The device is not read 
+                // here, as the MIDlet lock would be held while waiting for the 
+                // bus: a reading older than the maximum age is displayed as 
+                // stale instead, and "n/a" is displayed until the first sample
+                boolean bAvailable = true;
+                boolean bStale = false;
+                if (_TemperatureSampler.getRawValues(_TemperatureRawValues, _TemperatureMaxAge) 
+                        != RPIUIDevice.NUM_TEMPERATURE_SENSORS) {
+                    bStale = true;
+                    bAvailable = _TemperatureSampler.getRawValues(_TemperatureRawValues, Long.MAX_VALUE) 
+                                    == RPIUIDevice.NUM_TEMPERATURE_SENSORS;
+                }
 
-                _UIdev.clearDisplay();
-                _UIdev.displayText(1, "Int Temp: " + InternalTempFormat.out().toString() + " C");
-                _UIdev.displayText(2, "Ext Temp: " + ExternalTempFormat.out().toString() + " C");
+                // Temperatures are formatted with the device precomputed tables
+                // The prefixes leave room for the longest temperature 
+                // (TEMPERATURE_MAX_CHARS, plus the unit) on the LCD line
+                submitFrame(formatTemperatureLine("Int Temp:", 0, bAvailable, bStale),
+                            formatTemperatureLine("Ext Temp:", 1, bAvailable, bStale));
 
                 _NextDisplayState = 0;
 
@@ -335,7 +952,7 @@ public class RPIUIDemoMIDlet extends MIDlet {
                     System.out.println("HTTP Request still pending");
                 } else {
                     System.out.println("Start HTTP request");
-                    _UIdev.clearDisplay();
+                    submitFrame("", "");
 
                     HttpClientBuilder clientBuilder = HttpClientBuilder.getInstance();
                     ConnectionOption<Integer> TimeoutOption = new ConnectionOption<>("Timeout", 2000);
@@ -355,15 +972,13 @@ public class RPIUIDemoMIDlet extends MIDlet {
                                         if (_AsyncHTTPRequestIsActive) {
                                             System.out.println("HTTP Request done. Display OK on LCD");
                                             // handle the response
-                                            _UIdev.displayText(1, "BTC/EUR: ");
-
                                             try (JsonReader resultBodyReader = Json.createReader(response.getBodyStream())) {
                                                 JsonObject resultObject;
                                                 resultObject = resultBodyReader.readObject();
                                                 JsonObject currencyObject = resultObject.getJsonObject("EUR");
                                                 String s = currencyObject.getString("24h");
 
-                                                _UIdev.displayText(2, s);
+                                                submitFrame("BTC/EUR: ", s);
                                             }
 
                                             _AsyncHTTPRequestIsActive = false;
@@ -379,7 +994,7 @@ public class RPIUIDemoMIDlet extends MIDlet {
                                         if (_AsyncHTTPRequestIsActive) {
                                             System.out.println("HTTP Request done. Display Error on LCD");
                                             // handle the exception
-                                            _UIdev.displayText(1, "HTTP Request Error");
+                                            submitFrame("HTTP Request Error", "");
 
                                             _AsyncHTTPRequestIsActive = false;
                                         } else {
@@ -393,10 +1008,15 @@ public class RPIUIDemoMIDlet extends MIDlet {
                 }
             } else if (nButtonId == 6) {
                 System.out.println("Restarting application");
-                destroyApp(true);
+                // The MIDlet lock is held: only begin the shutdown here, and 
+                // wait for it in the restart thread
+                final ShutdownHandle Shutdown = beginShutdown();
+                final ShutdownHandle GroupShutdown = _PendingGroupShutdown;
                 Thread RestartThread = new Thread(new Runnable() {
                     @Override
                     public void run() {
+                        awaitShutdown("RPIUI", Shutdown);
+                        awaitShutdown("Additional RPIUI boards", GroupShutdown);
                         try {
                             Thread.sleep(5000);// Wait 5 seconds before restart
 
@@ -435,7 +1055,8 @@ public class RPIUIDemoMIDlet extends MIDlet {
                     System.out.println("Waiting for connection on port " + _ServerSocket.getLocalPort());
                     try (SocketConnection remoteConnection = (SocketConnection) _ServerSocket.acceptAndOpen()) {  // Blocking call
                         // Opening stream
-                        try (InputStream remoteStream = remoteConnection.openInputStream()) {
+                        try (InputStream remoteStream = remoteConnection.openInputStream();
+                             OutputStream remoteOutput = remoteConnection.openOutputStream()) {
                             System.out.println("Connection accepted and Stream opened");
 
                             _App.registerRemoteConnection(remoteConnection, remoteStream);
@@ -445,7 +1066,10 @@ public class RPIUIDemoMIDlet extends MIDlet {
                             while (c != -1) {
                                 c = remoteStream.read(); // Blocking call
 
-                                if (c > 0) {
+                                if (c == REMOTE_DUMP_TRACE_REQUEST) {
+                                    System.out.println("I2C bus trace requested from Remote");
+                                    _App.dumpBusTrace(remoteOutput);
+                                } else if (c > 0) {
                                     System.out.format("Button %d pressed from Remote\n", c);
                                     _App.doAction(c);
                                 } else {
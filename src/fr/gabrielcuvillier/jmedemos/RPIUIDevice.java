@@ -18,7 +18,6 @@
 
 package fr.gabrielcuvillier.jmedemos;
 
-import jdk.dio.DeviceManager;
 import jdk.dio.i2cbus.I2CDevice;
 import jdk.dio.i2cbus.I2CDeviceConfig;
 import java.nio.ByteBuffer;
@@ -32,23 +31,81 @@ import java.util.logging.Logger;
  * This class is a driver for the "RPi_UI" board from BitWizard, using the I2C bus. 
  * It have been tested on the 16x2 LCD version. <p> 
  * 
+ * Each instance drives a single board, identified by its I2C controller number 
+ * and address (by default, address 0x4A on controller 1). Several boards, on 
+ * the same or on different buses, may be driven together with a 
+ * RPIUIDeviceGroup. The I2C clock frequency may be raised (ie. 400 kHz fast 
+ * mode) when the wiring allows it: see setClockFrequency() and I2CClockSelfTest. <p>
+ * 
  * Description and documentation for this board may be found at: <br>
  * http://www.bitwizard.nl/shop/raspberry-pi/raspberry-pi-ui-16x2 <br>
  * http://www.bitwizard.nl/wiki/index.php/User_Interface <p>
  * 
  * The driver allows to display text on the LCD, query for the last pushed button, 
- * and read temperature data from sensors connected to ADC channels.<p> 
+ * and read temperature data from sensors connected to ADC channels. All configured 
+ * ADC channels may be read at once with a single register block read (see 
+ * readADCChannels() and readAllTemperatures()).<p> 
+ * 
+ * At construction, the board is reinitialized, and the driver waits for it to 
+ * answer a readiness probe, then for the LCD to settle (or for a fixed delay if 
+ * the board does not answer the probe). In "warm attach" mode, the reinit is skipped if the board is already 
+ * configured as expected, and the board is not reinitialized by end(). <p>
+ * 
+ * The device may be ended asynchronously with endAsync(), which returns a 
+ * completion handle, and bounds the shutdown duration. <p>
+ * 
+ * The ADC (sources, number of scanned channels, samples and shift) is 
+ * configured with configureADC(), which verifies the configuration by reading 
+ * it back from the board (see ADCConfiguration class).<p>
+ * 
+ * The LCD custom character slots are used to display glyphs (see Glyph class), 
+ * either with displayGlyph() or inline in text (see mapGlyph()). A glyph bitmap 
+ * is only uploaded when it is not already resident in a slot (see GlyphCache 
+ * and getGlyphCache()). <p>
+ * 
+ * Raw ADC values may be converted to temperatures without any floating point 
+ * computation, using precomputed tables: as tenths of degree with 
+ * toTenthsOfDegree(), or as preformatted text with formatTemperature(). <p>
+ * 
+ * The driver keeps a local "shadow" copy of the LCD content, so that only the 
+ * characters that actually changed are sent to the device when displaying text. 
+ * As a consequence, the LCD must only be modified through this driver.<p> 
  * 
- * For convenience, this class do not throw any checked IOException. When an IO Error 
- * occurs, it is assumed to be fatal and not recoverable, and so a RuntimeException 
- * is thrown instead.<p> 
+ * Once constructed, the driver does not allocate any memory: all I2C commands are 
+ * built into preallocated buffers which are reused by each operation. Text may be 
+ * given as any CharSequence or as a char array, and is encoded directly into these 
+ * buffers.<p> 
  * 
- * Note that this class is NOT thread safe, it is responsibility of caller application 
- * to correctly handle concurrency access and issues.<p> 
+ * The commands of each operation are grouped into a batch (see RPIUIDevice.Batch), 
+ * which is sent with the fewest possible bus transactions. <p>
  * 
- * I2C communication may be not safe too, as combined messages are not used (no support 
- * for transactions). However, in the context of this demonstration program, this 
- * should be ok.
+ * For convenience, this class do not throw any checked IOException. A failed I2C 
+ * transfer is first retried, with an exponential backoff. After repeated failures, 
+ * the "circuit" is opened: operations fail at once, and the I2C device is 
+ * periodically reopened until transfers succeed again (see I2CFaultHandler and 
+ * getFaultHandler()). When an operation finally fails, a RuntimeException is 
+ * thrown, and the caller may try again later.<p> 
+ * 
+ * The I2C traffic is counted per command (transactions, bytes, errors and latency 
+ * histogram), without allocating memory: see I2CBusStatistics and 
+ * getBusStatistics(). The last transfers are also kept in a fixed size trace, which 
+ * may be dumped on demand (see I2CBusTrace and getBusTrace()). <p>
+ * 
+ * This class is thread safe. Each bus operation (a command, a register read with the 
+ * decoding of its result, or the sending of a whole batch) is done while holding an 
+ * internal bus lock, so that the I2C messages of concurrent operations are never 
+ * interleaved. The LCD content (and the batch) and the button push detection have 
+ * their own separate locks, which are only held around their bus operation. <p> 
+ * 
+ * I2C communication may be not safe too, as by default combined messages are not used 
+ * (no support for transactions). However, in the context of this demonstration program, 
+ * this should be ok. When constructed with combined messages enabled, commands made 
+ * of several I2C messages (text cursor positioning and text, or register selection and 
+ * register read) are sent as a single I2C transaction (see I2CTransport.CombinedMessage). <p>
+ * 
+ * The I2C messages go through an I2CTransport: the DIO I2C device of the real board 
+ * (DIOI2CTransport, used by default), or a simulated board (SimulatedRPIUIBoard), 
+ * so that the driver may be benchmarked and tested without hardware. <p>
  * 
  * See class source code for description of internal implementation. <p>
  * 
@@ -56,13 +113,44 @@ import java.util.logging.Logger;
  */
 public class RPIUIDevice {
     
-    // I2C Device configuration and instance
-    private final I2CDeviceConfig _DeviceConfig;
-    private final I2CDevice       _Device;
+    // Transport of the I2C messages to the board
+    private final I2CTransport _Transport;
+    
+    // Transport mode: true to group related I2C messages into a single 
+    // combined I2C transaction
+    private final boolean _UseCombinedMessages;
+    
+    // Number of I2C transactions issued since device construction (a combined 
+    // message counts as one transaction)
+    private long _TransactionCount;
+    
+    // Locks: the bus lock is held during each bus operation (and guards the 
+    // preallocated buffers and combined messages), the button lock guards the 
+    // button push detection. The LCD content is guarded by the batch instance. 
+    // Lock order: batch, then button, then bus.
+    private final Object _BusLock = new Object();
+    private final Object _ButtonLock = new Object();
     
-    // I2C Device identification constants
-    private static final byte RPIUI_I2C_CHANNEL = 1;
-    private static final byte RPIUI_I2C_ADDRESS = 0x4A;
+    // Fault handling policy of I2C transfers (retries and circuit breaker)
+    private final I2CFaultHandler _FaultHandler = new I2CFaultHandler();
+    
+    // Per-command statistics, and trace of the last transfers, of the I2C 
+    // traffic
+    private final I2CBusStatistics _BusStatistics = new I2CBusStatistics();
+    private final I2CBusTrace      _BusTrace = new I2CBusTrace(I2CBusTrace.DEFAULT_CAPACITY);
+    
+    /** Default I2C controller number of the board */
+    public static final int DEFAULT_I2C_CONTROLLER = 1;
+    /** Default I2C address of the board (7 bits) */
+    public static final int DEFAULT_I2C_ADDRESS = 0x4A;
+    /** Default I2C clock frequency: the platform default (typically 100 kHz) */
+    public static final int DEFAULT_CLOCK_FREQUENCY = I2CDeviceConfig.DEFAULT;
+    
+    // I2C Device identification (controller number and address), and clock 
+    // frequency (in Hz)
+    private final int _ControllerNumber;
+    private final int _Address;
+    private int       _ClockFrequency;
     
     // I2C Device commands
     private static final byte CMD_SET_TEXT_CURSOR      = 0x11;
@@ -79,82 +167,340 @@ public class RPIUIDevice {
     private static final byte CMD_SET_ADC_NUM_CHANNELS = (byte)0x80;
     private static final byte CMD_SET_ADC_NUM_SAMPLES  = (byte)0x81;
     private static final byte CMD_SET_ADC_SHIFT        = (byte)0x82;
+    private static final byte CMD_GET_IDENTIFICATION   = 0x01;
+    private static final byte CMD_WRITE_LCD_INSTRUCTION = 0x01; // Raw HD44780 instruction (write)
+    
+    // HD44780 instruction setting the CGRAM address (slot number * 8 + row), so 
+    // that the next written bytes define the rows of a custom character
+    private static final int  LCD_SET_CGRAM_ADDRESS = 0x40;
     
-    // ADC base configuration
-    private static final int    ADC_SHIFT = 6;
-    private static final int    ADC_NUM_SAMPLES = 64; // 2^SHIFT
+    // Maximum number of characters mapped to glyphs (see mapGlyph())
+    private static final int  MAX_GLYPH_CHARS = 16;
+    
+    // ADC base configuration (see ADCConfiguration class for the configurable 
+    // parts)
+    private static final int    ADC_MAX_CHANNELS = ADCConfiguration.MAX_CHANNELS;
     private static final double ADC_REFERENCE_VOLTAGE = 1.1;
     private static final int    ADC_RESOLUTION = 10;
     private static final int    ADC_MAXVALUE = 1023; // 2^RESOLUTION - 1;
     
     // Temperature sensor constants
+    /** Number of temperature sensors (internal sensor on ADC channel 0, and 
+     * external sensor on ADC channel 1) */
+    public static final int     NUM_TEMPERATURE_SENSORS = 2;
     private static final double TEMPERATURE_VOLTAGE_PER_DEGREE = 0.01;
     private static final int    TEMPERATURE_OFFSET = 50;
-    private static final byte   INTERNAL_TEMPERATURE_SENSOR_1V1 = (byte)0xC7;
-    private static final byte   EXTERNAL_TEMPERATURE_SENSOR_1V1 = (byte)0xC6;
+    /** Maximum number of characters of a formatted temperature (see 
+     * formatTemperature()) */
+    public static final int     TEMPERATURE_MAX_CHARS = 5;
+    
+    // Precomputed conversion tables from raw ADC values (0 to ADC_MAXVALUE) to 
+    // temperatures: in tenths of degree, and preformatted as text (with one 
+    // decimal, as "%.1f" would do, TEMPERATURE_MAX_CHARS chars per value). 
+    // See toTenthsOfDegree() and formatTemperature() methods.
+    private static final short[] TEMPERATURE_TENTHS  = new short[ADC_MAXVALUE + 1];
+    private static final byte[]  TEMPERATURE_LENGTHS = new byte[ADC_MAXVALUE + 1];
+    private static final char[]  TEMPERATURE_CHARS   = new char[(ADC_MAXVALUE + 1) * TEMPERATURE_MAX_CHARS];
+    static {
+        for (int nRawValue = 0; nRawValue <= ADC_MAXVALUE; nRawValue++) {
+            int nTenths = (int) Math.round(toTemperature(nRawValue) * 10);
+            TEMPERATURE_TENTHS[nRawValue] = (short) nTenths;
+            
+            // Format the value: [-]integer part, dot, tenths
+            int nOffset = nRawValue * TEMPERATURE_MAX_CHARS;
+            int nLength = 0;
+            if (nTenths < 0) {
+                TEMPERATURE_CHARS[nOffset + nLength++] = '-';
+                nTenths = -nTenths;
+            }
+            int nInteger = nTenths / 10;
+            if (nInteger >= 10) {
+                TEMPERATURE_CHARS[nOffset + nLength++] = (char) ('0' + nInteger / 10);
+            }
+            TEMPERATURE_CHARS[nOffset + nLength++] = (char) ('0' + nInteger % 10);
+            TEMPERATURE_CHARS[nOffset + nLength++] = '.';
+            TEMPERATURE_CHARS[nOffset + nLength++] = (char) ('0' + nTenths % 10);
+            TEMPERATURE_LENGTHS[nRawValue] = (byte) nLength;
+        }
+    }
 
     // Misc hardcoded constants 
     private static final int    MIN_DELAY_FOR_DEVICE_REINIT = 600;
+    
+    // Readiness probe after a reinit: the identification register is polled, 
+    // with a delay starting at READY_PROBE_MIN_DELAY and doubled up to 
+    // READY_PROBE_MAX_DELAY, until the board answers. The probe never waits 
+    // longer than MIN_DELAY_FOR_DEVICE_REINIT.
+    // The board answers as soon as its microcontroller is up, but the LCD 
+    // controller may still run its own initialization sequence (about 15 ms 
+    // for a HD44780), and would ignore commands meanwhile: once the board 
+    // answers, the LCD is given READY_LCD_SETTLE_DELAY more.
+    private static final int    READY_PROBE_MIN_DELAY = 5;
+    private static final int    READY_PROBE_MAX_DELAY = 80;
+    private static final int    READY_LCD_SETTLE_DELAY = 20;
     private static final int    DEFAULT_LCD_CONSTRAST = 0x50;
 
-    // Array of 6 booleans, representing the buttons "pushed" state since last 
-    // query to the device. The array is indexed with (ButtonNumber - 1).
+    // LCD geometry
+    /** Number of lines of the LCD */
+    public static final int     LCD_NUM_LINES = 2;
+    /** Number of columns of the LCD. Longer text is not displayed (see 
+     * LCDRenderer for scrolling). */
+    public static final int     LCD_NUM_COLUMNS = 16;
+    private static final byte   LCD_BLANK_CHAR = ' ';
+    // Shadow value of a LCD character whose content is unknown: it never 
+    // matches a character code, so that it is always sent again
+    private static final short  LCD_UNKNOWN_CHAR = 0x100;
+
+    // Maximum number of unchanged characters that may be merged between two 
+    // changed runs of a same line. Starting a new run costs a cursor command 
+    // (2 bytes) plus a new text command byte, so rewriting a few unchanged 
+    // characters is cheaper than issuing separate commands.
+    private static final int    LCD_MAX_MERGED_GAP = 3;
+    
+    // Size of the clear display command, in bytes
+    private static final int    LCD_CLEAR_COST = 2;
+    
+    // Capacity of the batch staging buffer: maximum number of staged I2C 
+    // messages and bytes. A full screen update fits in it.
+    private static final int    BATCH_MAX_MESSAGES = 24;
+    private static final int    BATCH_CAPACITY = 128;
+
+    // Shadow copy of the LCD content, as currently displayed by the device. 
+    // Lines are stored consecutively (LCD_NUM_COLUMNS character codes per 
+    // line), and characters are LCD_UNKNOWN_CHAR after a failed update.
+    //
+    // It is used to compute the characters that really need to be sent to the 
+    // device when updating the display. See Batch.stageText() method.
+    private final short[] _ShadowDisplay = new short[LCD_NUM_LINES * LCD_NUM_COLUMNS];
+    
+    // Preallocated I2C command buffers. They are reused by every operation, 
+    // so that the command path does not allocate any memory once the device 
+    // is constructed:
+    // - _CommandBuffer: simple commands (command byte followed by a value byte)
+    // - _RegisterBuffer: register selection before a read
+    // - _ButtonsBuffer and _ADCBuffer: results of register reads (_ADCBuffer 
+    //   is large enough to read all ADC channel registers at once)
+    // - _ConfigBuffer: results of configuration register reads (large enough 
+    //   to read all ADC channel source registers at once)
+    // Other commands are staged in the batch buffers, see Batch class.
+    private final byte[]     _CommandBytes   = new byte[2];
+    private final ByteBuffer _CommandBuffer  = ByteBuffer.wrap(_CommandBytes);
+    private final byte[]     _RegisterBytes  = new byte[1];
+    private final ByteBuffer _RegisterBuffer = ByteBuffer.wrap(_RegisterBytes);
+    private final byte[]     _ButtonsBytes   = new byte[1];
+    private final ByteBuffer _ButtonsBuffer  = ByteBuffer.wrap(_ButtonsBytes);
+    private final byte[]     _ADCBytes       = new byte[ADC_MAX_CHANNELS * 2];
+    private final ByteBuffer _ADCBuffer      = ByteBuffer.wrap(_ADCBytes);
+    private final byte[]     _ConfigBytes    = new byte[ADC_MAX_CHANNELS];
+    private final ByteBuffer _ConfigBuffer   = ByteBuffer.wrap(_ConfigBytes);
+    // ADC channel sources saved by testBusThroughput(), restored after each 
+    // test pattern
+    private final byte[]     _SavedADCSources = new byte[ADC_MAX_CHANNELS];
+    
+    // Combined messages, only used when combined messages are enabled. 
+    // They are assembled once on the preallocated buffers, and transferred 
+    // again for each operation (buffers are rewound before each transfer).
+    private I2CTransport.CombinedMessage _ButtonsMessage;
+    private I2CTransport.CombinedMessage _ADCMessage;
+    private I2CTransport.CombinedMessage _ConfigMessage;
+
+    /** Number of buttons of the device */
+    public static final int NUM_BUTTONS = 6;
+    
+    // Conversion table from the device button states (where the leftmost 
+    // nth-bit is set when nth-button have been pushed, ie. button n at bit 6 - n)
+    // to a button mask (button n at bit n - 1). See getPushedButtons() method.
+    private static final byte[] BUTTON_MASKS = new byte[1 << NUM_BUTTONS];
+    static {
+        for (int nStates = 0; nStates < BUTTON_MASKS.length; nStates++) {
+            int nMask = 0;
+            for (int nButton = 1; nButton <= NUM_BUTTONS; nButton++) {
+                if ((nStates & (1 << (NUM_BUTTONS - nButton))) != 0) {
+                    nMask |= 1 << (nButton - 1);
+                }
+            }
+            BUTTON_MASKS[nStates] = (byte) nMask;
+        }
+    }
+    
+    // Mask of the buttons "pushed" state since last query to the device 
+    // (button n at bit n - 1).
     //
     // An effective "push" of a button is detected when its corresponding 
-    // state value in the array goes from "false" to "true".
-    // See getPushedButton() and computeButtonStatus() methods.
-    private boolean[] _LastButtonStates = { false, false, false, false, false, false };
+    // bit goes from 0 to 1. See getPushedButtons() method.
+    private int _LastButtonStates;
+    
+    // Number of ADC channels sampled by the device
+    private volatile int _ADCNumChannels;
+    
+    // Bring-up mode: true if the board answers the readiness probe (otherwise 
+    // the fixed reinit delay is used), and true if the driver attached to an 
+    // already configured board (without reinit)
+    private boolean _ReadyProbeSupported;
+    private final boolean _WarmAttach;
+    private boolean _IsWarmAttached;
+    
+    // Glyphs resident in the LCD custom character slots, and characters 
+    // displayed as glyphs (guarded by the batch instance)
+    private final GlyphCache _GlyphCache = new GlyphCache();
+    private final char[]     _GlyphChars = new char[MAX_GLYPH_CHARS];
+    private final Glyph[]    _MappedGlyphs = new Glyph[MAX_GLYPH_CHARS];
+    private int              _NumGlyphChars;
     
-    /** Construct a RPIUIDevice instance. */
-    public RPIUIDevice() {        
+    // The batch of commands, reused by each call to batch()
+    private final Batch _Batch = new Batch();
+    
+    /** Construct a RPIUIDevice instance, without using combined messages. */
+    public RPIUIDevice() {
+        this(false);
+    }
+    
+    /** Construct a RPIUIDevice instance, always reinitializing the board.
+     * @param bUseCombinedMessages true to send multi-message commands as a single 
+     * combined I2C transaction */
+    public RPIUIDevice(boolean bUseCombinedMessages) {
+        this(bUseCombinedMessages, false);
+    }
+    
+    /** Construct a RPIUIDevice instance, for the board at the default I2C 
+     * controller and address.
+     * @param bUseCombinedMessages true to send multi-message commands as a single 
+     * combined I2C transaction
+     * @param bWarmAttach true to skip the board reinit when the board is already 
+     * configured as expected (see isWarmAttached()) */
+    public RPIUIDevice(boolean bUseCombinedMessages, boolean bWarmAttach) {
+        this(DEFAULT_I2C_CONTROLLER, DEFAULT_I2C_ADDRESS, bUseCombinedMessages, bWarmAttach);
+    }
+    
+    /** Construct a RPIUIDevice instance, for the board at a given I2C controller 
+     * and address. Several boards may be driven at once, each by its own 
+     * instance (see RPIUIDeviceGroup).
+     * @param nControllerNumber the I2C controller number of the board
+     * @param nAddress the I2C address of the board (7 bits)
+     * @param bUseCombinedMessages true to send multi-message commands as a single 
+     * combined I2C transaction
+     * @param bWarmAttach true to skip the board reinit when the board is already 
+     * configured as expected (see isWarmAttached()) */
+    public RPIUIDevice(int nControllerNumber, int nAddress, 
+                       boolean bUseCombinedMessages, boolean bWarmAttach) {
+        this(nControllerNumber, nAddress, DEFAULT_CLOCK_FREQUENCY, bUseCombinedMessages, bWarmAttach);
+    }
+    
+    /** Construct a RPIUIDevice instance, for the board at a given I2C controller 
+     * and address, with a given I2C clock frequency. 
+     * @param nControllerNumber the I2C controller number of the board
+     * @param nAddress the I2C address of the board (7 bits)
+     * @param nClockFrequency the I2C clock frequency (in Hz, ie. 400000 for fast 
+     * mode), or DEFAULT_CLOCK_FREQUENCY
+     * @param bUseCombinedMessages true to send multi-message commands as a single 
+     * combined I2C transaction
+     * @param bWarmAttach true to skip the board reinit when the board is already 
+     * configured as expected (see isWarmAttached()) */
+    public RPIUIDevice(int nControllerNumber, int nAddress, int nClockFrequency, 
+                       boolean bUseCombinedMessages, boolean bWarmAttach) {
+        this(openTransport(nControllerNumber, nAddress, nClockFrequency), 
+             nControllerNumber, nAddress, nClockFrequency, bUseCombinedMessages, bWarmAttach);
+    }
+    
+    /** Construct a RPIUIDevice instance on a given transport (ie. a simulated 
+     * board, see SimulatedRPIUIBoard), identified by a given I2C controller and 
+     * address (see getControllerNumber() and getAddress()).
+     * @param Transport the transport of the I2C messages to the board
+     * @param nControllerNumber the I2C controller number of the board
+     * @param nAddress the I2C address of the board (7 bits)
+     * @param bUseCombinedMessages true to send multi-message commands as a single 
+     * combined I2C transaction
+     * @param bWarmAttach true to skip the board reinit when the board is already 
+     * configured as expected (see isWarmAttached()) */
+    public RPIUIDevice(I2CTransport Transport, int nControllerNumber, int nAddress, 
+                       boolean bUseCombinedMessages, boolean bWarmAttach) {
+        this(Transport, nControllerNumber, nAddress, DEFAULT_CLOCK_FREQUENCY, 
+             bUseCombinedMessages, bWarmAttach);
+    }
+    
+    /** Construct a RPIUIDevice instance on an already opened I2C device, 
+     * identified as the board at the default I2C controller and address. 
+     * This is intended to run the driver against a fake device.
+     * @param Device the I2C device to use
+     * @param bUseCombinedMessages true to send multi-message commands as a single 
+     * combined I2C transaction
+     * @param bWarmAttach true to skip the board reinit when the board is already 
+     * configured as expected */
+    RPIUIDevice(I2CDevice Device, boolean bUseCombinedMessages, boolean bWarmAttach) {
+        this(Device, DEFAULT_I2C_CONTROLLER, DEFAULT_I2C_ADDRESS, bUseCombinedMessages, bWarmAttach);
+    }
+    
+    /** Construct a RPIUIDevice instance on an already opened I2C device, 
+     * identified by a given I2C controller and address (see 
+     * getControllerNumber() and getAddress()). This is intended to run the 
+     * driver against fake devices. */
+    RPIUIDevice(I2CDevice Device, int nControllerNumber, int nAddress, 
+                boolean bUseCombinedMessages, boolean bWarmAttach) {
+        this(new DIOI2CTransport(Device), nControllerNumber, nAddress, 
+             bUseCombinedMessages, bWarmAttach);
+    }
+    
+    // Common constructor: initialize the board through its (opened) transport
+    private RPIUIDevice(I2CTransport Transport, 
+                        int nControllerNumber, int nAddress, int nClockFrequency,
+                        boolean bUseCombinedMessages, boolean bWarmAttach) {
+        _Transport = Transport;
+        _ControllerNumber = nControllerNumber;
+        _Address = nAddress;
+        _ClockFrequency = nClockFrequency;
+        _UseCombinedMessages = bUseCombinedMessages;
+        _WarmAttach = bWarmAttach;
         try {
-            // Create configuration using I2C device identification (channel and 
-            // address)
-            _DeviceConfig = new I2CDeviceConfig.Builder()
-                .setControllerNumber(RPIUI_I2C_CHANNEL)
-                .setAddress(RPIUI_I2C_ADDRESS, I2CDeviceConfig.ADDR_SIZE_7)
-                .build();
-            // Open the device
-            _Device = DeviceManager.open(_DeviceConfig);
+            // Assemble combined messages on the preallocated buffers
+            assembleMessages();
 
-            // Reinitialization
-            byte[] ReinitCmd = { CMD_REINIT_RPIUI, 0x01 }; // Reinit LCD
-            _Device.write(ByteBuffer.wrap(ReinitCmd));
-            // Required minimum wait by RPIUI after a reinit 
-            Thread.sleep(MIN_DELAY_FOR_DEVICE_REINIT); 
+            // Check that the board answers the readiness probe, before any 
+            // reinit (when it is known to be ready)
+            _ReadyProbeSupported = probe();
+            
+            ADCConfiguration ExpectedADCConfig 
+                    = ADCConfiguration.createTemperatureConfiguration(ADCConfiguration.DEFAULT_SHIFT);
+            
+            // Warm attach: if the board is already configured as expected (by 
+            // a previous instance), only clear the LCD, which is much faster 
+            // than a reinit
+            _IsWarmAttached = _WarmAttach && _ReadyProbeSupported 
+                                && readADCConfiguration().equals(ExpectedADCConfig);
+            if (_IsWarmAttached) {
+                writeCommand(CMD_CLEAR_DISPLAY, 0x01);
+            } else {
+                // Reinitialization
+                writeCommand(CMD_REINIT_RPIUI, 0x01); // Reinit LCD
+                // Required minimum wait by RPIUI after a reinit 
+                waitUntilReady(Long.MAX_VALUE); 
+            }
+            // The LCD is now blank
+            resetShadowDisplay();
+            
+            // Default glyphs, displayed inline in text. The custom character 
+            // slots content is unknown, so the glyph cache starts empty.
+            mapGlyph('\u00B0', Glyph.DEGREE);
+            mapGlyph('\u2190', Glyph.ARROW_LEFT);
+            mapGlyph('\u2191', Glyph.ARROW_UP);
+            mapGlyph('\u2192', Glyph.ARROW_RIGHT);
+            mapGlyph('\u2193', Glyph.ARROW_DOWN);
             
             // As reinit do not cleanup device last pushed buttons states, 
             // manually call getPushedButtons once to synchronize local
             // state to device state (and prevent unwanted button press the 
             // first time the method is used by a client)
-            getPushedButton();
+            getPushedButtons();
 
-            // Set default LCD contrast
-            byte[] ContrastCmd = { CMD_SET_CONTRAST, DEFAULT_LCD_CONSTRAST };
-            _Device.write(ByteBuffer.wrap(ContrastCmd));
-
-            // ADC initialization with temperature sensors
-            byte[] ConfigureADCChannel0Cmd = {CMD_SET_ADC_CHANNEL_0, 
-                                              INTERNAL_TEMPERATURE_SENSOR_1V1 };
-            _Device.write(ByteBuffer.wrap(ConfigureADCChannel0Cmd));
-            byte[] ConfigureADCChannel1Cmd = {CMD_SET_ADC_CHANNEL_1, 
-                                              EXTERNAL_TEMPERATURE_SENSOR_1V1 };
-            _Device.write(ByteBuffer.wrap(ConfigureADCChannel1Cmd));
-            // Set number of channels to read
-            byte[] SetChannelsToSampleCmd = { CMD_SET_ADC_NUM_CHANNELS, 2 };
-            _Device.write(ByteBuffer.wrap(SetChannelsToSampleCmd));
-            // Set number of samples
-            // Note: setting samples seem to not work correctly: it is always 
-            // fixed at 64. 
-            // Note 2: we add an additional byte as the register wants a "short" 
-            // value (16 bits). As setting samples is not working (see previous note), 
-            // this needs to be verified.
-            byte[] SamplesCmd = { CMD_SET_ADC_NUM_SAMPLES, 
-                                  ADC_NUM_SAMPLES, 0x00 };
-            _Device.write(ByteBuffer.wrap(SamplesCmd));
-            // Set Shift
-            byte[] ShiftCmd = { CMD_SET_ADC_SHIFT, ADC_SHIFT };
-            _Device.write(ByteBuffer.wrap(ShiftCmd));            
+            Batch InitBatch = batch()
+                // Set default LCD contrast
+                .contrast(DEFAULT_LCD_CONSTRAST);
+            if (!_IsWarmAttached) {
+                // ADC initialization with temperature sensors
+                // Note: setting samples seem to not work correctly: it is always 
+                // fixed at 64. Use configureADC() to have the settings verified.
+                InitBatch.adc(ExpectedADCConfig);
+            }
+            InitBatch.flush();
 
         }
         catch (InterruptedException | IOException ex) {
@@ -166,78 +512,325 @@ public class RPIUIDevice {
     /** End the RPIUIDevice.
      * Must be called whenever the RPIUI is no more needed */
     public final void end() {
+        end(Long.MAX_VALUE);
+    }
+    
+    /** End the RPIUIDevice asynchronously, in a dedicated thread. The method 
+     * returns immediately. <p>
+     * 
+     * The wait for the board reinit is cut short after nTimeout, and the device 
+     * is then closed. The device must not be used anymore once this method is 
+     * called.
+     * @param nTimeout maximum duration of the shutdown (in ms)
+     * @return the completion handle of the shutdown */
+    public final ShutdownHandle endAsync(int nTimeout) {
+        final ShutdownHandle Handle = new ShutdownHandle();
+        final long nDeadline = System.currentTimeMillis() + nTimeout;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    end(nDeadline);
+                } finally {
+                    Handle.complete();
+                }
+            }
+        }).start();
+        return Handle;
+    }
+    
+    // Common end implementation: the wait for the board reinit is cut short 
+    // at nDeadline
+    private void end(long nDeadline) {
         
         // Don't throw exceptions in this method, since we really need to close
         // the device in all possible situations
         
-        try {
-            // Reinit RPIUI (to cleanup everything)
-            byte[] ReinitCmd = { CMD_REINIT_RPIUI, 0x01 }; 
-            _Device.write(ByteBuffer.wrap(ReinitCmd));
-            Thread.sleep(MIN_DELAY_FOR_DEVICE_REINIT);
+        synchronized (_BusLock) {
+            try {
+                if (_WarmAttach) {
+                    // Only clear the LCD, and keep the board configured for the 
+                    // next warm attach
+                    writeCommand(CMD_CLEAR_DISPLAY, 0x01);
+                } else {
+                    // Reinit RPIUI (to cleanup everything)
+                    writeCommand(CMD_REINIT_RPIUI, 0x01);
+                    waitUntilReady(nDeadline);
+                }
+            }
+            catch (InterruptedException | IOException ex) {
+                Logger.getLogger(RPIUIDevice.class.getName()).log(Level.SEVERE, null, ex);    
+            } 
+            finally {
+                try {
+                    // Close the device
+                    _Transport.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(RPIUIDevice.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
         }
-        catch (InterruptedException | IOException ex) {
-            Logger.getLogger(RPIUIDevice.class.getName()).log(Level.SEVERE, null, ex);    
-        } 
-        finally {
+    }
+    
+    /** Get the I2C controller number of the board */
+    public final int getControllerNumber() {
+        return _ControllerNumber;
+    }
+    
+    /** Get the I2C address of the board */
+    public final int getAddress() {
+        return _Address;
+    }
+    
+    /** Get the I2C clock frequency (in Hz), or DEFAULT_CLOCK_FREQUENCY for the 
+     * platform default */
+    public final int getClockFrequency() {
+        synchronized (_BusLock) {
+            return _ClockFrequency;
+        }
+    }
+    
+    /** Change the I2C clock frequency: the I2C device is closed, and opened again 
+     * with the new frequency (see I2CTransport.setClockFrequency()). The board 
+     * itself is left untouched. 
+     * 
+     * A device given at construction (fake device) is not reopened, only the 
+     * frequency is recorded. See I2CClockSelfTest to select the fastest 
+     * frequency supported by a board and its wiring.
+     * @param nClockFrequency the I2C clock frequency (in Hz), or 
+     * DEFAULT_CLOCK_FREQUENCY */
+    public final void setClockFrequency(int nClockFrequency) {
+        synchronized (_BusLock) {
             try {
-                // Close the device
-                _Device.close();
-            } catch (IOException ex) {
+                try {
+                    _Transport.setClockFrequency(nClockFrequency);
+                    _ClockFrequency = nClockFrequency;
+                }
+                finally {
+                    // The I2C device may have been opened again even if the 
+                    // change failed: the combined messages are assembled again 
+                    // on the current one
+                    assembleMessages();
+                    _Batch.discardCombinedMessages();
+                }
+            }
+            catch (IOException ex) {
                 Logger.getLogger(RPIUIDevice.class.getName()).log(Level.SEVERE, null, ex);
+                throw new RuntimeException("IO error while setting clock frequency of RPIUI");     
+            }
+        }
+    }
+    
+    /** Test the I2C bus at the current clock frequency: write a known pattern 
+     * to the ADC channel source registers and read it back, nNumTransfers 
+     * times. <p>
+     * 
+     * Transfers are not retried: the test fails on the first I2C error or 
+     * pattern mismatch. The ADC channel sources are read first (twice, so that 
+     * a corrupted read fails the test), and written back after each pattern: 
+     * the ADC only scans the pattern sources while the pattern is checked. If 
+     * the test fails, they are written back as far as the bus allows: the ADC 
+     * should then be configured again (see configureADC()).
+     * @param nNumTransfers number of pattern writes and reads
+     * @return the measured throughput (in bytes per second, address bytes 
+     * excluded, source saves and restores included), or -1 if the test 
+     * failed */
+    public final long testBusThroughput(int nNumTransfers) {
+        synchronized (_BusLock) {
+            long nNumBytes = 0;
+            long nStartTime = System.nanoTime();
+            boolean bOverwritten = false;
+            try {
+                // Save the sources. Source registers are consecutive: read 
+                // them at once
+                transferRegister(CMD_SET_ADC_CHANNEL_0, _ConfigBuffer, ADC_MAX_CHANNELS);
+                System.arraycopy(_ConfigBytes, 0, _SavedADCSources, 0, ADC_MAX_CHANNELS);
+                transferRegister(CMD_SET_ADC_CHANNEL_0, _ConfigBuffer, ADC_MAX_CHANNELS);
+                for (int nChannel = 0; nChannel < ADC_MAX_CHANNELS; nChannel++) {
+                    if (_ConfigBytes[nChannel] != _SavedADCSources[nChannel]) {
+                        return -1;
+                    }
+                }
+                nNumBytes += (1 + ADC_MAX_CHANNELS) * 2;
+                
+                for (int nTransfer = 0; nTransfer < nNumTransfers; nTransfer++) {
+                    bOverwritten = true;
+                    for (int nChannel = 0; nChannel < ADC_MAX_CHANNELS; nChannel++) {
+                        writeADCSource(nChannel, getTestPattern(nTransfer, nChannel));
+                    }
+                    transferRegister(CMD_SET_ADC_CHANNEL_0, _ConfigBuffer, ADC_MAX_CHANNELS);
+                    for (int nChannel = 0; nChannel < ADC_MAX_CHANNELS; nChannel++) {
+                        if (_ConfigBytes[nChannel] != getTestPattern(nTransfer, nChannel)) {
+                            return -1;
+                        }
+                    }
+                    for (int nChannel = 0; nChannel < ADC_MAX_CHANNELS; nChannel++) {
+                        writeADCSource(nChannel, _SavedADCSources[nChannel]);
+                    }
+                    bOverwritten = false;
+                    nNumBytes += ADC_MAX_CHANNELS * 2 + 1 + ADC_MAX_CHANNELS + ADC_MAX_CHANNELS * 2;
+                }
+            }
+            catch (IOException ex) {
+                return -1;
             }
+            finally {
+                if (bOverwritten) {
+                    // The test failed on a pattern: restore the sources if the 
+                    // bus still allows it
+                    try {
+                        for (int nChannel = 0; nChannel < ADC_MAX_CHANNELS; nChannel++) {
+                            writeADCSource(nChannel, _SavedADCSources[nChannel]);
+                        }
+                    } catch (IOException ex) {
+                        // The bus fails at this frequency: ignore it
+                    }
+                }
+            }
+            long nElapsedTime = Math.max(1, System.nanoTime() - nStartTime);
+            return nNumBytes * 1000000000L / nElapsedTime;
         }
     }
     
+    /** Internal method writing the source of an ADC channel, in a single 
+     * attempt (used by testBusThroughput(), which must not retry). Each source 
+     * register is written with its own command. */
+    private void writeADCSource(int nChannel, byte Source) throws IOException {
+        _CommandBytes[0] = (byte) (CMD_SET_ADC_CHANNEL_0 + nChannel);
+        _CommandBytes[1] = Source;
+        transferMessage(rewind(_CommandBuffer, 2));
+    }
+    
+    /** Internal method computing the test pattern byte of a channel source 
+     * register. Bits vary from one transfer to the next. */
+    private static byte getTestPattern(int nTransfer, int nChannel) {
+        return (byte) (((nTransfer * ADC_MAX_CHANNELS + nChannel) * 0x9D) ^ 0x5A);
+    }
+    
+    /** Return true if the driver attached to an already configured board, 
+     * without reinitializing it. */
+    public final boolean isWarmAttached() {
+        return _IsWarmAttached;
+    }
+    
+    /** Internal method starting a new batch of commands. 
+     * 
+     * Any command staged in the previous batch, and not flushed, is discarded. 
+     * As the batch is shared by all threads, it must be called with the batch 
+     * lock held (synchronized on the batch), until the batch is flushed. This 
+     * is why it is not public. See RPIUIDevice.Batch class. 
+     * @return the batch, owned by this device */
+    final Batch batch() {
+        _Batch.begin();
+        return _Batch;
+    }
+    
     /** Clear LCD display */
     public final void clearDisplay() {
-        
-        try {
-            // Setup clear display command
-            byte[] ClearCmd = { CMD_CLEAR_DISPLAY, 0x01 };
-            _Device.write(ByteBuffer.wrap(ClearCmd));
+        synchronized (_Batch) {
+            batch().clear().flush();
         }
-        catch (IOException ex) {
-            Logger.getLogger(RPIUIDevice.class.getName()).log(Level.SEVERE, null, ex);
-            throw new RuntimeException("IO error while clearing display of RPIUI");
+    }
+    
+    /** Display a text at a specific line. Only ASCII characters are valid. 
+     * 
+     * The text is written from the first column of the line, and the remaining 
+     * part of the line is left untouched. Characters beyond the last LCD column 
+     * are not displayed. **/
+    public final void displayText(int nLine, CharSequence Text) {
+        synchronized (_Batch) {
+            batch().text(nLine, Text).flush();
         }
     }
     
-    /** Display a String at a specific line. Only ASCII characters are valid. **/
-    public final void displayText(int nLine, String Text) {
-        
-        try {
-            // Setup text cursor at line "nLine"
-            byte[] LineCmd = { CMD_SET_TEXT_CURSOR,
-                               // The top 3 bits are for line number, 
-                               // and the bottom 5 bits are for character 
-                               // position 
-                               (byte) ((nLine - 1) << 5) };
-            _Device.write(ByteBuffer.wrap(LineCmd));
-
-            // Setup text write command 
-            // The command size is the number of chars of the String + 1 for the 
-            // command itself
-            byte[] WriteCmd = new byte[Text.length() + 1];
-            WriteCmd[0] = CMD_DISPLAY_TEXT;
-
-            // Convert the String to a byte array, putting it in the command
-            // Note: only ASCII characters are valid (8-bits)
-            char[] chars = Text.toCharArray();
-            for (int i = 0; i < chars.length; i++) {
-                WriteCmd[i+1] = (byte) chars[i];
+    /** Display nLength characters of a char array, starting at nOffset, at a 
+     * specific line. Only ASCII characters are valid. 
+     * 
+     * See displayText(int, CharSequence). **/
+    public final void displayText(int nLine, char[] Text, int nOffset, int nLength) {
+        synchronized (_Batch) {
+            batch().text(nLine, Text, nOffset, nLength).flush();
+        }
+    }
+    
+    /** Display a whole screen (both LCD lines). Only ASCII characters are valid.
+     * 
+     * Lines shorter than the LCD width are padded with blanks, so this replaces 
+     * the former content of the display, without the need to clear it first. 
+     * Only the characters that differ from what is currently displayed are 
+     * sent to the device. **/
+    public final void displayScreen(CharSequence Line1, CharSequence Line2) {
+        synchronized (_Batch) {
+            batch().screen(Line1, Line2).flush();
+        }
+    }
+    
+    /** Display a glyph at a specific line and column. The glyph is uploaded to 
+     * the LCD first if it is not resident (see GlyphCache). */
+    public final void displayGlyph(int nLine, int nColumn, Glyph G) {
+        synchronized (_Batch) {
+            batch().glyph(nLine, nColumn, G).flush();
+        }
+    }
+    
+    /** Map a character to a glyph: the character is then displayed as the glyph 
+     * in any text. Only non-ASCII characters (0x80 and above) may be mapped. 
+     * 
+     * By default, the degree sign (U+00B0) and arrows (U+2190 to U+2193) are 
+     * mapped to the corresponding predefined glyphs. Glyph bitmaps are only 
+     * uploaded to the LCD when they are not already resident (see GlyphCache).
+     * @param Char the character to map (or to map again)
+     * @param G the glyph to display for this character */
+    public final void mapGlyph(char Char, Glyph G) {
+        if (Char < 0x80) {
+            throw new IllegalArgumentException("ASCII characters can not be mapped to glyphs");
+        }
+        synchronized (_Batch) {
+            int nIndex = 0;
+            while (nIndex < _NumGlyphChars && _GlyphChars[nIndex] != Char) {
+                nIndex++;
             }
-            _Device.write(ByteBuffer.wrap(WriteCmd));
+            if (nIndex == _NumGlyphChars) {
+                if (_NumGlyphChars == MAX_GLYPH_CHARS) {
+                    throw new IllegalStateException("Too many characters mapped to glyphs");
+                }
+                _NumGlyphChars++;
+            }
+            _GlyphChars[nIndex] = Char;
+            _MappedGlyphs[nIndex] = G;
         }
-        catch (IOException ex) {
-            Logger.getLogger(RPIUIDevice.class.getName()).log(Level.SEVERE, null, ex);
-            throw new RuntimeException("IO error while displaying Text to RPIUI");
+    }
+    
+    /** Get the cache of the glyphs resident in the LCD, to read its statistics */
+    public final GlyphCache getGlyphCache() {
+        return _GlyphCache;
+    }
+    
+    /** Display a whole screen (both LCD lines) from two char arrays of 
+     * LCD_NUM_COLUMNS characters each. Only ASCII (or mapped) characters are 
+     * valid. 
+     * 
+     * See displayScreen(CharSequence, CharSequence): only the characters that 
+     * differ from what is currently displayed are sent to the device. This 
+     * does not allocate any memory. **/
+    public final void displayScreen(char[] Line1, char[] Line2) {
+        synchronized (_Batch) {
+            batch().screen(Line1, Line2).flush();
+        }
+    }
+    
+    /** Internal method setting the shadow display to a blank LCD */
+    private void resetShadowDisplay() {
+        for (int i = 0; i < _ShadowDisplay.length; i++) {
+            _ShadowDisplay[i] = LCD_BLANK_CHAR;
         }
     }
     
-    /** Get which button have been pushed since last call of this method.
+    /** Get which button have been pushed since last call of this method (or of 
+     * getPushedButtons()).
      * The method return the pushed button number (1 to 6), or 0 if nothing have been 
-     * pushed.
+     * pushed. If several buttons have been pushed, only the lower button number is 
+     * returned: use getPushedButtons() to get all of them.
      * 
      * As there is no way to have an interruption to be notified that a button have been 
      * pushed, this method is intended to be called at regular time intervals. 100ms 
@@ -248,10 +841,27 @@ public class RPIUIDevice {
      * number, and the next call the method will return 0). */
     public final int getPushedButton() {
         
-        try {
+        int nPushedButtons = getPushedButtons();
+        if (nPushedButtons == 0) {
+            return 0;
+        } else {
+            // Return only one pushed button, with lower button numbers priority
+            return Integer.numberOfTrailingZeros(nPushedButtons) + 1;
+        }
+    }
+    
+    /** Get all buttons pushed since last call of this method (or of 
+     * getPushedButton()).
+     * The method return a mask of pushed buttons, where bit n - 1 is set when 
+     * button n have been pushed (ie. bit 0 for button 1, up to bit 5 for 
+     * button 6), or 0 if nothing have been pushed.
+     * 
+     * See getPushedButton() for details on how pushes are detected. */
+    public final int getPushedButtons() {
+        
+        synchronized (_ButtonLock) {
             // Get all pushed buttons since last query to device.
-            _Device.write(CMD_GET_PUSHED_BUTTONS);
-            int DeviceButtonPushedStates = _Device.read();
+            int nButtonStates = readButtonStates();
             
             // Implementation note: 
             // The command CMD_GET_PUSHED_BUTTONS_UNIQUE is not used (0x31 -
@@ -262,83 +872,43 @@ public class RPIUIDevice {
             // CMD_GET_PUSHED_BUTTONS command (0x30 - which count a button kept
             // pushed as multiple pushes) and storing button states locally to 
             // be able to detect effective state changes between two consecutive 
-            // calls.
-            //
-            // This processing is done by computeButtonStatus() method.
-            
-            // Compute all button status
-            boolean b1 = computeButtonStatus(DeviceButtonPushedStates, 1);
-            boolean b2 = computeButtonStatus(DeviceButtonPushedStates, 2);
-            boolean b3 = computeButtonStatus(DeviceButtonPushedStates, 3);
-            boolean b4 = computeButtonStatus(DeviceButtonPushedStates, 4);
-            boolean b5 = computeButtonStatus(DeviceButtonPushedStates, 5);
-            boolean b6 = computeButtonStatus(DeviceButtonPushedStates, 6);
-
-            // Return only one pushed button, with lower button numbers priority
-            if (b1)
-                return 1;
-            else if (b2)
-                return 2;
-            else if (b3)
-                return 3;
-            else if (b4)
-                return 4;
-            else if (b5)
-                return 5;
-            else if (b6)
-                return 6;
-            else 
-                return 0;
-        }
-        catch (IOException ex) {
-            Logger.getLogger(RPIUIDevice.class.getName()).log(Level.SEVERE, null, ex);
-            throw new RuntimeException("IO error while getting button status of RPIUI");     
+            // calls: a new push is a button pushed now, but not at the previous 
+            // call.
+            int nNewPushes = nButtonStates & ~_LastButtonStates;
+            _LastButtonStates = nButtonStates;
+            return nNewPushes;
         }
     }
     
-    /** Internal method detect and keep track if a button have been pushed or 
-     * not according to device button state and driver state (using 
-     * _LastButtonStates boolean array)
-     * 
-     *  Each first 6 bits of device state value correspond to a button state. 
-     *  The leftmost nth-bit is set to 1 when nth-button have been "Pushed" 
-     *  and 0 otherwise.
+    /** Get the states of all buttons: the method return a mask of the buttons 
+     * pushed since last query to the device (bit n - 1 set for button n).
      * 
-     *  An effective push is detected when an entry of the boolean array goes 
-     *  from "false" to "true" (but not from "true" to "true", in this case it
-     *  means a button is simply kept pushed). 
-     */
-    private boolean computeButtonStatus(int nDeviceButtonState, int nButton) {
-        
-        // Extract button state from device state value        
-        // We use the button number as a bitmask
-        int nBitMask = 1 << (6 - nButton);
-        boolean buttonPressedOnDevice = ((nDeviceButtonState & nBitMask) == nBitMask);
-        
-        // if device says the button have been pushed
-        if (buttonPressedOnDevice) {
-            // check if it was already considered "pushed" in the driver state
-            if (_LastButtonStates[nButton - 1] == true) { 
-                // If so, it is simply still being pushed, so don't count 
-                // this as a new push. Return "Not pushed", while still keeping
-                // its "Pushed" state.
-                return false;
+     * A button kept pushed is reported at each call. This is intended for 
+     * callers doing their own press and release detection (see ButtonEventQueue 
+     * class). Pushes reported by this method are not reported again by 
+     * getPushedButtons(). */
+    public final int getButtonStates() {
+        
+        synchronized (_ButtonLock) {
+            int nButtonStates = readButtonStates();
+            _LastButtonStates = nButtonStates;
+            return nButtonStates;
+        }
+    }
+    
+    /** Internal method reading the mask of buttons pushed since last query to 
+     * the device */
+    private int readButtonStates() {
+        
+        try {
+            synchronized (_BusLock) {
+                readRegister(CMD_GET_PUSHED_BUTTONS, _ButtonsBuffer, 1);
+                return BUTTON_MASKS[_ButtonsBytes[0] & ((1 << NUM_BUTTONS) - 1)];
             }
-            else {
-                // Otherwise, if it was not pushed previously before, this is 
-                // indeed a new "push". 
-                // Remember the "Pushed" state in the driver, and return 
-                // "Pushed"
-                _LastButtonStates[nButton - 1] = true;
-                return true;
-            }
-        }
-        else {
-            // Otherwise, if the device says the button is not pushed,
-            // Remember the "Not Pushed" state in the driver (note it was maybe 
-            // "Pushed" before), and return "Not Pushed" too.
-            _LastButtonStates[nButton - 1] = false; 
-            return false;
+        }
+        catch (IOException ex) {
+            Logger.getLogger(RPIUIDevice.class.getName()).log(Level.SEVERE, null, ex);
+            throw new RuntimeException("IO error while getting button status of RPIUI");     
         }
     }
     
@@ -357,26 +927,1043 @@ public class RPIUIDevice {
             else {
                 ChannelCmdToUse = CMD_READ_ADC_CHANNEL_1;
             }
-            _Device.write(ChannelCmdToUse);
             
-            // Read the channel value (multibyte)
-            byte[] ResultBuf = { 0x00, 0x00 };
-            _Device.read(ByteBuffer.wrap(ResultBuf));
+            int nRawValue;
+            synchronized (_BusLock) {
+                // Read the channel value (multibyte)
+                readRegister(ChannelCmdToUse, _ADCBuffer, 2);
+                nRawValue = getADCValue(0);
+            }
 
-            // Convert the multibyte value it into an int
-            int ResultVal = (int)(ResultBuf[1] & 0xFF) << 8 | (int)(ResultBuf[0] & 0xFF);
+            // Convert the multibyte value it into an int, and compute the final 
+            // temperature value
+            return toTemperature(nRawValue);
+        }
+        catch (IOException ex) {
+            Logger.getLogger(RPIUIDevice.class.getName()).log(Level.SEVERE, null, ex);
+            throw new RuntimeException("IO error while getting temperature of RPIUI");     
+        }
+    }
+    
+    /** Read the raw values of all sampled ADC channels (as configured with 
+     * Batch.adcNumChannels()) with a single register block read.
+     * 
+     * As the channel registers are consecutive (CMD_READ_ADC_CHANNEL_0, 
+     * CMD_READ_ADC_CHANNEL_1, ...), all channels are read in one transfer 
+     * starting at the first one.
+     * @param RawValues array receiving the raw value of each channel, indexed 
+     * by channel number
+     * @return the number of channels read: the number of sampled channels, or 
+     * the length of the array if smaller */
+    public final int readADCChannels(int[] RawValues) {
+        
+        try {
+            synchronized (_BusLock) {
+                int nNumChannels = Math.min(_ADCNumChannels, RawValues.length);
+                if (nNumChannels == 0) {
+                    return 0;
+                }
+                
+                readRegister(CMD_READ_ADC_CHANNEL_0, _ADCBuffer, nNumChannels * 2);
+                for (int nChannel = 0; nChannel < nNumChannels; nChannel++) {
+                    RawValues[nChannel] = getADCValue(nChannel);
+                }
+                return nNumChannels;
+            }
+        }
+        catch (IOException ex) {
+            Logger.getLogger(RPIUIDevice.class.getName()).log(Level.SEVERE, null, ex);
+            throw new RuntimeException("IO error while reading ADC channels of RPIUI");     
+        }
+    }
+    
+    /** Get temperature data from all sampled ADC channels, with a single 
+     * register block read. See readADCChannels().
+     * @param Temperatures array receiving the temperature of each channel, 
+     * indexed by channel number
+     * @return the number of channels read */
+    public final int readAllTemperatures(double[] Temperatures) {
+        
+        try {
+            synchronized (_BusLock) {
+                int nNumChannels = Math.min(_ADCNumChannels, Temperatures.length);
+                if (nNumChannels == 0) {
+                    return 0;
+                }
+                
+                readRegister(CMD_READ_ADC_CHANNEL_0, _ADCBuffer, nNumChannels * 2);
+                for (int nChannel = 0; nChannel < nNumChannels; nChannel++) {
+                    Temperatures[nChannel] = toTemperature(getADCValue(nChannel));
+                }
+                return nNumChannels;
+            }
+        }
+        catch (IOException ex) {
+            Logger.getLogger(RPIUIDevice.class.getName()).log(Level.SEVERE, null, ex);
+            throw new RuntimeException("IO error while getting temperatures of RPIUI");     
+        }
+    }
+    
+    /** Configure the ADC, and verify the configuration by reading it back from 
+     * the board. <p>
+     * 
+     * If the board did not accept some settings, the configuration read back 
+     * is kept (the number of channels read by readADCChannels() is the one of 
+     * the board), and a warning is logged.
+     * @param Config the ADC configuration to apply
+     * @return true if the board configuration matches Config */
+    public final boolean configureADC(ADCConfiguration Config) {
+        synchronized (_Batch) {
+            batch().adc(Config).flush();
+        }
+        
+        ADCConfiguration BoardConfig = readADCConfiguration();
+        if (BoardConfig.equals(Config)) {
+            return true;
+        } else {
+            Logger.getLogger(RPIUIDevice.class.getName()).log(Level.WARNING, 
+                    "ADC configuration not accepted by RPIUI: " + Config 
+                    + " requested, " + BoardConfig + " read back");
+            return false;
+        }
+    }
+    
+    /** Read the current ADC configuration from the board. This also updates 
+     * the number of channels read by readADCChannels().
+     * @return a new configuration, with the board settings */
+    public final ADCConfiguration readADCConfiguration() {
+        try {
+            synchronized (_BusLock) {
+                // Number of scanned channels first, so that only their sources are 
+                // read. Values out of range are clamped, so that a configuration 
+                // can always be built.
+                readRegister(CMD_SET_ADC_NUM_CHANNELS, _ConfigBuffer, 1);
+                int nNumChannels = Math.max(1, Math.min(_ConfigBytes[0] & 0xFF, ADC_MAX_CHANNELS));
+            
+                // Number of samples is a "short" value (16 bits, little endian)
+                readRegister(CMD_SET_ADC_NUM_SAMPLES, _ConfigBuffer, 2);
+                int nNumSamples = (_ConfigBytes[1] & 0xFF) << 8 | (_ConfigBytes[0] & 0xFF);
+                nNumSamples = Math.max(1, nNumSamples);
             
-            // And compute the final temperature value
-            return ((ResultVal * ADC_REFERENCE_VOLTAGE / TEMPERATURE_VOLTAGE_PER_DEGREE) / ADC_MAXVALUE) 
-                        - TEMPERATURE_OFFSET;
+                readRegister(CMD_SET_ADC_SHIFT, _ConfigBuffer, 1);
+                int nShift = Math.min(_ConfigBytes[0] & 0xFF, ADCConfiguration.MAX_SHIFT);
             
-            // This is based on documentation and examples from:
-            // http://www.bitwizard.nl/wiki/index.php/Temperature_sensor_example
-            // http://www.bitwizard.nl/wiki/index.php/DIO_protocol#Using_the_analog_inputs
+                ADCConfiguration BoardConfig = new ADCConfiguration(nNumChannels, nNumSamples, nShift);
+            
+                // Channel source registers are consecutive: read them at once
+                readRegister(CMD_SET_ADC_CHANNEL_0, _ConfigBuffer, nNumChannels);
+                for (int nChannel = 0; nChannel < nNumChannels; nChannel++) {
+                    BoardConfig.setSource(nChannel, _ConfigBytes[nChannel]);
+                }
+            
+                _ADCNumChannels = nNumChannels;
+                return BoardConfig;
+            }
         }
         catch (IOException ex) {
             Logger.getLogger(RPIUIDevice.class.getName()).log(Level.SEVERE, null, ex);
-            throw new RuntimeException("IO error while getting temperature of RPIUI");     
+            throw new RuntimeException("IO error while reading ADC configuration of RPIUI");     
+        }
+    }
+    
+    /** Read the raw values and temperatures (in tenths of degree) of all 
+     * sampled ADC channels, with a single register block read. 
+     * See readADCChannels() and toTenthsOfDegree().
+     * @param RawValues array receiving the raw value of each channel
+     * @param TenthsOfDegree array receiving the temperature of each channel, 
+     * in tenths of degree
+     * @return the number of channels read */
+    public final int readAllTemperatures(int[] RawValues, int[] TenthsOfDegree) {
+        
+        int nNumChannels = readADCChannels(RawValues);
+        nNumChannels = Math.min(nNumChannels, TenthsOfDegree.length);
+        for (int nChannel = 0; nChannel < nNumChannels; nChannel++) {
+            TenthsOfDegree[nChannel] = toTenthsOfDegree(RawValues[nChannel]);
+        }
+        return nNumChannels;
+    }
+    
+    /** Convert a raw ADC value of a temperature sensor to a temperature in 
+     * tenths of degree (ie. 234 for 23.4 degrees), using a precomputed table. 
+     * Values out of the ADC range are clamped. */
+    public static int toTenthsOfDegree(int nRawValue) {
+        return TEMPERATURE_TENTHS[clampADCValue(nRawValue)];
+    }
+    
+    /** Format a raw ADC value of a temperature sensor as text, with one 
+     * decimal (ie. "23.4"), using a precomputed table. Values out of the ADC 
+     * range are clamped. 
+     * @param nRawValue the raw ADC value
+     * @param Dest array receiving the characters, at least 
+     * TEMPERATURE_MAX_CHARS long from nOffset
+     * @param nOffset offset of the first character in Dest
+     * @return the number of characters written */
+    public static int formatTemperature(int nRawValue, char[] Dest, int nOffset) {
+        int nIndex = clampADCValue(nRawValue);
+        int nLength = TEMPERATURE_LENGTHS[nIndex];
+        System.arraycopy(TEMPERATURE_CHARS, nIndex * TEMPERATURE_MAX_CHARS, Dest, nOffset, nLength);
+        return nLength;
+    }
+    
+    /** Internal method clamping a value to the ADC range */
+    private static int clampADCValue(int nRawValue) {
+        return (nRawValue < 0) ? 0 : ((nRawValue > ADC_MAXVALUE) ? ADC_MAXVALUE : nRawValue);
+    }
+    
+    /** Internal method converting the (little endian) value of the nth ADC 
+     * channel read in the ADC buffer into an int */
+    private int getADCValue(int nIndex) {
+        return (_ADCBytes[nIndex * 2 + 1] & 0xFF) << 8 | (_ADCBytes[nIndex * 2] & 0xFF);
+    }
+    
+    /** Internal method computing the temperature from a raw ADC value */
+    private static double toTemperature(int nRawValue) {
+        return ((nRawValue * ADC_REFERENCE_VOLTAGE / TEMPERATURE_VOLTAGE_PER_DEGREE) / ADC_MAXVALUE) 
+                    - TEMPERATURE_OFFSET;
+        
+        // This is based on documentation and examples from:
+        // http://www.bitwizard.nl/wiki/index.php/Temperature_sensor_example
+        // http://www.bitwizard.nl/wiki/index.php/DIO_protocol#Using_the_analog_inputs
+    }
+    
+    /** Get the number of I2C transactions issued since device construction. 
+     * A combined message counts as a single transaction. */
+    public final long getTransactionCount() {
+        synchronized (_BusLock) {
+            return _TransactionCount;
+        }
+    }
+    
+    /** Internal method waiting for the board to be ready after a reinit. <p>
+     * 
+     * The board is probed with a bounded backoff, until it answers or 
+     * MIN_DELAY_FOR_DEVICE_REINIT elapsed. Once it answers, the LCD is given 
+     * READY_LCD_SETTLE_DELAY to complete its initialization. If the board 
+     * does not support probing, the fixed MIN_DELAY_FOR_DEVICE_REINIT delay is 
+     * used. In all cases, the wait is cut short at nDeadline (in ms). */
+    private void waitUntilReady(long nDeadline) throws InterruptedException {
+        long nStartTime = System.currentTimeMillis();
+        long nEndTime = Math.min(nStartTime + MIN_DELAY_FOR_DEVICE_REINIT, nDeadline);
+        if (!_ReadyProbeSupported) {
+            if (nEndTime > nStartTime) {
+                Thread.sleep(nEndTime - nStartTime);
+            }
+            return;
+        }
+        
+        // If the board does not answer in time, the fixed delay (or the 
+        // deadline) has elapsed anyway
+        long nRemainingTime = nEndTime - nStartTime;
+        int nDelay = READY_PROBE_MIN_DELAY;
+        while (nRemainingTime > 0) {
+            Thread.sleep(Math.min(nDelay, nRemainingTime));
+            if (probe()) {
+                long nSettleDelay = Math.min(READY_LCD_SETTLE_DELAY, nDeadline - System.currentTimeMillis());
+                if (nSettleDelay > 0) {
+                    Thread.sleep(nSettleDelay);
+                }
+                return;
+            }
+            nRemainingTime = nEndTime - System.currentTimeMillis();
+            nDelay = Math.min(nDelay * 2, READY_PROBE_MAX_DELAY);
+        }
+    }
+    
+    /** Internal method probing the board: return true if it answers its 
+     * identification register with a printable character. */
+    private boolean probe() {
+        try {
+            // Single raw attempt: the board is expected to not answer while 
+            // it reinitializes, this is not a bus fault
+            transferRegister(CMD_GET_IDENTIFICATION, _ConfigBuffer, 1);
+            int nChar = _ConfigBytes[0] & 0xFF;
+            return nChar > ' ' && nChar < 0x7F;
+        }
+        catch (IOException ex) {
+            // Not ready (or not supported)
+            return false;
+        }
+    }
+    
+    /** Internal method sending a command with a single value byte. 
+     * Like all internal bus methods below, it must be called with the bus lock 
+     * held (or during construction). */
+    private void writeCommand(byte Cmd, int nValue) throws IOException {
+        _CommandBytes[0] = Cmd;
+        _CommandBytes[1] = (byte) nValue;
+        writeMessage(rewind(_CommandBuffer, 2));
+    }
+    
+    /** Internal method selecting a register and reading nLength bytes from it 
+     * into one of the preallocated result buffers. The transfer is retried on 
+     * failure (see I2CFaultHandler). */
+    private void readRegister(byte Register, ByteBuffer Result, int nLength) throws IOException {
+        for (int nAttempt = 0; ; nAttempt++) {
+            beginTransfer();
+            try {
+                transferRegister(Register, Result, nLength);
+                _FaultHandler.onSuccess();
+                return;
+            }
+            catch (IOException ex) {
+                retryOrThrow(ex, nAttempt);
+            }
+        }
+    }
+    
+    /** Internal method doing a single register read attempt, using the 
+     * combined message of the result buffer if combined messages are enabled. */
+    private void transferRegister(byte Register, ByteBuffer Result, int nLength) throws IOException {
+        _RegisterBytes[0] = Register;
+        rewind(_RegisterBuffer, 1);
+        rewind(Result, nLength);
+        
+        long nStartTime = System.nanoTime();
+        try {
+            if (_UseCombinedMessages) {
+                I2CTransport.CombinedMessage CombinedMessage = (Result == _ButtonsBuffer) ? _ButtonsMessage 
+                        : ((Result == _ADCBuffer) ? _ADCMessage : _ConfigMessage);
+                CombinedMessage.transfer();
+                _TransactionCount++;
+            }
+            else {
+                _Transport.write(_RegisterBuffer);
+                _TransactionCount++;
+                _Transport.read(Result);
+                _TransactionCount++;
+            }
+        }
+        catch (IOException ex) {
+            recordTransfer(Register, 1, nLength, nStartTime, false);
+            throw ex;
+        }
+        recordTransfer(Register, 1, nLength, nStartTime, true);
+    }
+    
+    /** Internal method sending a single I2C write message. The transfer is 
+     * retried on failure (see I2CFaultHandler). */
+    private void writeMessage(ByteBuffer Message) throws IOException {
+        int nPosition = Message.position();
+        for (int nAttempt = 0; ; nAttempt++) {
+            beginTransfer();
+            try {
+                transferMessage(Message);
+                _FaultHandler.onSuccess();
+                return;
+            }
+            catch (IOException ex) {
+                retryOrThrow(ex, nAttempt);
+                Message.position(nPosition);
+            }
+        }
+    }
+    
+    /** Internal method doing a single write attempt of an I2C message */
+    private void transferMessage(ByteBuffer Message) throws IOException {
+        int nLength = Message.remaining();
+        byte Cmd = Message.get(Message.position());
+        long nStartTime = System.nanoTime();
+        try {
+            _Transport.write(Message);
+            _TransactionCount++;
+        }
+        catch (IOException ex) {
+            recordTransfer(Cmd, nLength, 0, nStartTime, false);
+            throw ex;
+        }
+        recordTransfer(Cmd, nLength, 0, nStartTime, true);
+    }
+    
+    /** Internal method recording a transfer attempt in the bus statistics and 
+     * trace. 
+     * @param nStartTime start time of the attempt (System.nanoTime()) */
+    private void recordTransfer(byte Cmd, int nBytesWritten, int nBytesRead, 
+                                long nStartTime, boolean bSuccess) {
+        long nDuration = System.nanoTime() - nStartTime;
+        if (bSuccess) {
+            _BusStatistics.recordTransaction(Cmd, nBytesWritten, nBytesRead, nDuration);
+        } else {
+            _BusStatistics.recordError(Cmd);
+        }
+        _BusTrace.record(Cmd, nBytesWritten, nBytesRead, nStartTime, nDuration, 
+                         bSuccess ? I2CBusTrace.OUTCOME_OK : I2CBusTrace.OUTCOME_ERROR);
+    }
+    
+    /** Internal method called before each transfer attempt. If the circuit is 
+     * open, the device is reopened when the reopen delay elapsed, otherwise the 
+     * transfer is rejected. */
+    private void beginTransfer() throws IOException {
+        if (_FaultHandler.isOpen()) {
+            if (_FaultHandler.onOpenCircuit()) {
+                reopen();
+            } else {
+                throw new IOException("I2C circuit open, transfer rejected");
+            }
+        }
+    }
+    
+    /** Internal method called after a failed transfer attempt: wait before 
+     * retrying it, or throw the error if the transfer must not be retried. */
+    private void retryOrThrow(IOException Error, int nAttempt) throws IOException {
+        int nDelay = _FaultHandler.onError(nAttempt);
+        if (nDelay < 0) {
+            throw Error;
+        }
+        try {
+            Thread.sleep(nDelay);
+        } catch (InterruptedException ex) {
+            throw Error;
+        }
+    }
+    
+    /** Internal method reopening the I2C device (after repeated failures), and 
+     * assembling again the combined messages. A device given at construction 
+     * is not reopened, only tried again. */
+    private void reopen() throws IOException {
+        try {
+            reopenDevice();
+        } catch (IOException ex) {
+            // Count it as a failed operation, the next reopen will be tried 
+            // after the reopen delay
+            _FaultHandler.onError(Integer.MAX_VALUE);
+            throw ex;
+        }
+    }
+    
+    /** Internal method closing the I2C device, and opening it again with the 
+     * current configuration (see I2CTransport.reopen()). The combined messages 
+     * are assembled again. */
+    private void reopenDevice() throws IOException {
+        _Transport.reopen();
+        assembleMessages();
+        _Batch.discardCombinedMessages();
+    }
+    
+    /** Internal method opening the DIO transport of a board */
+    private static I2CTransport openTransport(int nControllerNumber, int nAddress, 
+                                              int nClockFrequency) {
+        try {
+            return new DIOI2CTransport(nControllerNumber, nAddress, nClockFrequency);
+        }
+        catch (IOException ex) {
+            Logger.getLogger(RPIUIDevice.class.getName()).log(Level.SEVERE, null, ex);
+            throw new RuntimeException("IO error while opening device of RPIUI");
+        }
+    }
+    
+    /** Internal method assembling the combined messages on the preallocated 
+     * buffers (only if combined messages are enabled). The messages are bound 
+     * to the current I2C device. */
+    private void assembleMessages() throws IOException {
+        if (_UseCombinedMessages) {
+            _ButtonsMessage = _Transport.createCombinedMessage()
+                    .appendWrite(_RegisterBuffer)
+                    .appendRead(_ButtonsBuffer);
+            _ADCMessage = _Transport.createCombinedMessage()
+                    .appendWrite(_RegisterBuffer)
+                    .appendRead(_ADCBuffer);
+            _ConfigMessage = _Transport.createCombinedMessage()
+                    .appendWrite(_RegisterBuffer)
+                    .appendRead(_ConfigBuffer);
+        }
+    }
+    
+    /** Get the fault handling policy of I2C transfers, to configure it or to 
+     * read its statistics. */
+    public final I2CFaultHandler getFaultHandler() {
+        return _FaultHandler;
+    }
+    
+    /** Get the per-command statistics of the I2C traffic (see 
+     * I2CBusStatistics.snapshot() to read them) */
+    public final I2CBusStatistics getBusStatistics() {
+        return _BusStatistics;
+    }
+    
+    /** Get the trace of the last I2C transfers, to configure it (see 
+     * I2CBusTrace.setCapacity()) or to dump it */
+    public final I2CBusTrace getBusTrace() {
+        return _BusTrace;
+    }
+    
+    /** Internal method preparing a preallocated buffer for a new transfer of 
+     * nLength bytes. */
+    private static ByteBuffer rewind(ByteBuffer Buffer, int nLength) {
+        Buffer.clear();
+        Buffer.limit(nLength);
+        return Buffer;
+    }
+    
+    /** Batch of RPIUIDevice commands. <p>
+     * 
+     * A batch is obtained with RPIUIDevice.batch(), by the device operations. 
+     * Commands are staged in a reusable buffer, and then sent to the device when 
+     * the batch is flushed: <br>
+     * <code>batch().clear().text(1, Line1).text(2, Line2).flush();</code> <p>
+     * 
+     * Text commands are staged against the LCD content as it will be once the 
+     * previously staged commands are done, so that only the changed characters 
+     * are sent. When combined messages are enabled, all staged commands are sent 
+     * as a single I2C transaction. Otherwise, each command is sent as a separate 
+     * I2C write. If the staging buffer gets full, the commands already staged are 
+     * flushed automatically. <p>
+     * 
+     * The batch is owned by its device and reused by each call to batch(), so it 
+     * is not public. Each of its methods is thread safe, but a thread building a 
+     * batch of several commands must hold the batch lock from batch() until it 
+     * is flushed: <br>
+     * <code>synchronized (_Batch) { batch().clear().text(1, Line1).flush(); }</code> <br>
+     * The bus lock of the device is only held while the batch is sent. <p>
+     */
+    final class Batch {
+        
+        // Staging buffer. Each staged I2C message is a slice of _StagedBytes, 
+        // and has its own ByteBuffer wrapping the whole array.
+        private final byte[]       _StagedBytes     = new byte[BATCH_CAPACITY];
+        private final ByteBuffer[] _StagedMessages  = new ByteBuffer[BATCH_MAX_MESSAGES];
+        private final int[]        _MessageOffsets  = new int[BATCH_MAX_MESSAGES];
+        private final int[]        _MessageLengths  = new int[BATCH_MAX_MESSAGES];
+        private int _NumMessages;
+        private int _NumBytes;
+        
+        // Combined messages, indexed by their number of messages. They are 
+        // assembled on first use on the staged message buffers, and transferred 
+        // again afterwards.
+        private final I2CTransport.CombinedMessage[] _CombinedMessages 
+                = new I2CTransport.CombinedMessage[BATCH_MAX_MESSAGES + 1];
+        
+        // LCD content once the staged commands are done (see _ShadowDisplay)
+        private final short[] _StagedDisplay = new short[LCD_NUM_LINES * LCD_NUM_COLUMNS];
+        
+        // Encoded text being staged
+        private final byte[] _TextBytes = new byte[LCD_NUM_LINES * LCD_NUM_COLUMNS];
+        
+        // Number of sampled ADC channels once the staged commands are done, 
+        // valid only if staged: a batch without ADC command leaves the number 
+        // of channels alone, as it may be changed meanwhile by 
+        // readADCConfiguration()
+        private int     _StagedADCNumChannels;
+        private boolean _IsADCNumChannelsStaged;
+        
+        // Mask of the glyph slots uploaded by the staged commands (forgotten by 
+        // the glyph cache if the commands are dropped), and mask of the slots 
+        // used by the text being encoded (which must not be evicted)
+        private int _StagedGlyphSlots;
+        private int _EncodedGlyphSlots;
+        
+        private Batch() {
+            for (int i = 0; i < BATCH_MAX_MESSAGES; i++) {
+                _StagedMessages[i] = ByteBuffer.wrap(_StagedBytes);
+            }
+        }
+        
+        /** Stage a clear display command. 
+         * @return this batch */
+        public synchronized Batch clear() {
+            // Nothing to do if the LCD will already be blank
+            if (!isStagedDisplayBlank()) {
+                reserve(1, 2);
+                int nOffset = stageMessage(2);
+                _StagedBytes[nOffset] = CMD_CLEAR_DISPLAY;
+                _StagedBytes[nOffset + 1] = 0x01;
+                for (int i = 0; i < _StagedDisplay.length; i++) {
+                    _StagedDisplay[i] = LCD_BLANK_CHAR;
+                }
+            }
+            return this;
+        }
+        
+        /** Stage a text display at a specific line, from its first column. 
+         * See RPIUIDevice.displayText(int, CharSequence). 
+         * @return this batch */
+        public synchronized Batch text(int nLine, CharSequence Text) {
+            return text(nLine, 0, Text);
+        }
+        
+        /** Stage a text display at a specific line and column. Only ASCII 
+         * characters are valid. Characters beyond the last LCD column are not 
+         * displayed. 
+         * @return this batch */
+        public synchronized Batch text(int nLine, int nColumn, CharSequence Text) {
+            // Encode the visible part of the text
+            // Note: only ASCII characters are valid (8-bits)
+            int nLength = Math.max(0, Math.min(Text.length(), LCD_NUM_COLUMNS - nColumn));
+            _EncodedGlyphSlots = 0;
+            for (int i = 0; i < nLength; i++) {
+                _TextBytes[i] = encodeChar(Text.charAt(i));
+            }
+            stageText(nLine, nColumn, _TextBytes, 0, nLength);
+            return this;
+        }
+        
+        /** Stage the display of nLength characters of a char array, starting at 
+         * nOffset, at a specific line. 
+         * See RPIUIDevice.displayText(int, char[], int, int). 
+         * @return this batch */
+        public synchronized Batch text(int nLine, char[] Text, int nOffset, int nLength) {
+            // Encode the visible part of the text
+            int nVisibleLength = Math.min(nLength, LCD_NUM_COLUMNS);
+            _EncodedGlyphSlots = 0;
+            for (int i = 0; i < nVisibleLength; i++) {
+                _TextBytes[i] = encodeChar(Text[nOffset + i]);
+            }
+            stageText(nLine, 0, _TextBytes, 0, nVisibleLength);
+            return this;
+        }
+        
+        /** Stage a whole screen display. 
+         * See RPIUIDevice.displayScreen(CharSequence, CharSequence). 
+         * @return this batch */
+        public synchronized Batch screen(CharSequence Line1, CharSequence Line2) {
+            // Encode both lines, padded with blanks
+            _EncodedGlyphSlots = 0;
+            encodePaddedLine(Line1, 0);
+            encodePaddedLine(Line2, LCD_NUM_COLUMNS);
+            stageScreen();
+            return this;
+        }
+        
+        /** Stage a whole screen display, from two char arrays of 
+         * LCD_NUM_COLUMNS characters each. 
+         * See RPIUIDevice.displayScreen(char[], char[]). 
+         * @return this batch */
+        public synchronized Batch screen(char[] Line1, char[] Line2) {
+            _EncodedGlyphSlots = 0;
+            for (int i = 0; i < LCD_NUM_COLUMNS; i++) {
+                _TextBytes[i] = encodeChar(Line1[i]);
+                _TextBytes[LCD_NUM_COLUMNS + i] = encodeChar(Line2[i]);
+            }
+            stageScreen();
+            return this;
+        }
+        
+        /** Internal method staging the display of the whole screen encoded in 
+         * the text buffer */
+        private void stageScreen() {
+            // Clearing the display first is cheaper when the new screen is 
+            // mostly blank, as only non-blank characters need to be written 
+            // after a clear
+            int nChanged = 0;
+            int nNonBlank = 0;
+            for (int i = 0; i < _StagedDisplay.length; i++) {
+                if (_TextBytes[i] != _StagedDisplay[i]) {
+                    nChanged++;
+                }
+                if (_TextBytes[i] != LCD_BLANK_CHAR) {
+                    nNonBlank++;
+                }
+            }
+            if (nNonBlank + LCD_CLEAR_COST < nChanged) {
+                clear();
+            }
+            
+            stageText(1, 0, _TextBytes, 0, LCD_NUM_COLUMNS);
+            stageText(2, 0, _TextBytes, LCD_NUM_COLUMNS, LCD_NUM_COLUMNS);
+        }
+        
+        /** Stage the display of a glyph at a specific line and column. The glyph 
+         * is uploaded to the LCD first if it is not resident (see GlyphCache). 
+         * @return this batch */
+        public synchronized Batch glyph(int nLine, int nColumn, Glyph G) {
+            _EncodedGlyphSlots = 0;
+            _TextBytes[0] = encodeGlyph(G);
+            stageText(nLine, nColumn, _TextBytes, 0, 1);
+            return this;
+        }
+        
+        /** Stage a LCD contrast command.
+         * @return this batch */
+        public synchronized Batch contrast(int nContrast) {
+            stageCommand(CMD_SET_CONTRAST, nContrast);
+            return this;
+        }
+        
+        /** Stage a whole ADC configuration: channel sources, number of 
+         * channels, number of samples and shift. 
+         * @return this batch */
+        public synchronized Batch adc(ADCConfiguration Config) {
+            int nNumChannels = Config.getNumChannels();
+            for (int nChannel = 0; nChannel < nNumChannels; nChannel++) {
+                adcChannel(nChannel, Config.getSource(nChannel));
+            }
+            return adcNumChannels(nNumChannels)
+                    .adcSamples(Config.getNumSamples())
+                    .adcShift(Config.getShift());
+        }
+        
+        /** Stage the configuration of the source of an ADC channel.
+         * @param nChannel the ADC channel (0 to 7)
+         * @param nSource the ADC source (see BitWizard documentation)
+         * @return this batch */
+        public synchronized Batch adcChannel(int nChannel, int nSource) {
+            stageCommand((byte) (CMD_SET_ADC_CHANNEL_0 + nChannel), nSource);
+            return this;
+        }
+        
+        /** Stage the configuration of the number of ADC channels to sample 
+         * (up to 8).
+         * @return this batch */
+        public synchronized Batch adcNumChannels(int nNumChannels) {
+            stageCommand(CMD_SET_ADC_NUM_CHANNELS, nNumChannels);
+            _StagedADCNumChannels = nNumChannels;
+            _IsADCNumChannelsStaged = true;
+            return this;
+        }
+        
+        /** Stage the configuration of the number of ADC samples.
+         * @return this batch */
+        public synchronized Batch adcSamples(int nNumSamples) {
+            // The register wants a "short" value (16 bits, little endian)
+            reserve(1, 3);
+            int nOffset = stageMessage(3);
+            _StagedBytes[nOffset] = CMD_SET_ADC_NUM_SAMPLES;
+            _StagedBytes[nOffset + 1] = (byte) nNumSamples;
+            _StagedBytes[nOffset + 2] = (byte) (nNumSamples >> 8);
+            return this;
+        }
+        
+        /** Stage the configuration of the ADC shift.
+         * @return this batch */
+        public synchronized Batch adcShift(int nShift) {
+            stageCommand(CMD_SET_ADC_SHIFT, nShift);
+            return this;
+        }
+        
+        /** Send all staged commands to the device, and empty the batch. */
+        public synchronized void flush() {
+            try {
+                send();
+            }
+            catch (IOException ex) {
+                Logger.getLogger(RPIUIDevice.class.getName()).log(Level.SEVERE, null, ex);
+                throw new RuntimeException("IO error while sending commands to RPIUI");
+            }
+            finally {
+                // Staged commands are dropped in all cases
+                begin();
+            }
+        }
+        
+        /** Internal method emptying the batch */
+        private synchronized void begin() {
+            _NumMessages = 0;
+            _NumBytes = 0;
+            System.arraycopy(_ShadowDisplay, 0, _StagedDisplay, 0, _StagedDisplay.length);
+            _IsADCNumChannelsStaged = false;
+            if (_StagedGlyphSlots != 0) {
+                // Glyph uploads were dropped
+                _GlyphCache.invalidate(_StagedGlyphSlots);
+                _StagedGlyphSlots = 0;
+            }
+        }
+        
+        /** Internal method selecting the slice of each staged message */
+        private void selectMessages() {
+            for (int i = 0; i < _NumMessages; i++) {
+                ByteBuffer Message = _StagedMessages[i];
+                Message.clear();
+                Message.limit(_MessageOffsets[i] + _MessageLengths[i]);
+                Message.position(_MessageOffsets[i]);
+            }
+        }
+        
+        /** Internal method recording the staged messages in the bus 
+         * statistics and trace, as parts of a combined message started at 
+         * nStartTime (System.nanoTime()) */
+        private void recordMessages(long nStartTime, boolean bSuccess) {
+            for (int i = 0; i < _NumMessages; i++) {
+                recordTransfer(_StagedBytes[_MessageOffsets[i]], _MessageLengths[i], 0, 
+                               nStartTime, bSuccess);
+            }
+        }
+        
+        /** Internal method doing a single transfer attempt of the staged 
+         * messages, as a combined message */
+        private void transferCombinedMessage() throws IOException {
+            long nStartTime = System.nanoTime();
+            try {
+                getCombinedMessage().transfer();
+                _TransactionCount++;
+            }
+            catch (IOException ex) {
+                recordMessages(nStartTime, false);
+                throw ex;
+            }
+            recordMessages(nStartTime, true);
+        }
+        
+        /** Internal method returning the combined message of the staged 
+         * messages, assembling it on first use */
+        private I2CTransport.CombinedMessage getCombinedMessage() throws IOException {
+            I2CTransport.CombinedMessage CombinedMessage = _CombinedMessages[_NumMessages];
+            if (CombinedMessage == null) {
+                CombinedMessage = _Transport.createCombinedMessage();
+                for (int i = 0; i < _NumMessages; i++) {
+                    CombinedMessage.appendWrite(_StagedMessages[i]);
+                }
+                _CombinedMessages[_NumMessages] = CombinedMessage;
+            }
+            return CombinedMessage;
+        }
+        
+        /** Internal method discarding the combined messages, when the device 
+         * is reopened. They are assembled again on next use. */
+        private void discardCombinedMessages() {
+            for (int i = 0; i < _CombinedMessages.length; i++) {
+                _CombinedMessages[i] = null;
+            }
+        }
+        
+        /** Internal method sending the staged messages, as a single combined 
+         * message if enabled */
+        private void send() throws IOException {
+            if (_NumMessages == 0) {
+                return;
+            }
+            
+            try {
+                sendMessages();
+            }
+            catch (IOException ex) {
+                // Some messages may have been done: the LCD content and the 
+                // resident glyphs are unknown, so everything is sent again by 
+                // the next updates
+                for (int i = 0; i < _ShadowDisplay.length; i++) {
+                    _ShadowDisplay[i] = LCD_UNKNOWN_CHAR;
+                }
+                _GlyphCache.invalidate((1 << GlyphCache.NUM_SLOTS) - 1);
+                _StagedGlyphSlots = 0;
+                throw ex;
+            }
+            
+            // The device now displays the staged content, with the staged glyphs
+            System.arraycopy(_StagedDisplay, 0, _ShadowDisplay, 0, _ShadowDisplay.length);
+            _StagedGlyphSlots = 0;
+            _IsADCNumChannelsStaged = false;
+            _NumMessages = 0;
+            _NumBytes = 0;
+        }
+        
+        /** Internal method sending the staged messages, retried on failure */
+        private void sendMessages() throws IOException {
+            // The bus lock is held while sending all messages, so that they are 
+            // not interleaved with the ones of other threads
+            synchronized (_BusLock) {
+                // The whole batch is retried on failure (see I2CFaultHandler), 
+                // from its first message: a message may depend on the previous 
+                // ones (ie. a text write on its cursor command), so it is never 
+                // sent again alone
+                for (int nAttempt = 0; ; nAttempt++) {
+                    beginTransfer();
+                    try {
+                        selectMessages();
+                        if (_UseCombinedMessages && _NumMessages > 1) {
+                            transferCombinedMessage();
+                        }
+                        else {
+                            for (int i = 0; i < _NumMessages; i++) {
+                                transferMessage(_StagedMessages[i]);
+                            }
+                        }
+                        _FaultHandler.onSuccess();
+                        break;
+                    }
+                    catch (IOException ex) {
+                        retryOrThrow(ex, nAttempt);
+                    }
+                }
+                
+                // The device is now configured
+                if (_IsADCNumChannelsStaged) {
+                    _ADCNumChannels = _StagedADCNumChannels;
+                }
+            }
+        }
+        
+        /** Internal method making room in the staging buffer for nMessages 
+         * messages of nBytes bytes in total, flushing it if needed */
+        private void reserve(int nMessages, int nBytes) {
+            if (_NumMessages + nMessages > BATCH_MAX_MESSAGES 
+                    || _NumBytes + nBytes > BATCH_CAPACITY) {
+                flush();
+            }
+        }
+        
+        /** Internal method adding a message of nLength bytes to the staging 
+         * buffer. Room must have been reserved. 
+         * @return the offset of the message in the staging buffer */
+        private int stageMessage(int nLength) {
+            int nOffset = _NumBytes;
+            _MessageOffsets[_NumMessages] = nOffset;
+            _MessageLengths[_NumMessages] = nLength;
+            _NumMessages++;
+            _NumBytes += nLength;
+            return nOffset;
+        }
+        
+        /** Internal method staging a command with a single value byte */
+        private void stageCommand(byte Cmd, int nValue) {
+            reserve(1, 2);
+            int nOffset = stageMessage(2);
+            _StagedBytes[nOffset] = Cmd;
+            _StagedBytes[nOffset + 1] = (byte) nValue;
+        }
+        
+        /** Internal method staging nLength characters of Content (from nOffset) 
+         * at a specific line and column, sending only the characters that differ 
+         * from the staged display. 
+         * 
+         * Changed characters are grouped into runs. For each run, the text cursor 
+         * is moved to the first changed column (using the column bits of the 
+         * CMD_SET_TEXT_CURSOR command), then the run characters are written. Runs 
+         * separated by less than LCD_MAX_MERGED_GAP unchanged characters are 
+         * merged into a single one. */
+        private void stageText(int nLine, int nColumn, byte[] Content, int nOffset, 
+                               int nLength) {
+            
+            // Offset of the first character in the display
+            int nDisplayOffset = (nLine - 1) * LCD_NUM_COLUMNS + nColumn;
+            
+            int i = 0;
+            while (i < nLength) {
+                if (_StagedDisplay[nDisplayOffset + i] == Content[nOffset + i]) {
+                    // Character already displayed
+                    i++;
+                }
+                else {
+                    // Start of a changed run: find its end, absorbing short 
+                    // gaps of unchanged characters
+                    int nRunStart = i;
+                    int nRunEnd = i + 1; // exclusive
+                    int nScan = nRunEnd;
+                    while (nScan < nLength) {
+                        if (_StagedDisplay[nDisplayOffset + nScan] != Content[nOffset + nScan]) {
+                            nScan++;
+                            nRunEnd = nScan;
+                        }
+                        else if (nScan - nRunEnd < LCD_MAX_MERGED_GAP) {
+                            nScan++;
+                        }
+                        else {
+                            break;
+                        }
+                    }
+                    
+                    stageTextRun(nLine, nColumn + nRunStart, Content, nOffset + nRunStart, 
+                                 nRunEnd - nRunStart);
+                    i = nRunEnd;
+                }
+            }
+        }
+        
+        /** Internal method staging the cursor and text commands writing nLength 
+         * characters of Content (from nOffset) at a specific line and column */
+        private void stageTextRun(int nLine, int nColumn, byte[] Content, int nOffset, 
+                                  int nLength) {
+            
+            // Both commands are staged together
+            reserve(2, 2 + 1 + nLength);
+            
+            // Setup text cursor at line "nLine" and column "nColumn"
+            // The top 3 bits are for line number, and the bottom 5 bits are for 
+            // character position 
+            int nCursorOffset = stageMessage(2);
+            _StagedBytes[nCursorOffset] = CMD_SET_TEXT_CURSOR;
+            _StagedBytes[nCursorOffset + 1] = (byte) (((nLine - 1) << 5) | nColumn);
+            
+            // Setup text write command 
+            // The command size is the number of chars of the run + 1 for the 
+            // command itself
+            int nTextOffset = stageMessage(nLength + 1);
+            _StagedBytes[nTextOffset] = CMD_DISPLAY_TEXT;
+            System.arraycopy(Content, nOffset, _StagedBytes, nTextOffset + 1, nLength);
+            
+            // Update the staged display
+            int nDisplayOffset = (nLine - 1) * LCD_NUM_COLUMNS + nColumn;
+            for (int i = 0; i < nLength; i++) {
+                _StagedDisplay[nDisplayOffset + i] = Content[nOffset + i];
+            }
+        }
+        
+        /** Internal method encoding a LCD line at nOffset of the text buffer, 
+         * padding it with blanks */
+        private void encodePaddedLine(CharSequence Text, int nOffset) {
+            int nTextLength = Math.min(Text.length(), LCD_NUM_COLUMNS);
+            for (int i = 0; i < LCD_NUM_COLUMNS; i++) {
+                _TextBytes[nOffset + i] = (i < nTextLength) ? encodeChar(Text.charAt(i)) : LCD_BLANK_CHAR;
+            }
+        }
+        
+        /** Internal method encoding a character: ASCII characters as is, and 
+         * mapped characters as their glyph (see mapGlyph()) */
+        private byte encodeChar(char Char) {
+            if (Char >= 0x80) {
+                for (int i = 0; i < _NumGlyphChars; i++) {
+                    if (_GlyphChars[i] == Char) {
+                        return encodeGlyph(_MappedGlyphs[i]);
+                    }
+                }
+            }
+            return (byte) Char;
+        }
+        
+        /** Internal method encoding a glyph as the character code of its slot, 
+         * staging its upload if it is not resident. Slots displayed by the 
+         * staged display, or used by the text being encoded, are not evicted: 
+         * if no slot is available, the fallback character is used. */
+        private byte encodeGlyph(Glyph G) {
+            int nSlot = _GlyphCache.lookup(G);
+            if (nSlot < 0) {
+                // Make room for the upload before allocating the slot, as this 
+                // may flush the batch
+                reserve(2, 2 + 1 + Glyph.NUM_ROWS);
+                nSlot = _GlyphCache.allocate(G, getDisplayedGlyphSlots() | _EncodedGlyphSlots);
+                if (nSlot < 0) {
+                    return (byte) G.getFallbackChar();
+                }
+                stageGlyphUpload(nSlot, G);
+            }
+            _EncodedGlyphSlots |= 1 << nSlot;
+            return (byte) nSlot;
+        }
+        
+        /** Internal method staging the upload of a glyph bitmap to a slot: the 
+         * CGRAM address is set with a raw LCD instruction, then the rows are 
+         * written as data. Text is always written after a cursor command, which 
+         * sets the display address back. Room must have been reserved. */
+        private void stageGlyphUpload(int nSlot, Glyph G) {
+            int nInstructionOffset = stageMessage(2);
+            _StagedBytes[nInstructionOffset] = CMD_WRITE_LCD_INSTRUCTION;
+            _StagedBytes[nInstructionOffset + 1] = (byte) (LCD_SET_CGRAM_ADDRESS | (nSlot << 3));
+            
+            int nRowsOffset = stageMessage(1 + Glyph.NUM_ROWS);
+            _StagedBytes[nRowsOffset] = CMD_DISPLAY_TEXT;
+            for (int i = 0; i < Glyph.NUM_ROWS; i++) {
+                _StagedBytes[nRowsOffset + 1 + i] = (byte) G.getRow(i);
+            }
+            _StagedGlyphSlots |= 1 << nSlot;
+        }
+        
+        /** Internal method returning the mask of the glyph slots displayed by 
+         * the staged display (character codes 0 to 7) */
+        private int getDisplayedGlyphSlots() {
+            int nSlots = 0;
+            for (int i = 0; i < _StagedDisplay.length; i++) {
+                if (_StagedDisplay[i] >= 0 && _StagedDisplay[i] < GlyphCache.NUM_SLOTS) {
+                    nSlots |= 1 << _StagedDisplay[i];
+                }
+            }
+            return nSlots;
+        }
+        
+        /** Internal method checking if the staged display is a blank LCD */
+        private boolean isStagedDisplayBlank() {
+            for (int i = 0; i < _StagedDisplay.length; i++) {
+                if (_StagedDisplay[i] != LCD_BLANK_CHAR) {
+                    return false;
+                }
+            }
+            return true;
         }
     }
 }
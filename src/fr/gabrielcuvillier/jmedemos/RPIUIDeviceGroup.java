@@ -0,0 +1,585 @@
+/**
+ * RPIUIDeviceGroup.java
+ * This file is part of RPIUIDemo
+ * Copyright 2014 Gabriel Cuvillier
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package fr.gabrielcuvillier.jmedemos;
+
+import java.io.PrintStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Group of RPIUI boards, driven in parallel. <p>
+ *
+ * The group polls the buttons and renders the frames of several boards, each
+ * driven by its own RPIUIDevice (see RPIUIDevice(int, int, boolean, boolean)).
+ * Boards are grouped by I2C controller: each physical bus is served by a
+ * dedicated worker thread, so that boards on separate buses proceed in
+ * parallel, while boards sharing a bus are served one after the other. <p>
+ *
+ * Frames are submitted with submitFrame(), which returns immediately. As with
+ * LCDRenderer, only the latest submitted frame of each board is kept, and it is
+ * rendered by the worker of the board bus. Buttons are polled at a fixed
+ * interval, and pushes are reported to the ButtonListener from the worker
+ * thread. <p>
+ *
+ * The group reports its throughput (frames, polls and I2C transactions per
+ * second, and bus utilisation) per board, per bus and for all boards: see
+ * report(). <p>
+ *
+ * Boards are added before the group is started. The devices are owned by the
+ * group once added: they are ended by endAsync(), and must not be used
+ * directly meanwhile. This class is thread safe. <p>
+ *
+ * @author Gabriel Cuvillier
+ */
+public class RPIUIDeviceGroup {
+
+    /** Listener of the button pushes of the boards of a group */
+    public interface ButtonListener {
+
+        /** Called from the worker thread of the board bus, when buttons have
+         * been pushed on a board. The listener may stop or end the group.
+         * @param nBoard index of the board in the group (see add())
+         * @param nPushedButtons mask of the pushed buttons (see
+         * RPIUIDevice.getPushedButtons()) */
+        void onButtonsPushed(int nBoard, int nPushedButtons);
+    }
+
+    /** Default button polling interval (ms) */
+    public static final int DEFAULT_POLL_INTERVAL = 50;
+
+    // Boards of the group, indexed by board number, and workers (one per
+    // I2C controller, created at start)
+    private final Board[] _Boards;
+    private int           _NumBoards;
+    private BusWorker[]   _Workers;
+
+    // Button polling interval (ms), and listener of the button pushes
+    private final int                _PollInterval;
+    private volatile ButtonListener _Listener;
+
+    // Group state, and start and stop times (in ms) used to compute the
+    // throughput (stop time is 0 until stopped)
+    private boolean _IsRunning;
+    private long    _StartTime;
+    private long    _StopTime;
+
+    /** Construct an empty device group.
+     * @param nMaxBoards maximum number of boards of the group
+     * @param nPollInterval button polling interval (ms) */
+    public RPIUIDeviceGroup(int nMaxBoards, int nPollInterval) {
+        _Boards = new Board[nMaxBoards];
+        _PollInterval = Math.max(1, nPollInterval);
+    }
+
+    /** Add a board to the group. The group must not be started.
+     * @param Device the device driving the board
+     * @return the index of the board in the group */
+    public synchronized int add(RPIUIDevice Device) {
+        if (_Workers != null) {
+            throw new IllegalStateException("Device group already started");
+        }
+        if (_NumBoards >= _Boards.length) {
+            throw new IllegalStateException("Too many boards in device group");
+        }
+        _Boards[_NumBoards] = new Board(Device);
+        return _NumBoards++;
+    }
+
+    /** Get the number of boards of the group */
+    public synchronized int getNumBoards() {
+        return _NumBoards;
+    }
+
+    /** Get the number of buses of the group (available once started) */
+    public synchronized int getNumBuses() {
+        return (_Workers != null) ? _Workers.length : 0;
+    }
+
+    /** Set the listener of the button pushes (null for none) */
+    public void setButtonListener(ButtonListener Listener) {
+        _Listener = Listener;
+    }
+
+    /** Start the group: create one worker thread per I2C controller, and start
+     * them. A group may only be started once. */
+    public synchronized void start() {
+        if (_Workers != null) {
+            // Already started
+            return;
+        }
+
+        // Count the distinct controllers, then create one worker for each of
+        // them, with the boards of its bus
+        int[] Controllers = new int[_NumBoards];
+        int nNumBuses = 0;
+        for (int nBoard = 0; nBoard < _NumBoards; nBoard++) {
+            int nController = _Boards[nBoard].Device.getControllerNumber();
+            int nBus = 0;
+            while (nBus < nNumBuses && Controllers[nBus] != nController) {
+                nBus++;
+            }
+            if (nBus == nNumBuses) {
+                Controllers[nNumBuses++] = nController;
+            }
+        }
+        _Workers = new BusWorker[nNumBuses];
+        for (int nBus = 0; nBus < nNumBuses; nBus++) {
+            int nNumBusBoards = 0;
+            for (int nBoard = 0; nBoard < _NumBoards; nBoard++) {
+                if (_Boards[nBoard].Device.getControllerNumber() == Controllers[nBus]) {
+                    nNumBusBoards++;
+                }
+            }
+            int[] BusBoards = new int[nNumBusBoards];
+            nNumBusBoards = 0;
+            for (int nBoard = 0; nBoard < _NumBoards; nBoard++) {
+                if (_Boards[nBoard].Device.getControllerNumber() == Controllers[nBus]) {
+                    BusBoards[nNumBusBoards++] = nBoard;
+                    _Boards[nBoard].Worker = nBus;
+                }
+            }
+            _Workers[nBus] = new BusWorker(Controllers[nBus], BusBoards);
+        }
+
+        _IsRunning = true;
+        _StartTime = System.currentTimeMillis();
+        for (int nBoard = 0; nBoard < _NumBoards; nBoard++) {
+            _Boards[nBoard].StartTransactionCount = _Boards[nBoard].Device.getTransactionCount();
+        }
+        for (BusWorker Worker : _Workers) {
+            Worker._Thread.start();
+        }
+    }
+
+    /** Stop the group: stop the worker threads, dropping any pending frame.
+     *
+     * The method waits for the operations in progress to be completed, so that
+     * the devices may be safely ended afterwards (unless called from a worker
+     * thread, ie. from the button listener). */
+    public void stop() {
+        BusWorker[] Workers;
+        synchronized (this) {
+            if (_Workers == null) {
+                // Not started
+                return;
+            }
+            if (_IsRunning) {
+                _IsRunning = false;
+                _StopTime = System.currentTimeMillis();
+            }
+            Workers = _Workers;
+        }
+
+        for (BusWorker Worker : Workers) {
+            Worker.stop();
+        }
+        // Wait outside of the group monitor, as the workers need it to complete
+        for (BusWorker Worker : Workers) {
+            if (Worker._Thread != Thread.currentThread()) {
+                try {
+                    Worker._Thread.join();
+                } catch (InterruptedException ex) {
+                    Logger.getLogger(RPIUIDeviceGroup.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+
+    /** Stop the group and end all its devices asynchronously, in a dedicated
+     * thread. The method returns immediately, and the devices are ended in
+     * parallel.
+     * @param nTimeout maximum duration of the shutdown (in ms)
+     * @return the completion handle of the shutdown of all devices */
+    public ShutdownHandle endAsync(final int nTimeout) {
+        final ShutdownHandle Handle = new ShutdownHandle();
+        final long nDeadline = System.currentTimeMillis() + nTimeout;
+        final Board[] Boards;
+        synchronized (this) {
+            Boards = new Board[_NumBoards];
+            System.arraycopy(_Boards, 0, Boards, 0, _NumBoards);
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stop();
+
+                    ShutdownHandle[] Shutdowns = new ShutdownHandle[Boards.length];
+                    for (int nBoard = 0; nBoard < Boards.length; nBoard++) {
+                        int nRemainingTime = (int) Math.max(0, nDeadline - System.currentTimeMillis());
+                        Shutdowns[nBoard] = Boards[nBoard].Device.endAsync(nRemainingTime);
+                    }
+                    for (ShutdownHandle Shutdown : Shutdowns) {
+                        Shutdown.await(Math.max(0, nDeadline - System.currentTimeMillis()));
+                    }
+                } finally {
+                    Handle.complete();
+                }
+            }
+        }).start();
+        return Handle;
+    }
+
+    /** Submit a frame to display on a board. The method returns immediately.
+     * The frame is dropped if the group is not running.
+     * @param nBoard index of the board in the group
+     * @param Line1 text of the first LCD line
+     * @param Line2 text of the second LCD line */
+    public void submitFrame(int nBoard, String Line1, String Line2) {
+        BusWorker Worker;
+        Board TargetBoard;
+        synchronized (this) {
+            if (!_IsRunning) {
+                return;
+            }
+            TargetBoard = _Boards[nBoard];
+            Worker = _Workers[TargetBoard.Worker];
+        }
+        Worker.submitFrame(TargetBoard, Line1, Line2);
+    }
+
+    /** Submit a frame to display on a board, from two char arrays of
+     * LCD_NUM_COLUMNS characters each. The arrays are copied, so that the
+     * caller may reuse them once the method returns. See
+     * submitFrame(int, String, String): this does not allocate any memory.
+     * @param nBoard index of the board in the group
+     * @param Line1 characters of the first LCD line
+     * @param Line2 characters of the second LCD line */
+    public void submitFrame(int nBoard, char[] Line1, char[] Line2) {
+        BusWorker Worker;
+        Board TargetBoard;
+        synchronized (this) {
+            if (!_IsRunning) {
+                return;
+            }
+            TargetBoard = _Boards[nBoard];
+            Worker = _Workers[TargetBoard.Worker];
+        }
+        Worker.submitFrame(TargetBoard, Line1, Line2);
+    }
+
+    /** Submit a frame to display on all boards. See submitFrame(). */
+    public void submitFrameToAll(String Line1, String Line2) {
+        int nNumBoards = getNumBoards();
+        for (int nBoard = 0; nBoard < nNumBoards; nBoard++) {
+            submitFrame(nBoard, Line1, Line2);
+        }
+    }
+
+    /** Submit a frame to display on all boards, from two char arrays. See
+     * submitFrame(int, char[], char[]). */
+    public void submitFrameToAll(char[] Line1, char[] Line2) {
+        int nNumBoards = getNumBoards();
+        for (int nBoard = 0; nBoard < nNumBoards; nBoard++) {
+            submitFrame(nBoard, Line1, Line2);
+        }
+    }
+
+    /** Print the throughput of the group: one line per board, one line per bus,
+     * and one line for all boards. Rates are computed from the group start to
+     * now (or to its stop).
+     * @param Out the stream receiving the report */
+    public void report(PrintStream Out) {
+        Board[] Boards;
+        BusWorker[] Workers;
+        int nNumBoards;
+        long nElapsedTime;
+        synchronized (this) {
+            if (_Workers == null) {
+                Out.println("Device group not started");
+                return;
+            }
+            Boards = _Boards;
+            Workers = _Workers;
+            nNumBoards = _NumBoards;
+            nElapsedTime = Math.max(1, ((_StopTime != 0) ? _StopTime : System.currentTimeMillis())
+                                            - _StartTime);
+        }
+
+        long nTotalFrames = 0;
+        long nTotalPolls = 0;
+        long nTotalTransactions = 0;
+        for (BusWorker Worker : Workers) {
+            long nBusFrames = 0;
+            long nBusPolls = 0;
+            long nBusTransactions = 0;
+            long nBusBusyNanos = 0;
+            for (int nBoard : Worker._Boards) {
+                Board B = Boards[nBoard];
+                long nFrames;
+                long nPolls;
+                long nErrors;
+                long nBusyNanos;
+                synchronized (Worker) {
+                    nFrames = B.FramesRendered;
+                    nPolls = B.Polls;
+                    nErrors = B.Errors;
+                    nBusyNanos = B.BusyNanos;
+                }
+                long nTransactions = B.Device.getTransactionCount() - B.StartTransactionCount;
+                Out.format("Board %d (I2C %d:0x%s): %d frames, %d polls, %d errors, "
+                        + "%d I2C transactions (%d/s)\n",
+                        nBoard, Worker._Controller, Integer.toHexString(B.Device.getAddress()),
+                        nFrames, nPolls, nErrors, nTransactions, nTransactions * 1000 / nElapsedTime);
+                nBusFrames += nFrames;
+                nBusPolls += nPolls;
+                nBusTransactions += nTransactions;
+                nBusBusyNanos += nBusyNanos;
+            }
+            Out.format("Bus %d: %d boards, %d frames/s, %d I2C transactions/s, utilisation %d%%\n",
+                    Worker._Controller, Worker._Boards.length, nBusFrames * 1000 / nElapsedTime,
+                    nBusTransactions * 1000 / nElapsedTime,
+                    Math.min(100, nBusBusyNanos / 10000 / nElapsedTime));
+            nTotalFrames += nBusFrames;
+            nTotalPolls += nBusPolls;
+            nTotalTransactions += nBusTransactions;
+        }
+        Out.format("All boards: %d boards on %d buses, %d frames/s, %d polls/s, "
+                + "%d I2C transactions/s\n",
+                nNumBoards, Workers.length,
+                nTotalFrames * 1000 / nElapsedTime, nTotalPolls * 1000 / nElapsedTime,
+                nTotalTransactions * 1000 / nElapsedTime);
+    }
+
+    /** Internal method returning true while the group is running */
+    private synchronized boolean isRunning() {
+        return _IsRunning;
+    }
+
+    // Board of the group: its device, the index of the worker of its bus, its
+    // pending frame (as strings, or as chars if PendingIsChars is set) and its
+    // statistics (guarded by the worker)
+    private static class Board {
+        final RPIUIDevice Device;
+        int Worker;
+
+        String  PendingLine1;
+        String  PendingLine2;
+        final char[] PendingChars1 = new char[RPIUIDevice.LCD_NUM_COLUMNS];
+        final char[] PendingChars2 = new char[RPIUIDevice.LCD_NUM_COLUMNS];
+        boolean PendingIsChars;
+        boolean HasPendingFrame;
+
+        long StartTransactionCount;
+        long FramesRendered;
+        long Polls;
+        long Errors;
+        long BusyNanos;
+
+        Board(RPIUIDevice Device) {
+            this.Device = Device;
+        }
+    }
+
+    // Worker of a bus: renders the pending frames, and polls the buttons of
+    // the boards of a single I2C controller
+    private class BusWorker implements Runnable {
+
+        // I2C controller, boards of the bus (indexes in the group), and worker
+        // thread
+        private final int    _Controller;
+        private final int[]  _Boards;
+        private final Thread _Thread;
+
+        // Worker state: false once stopped, and true when a board of the bus
+        // has a pending frame
+        private boolean _IsRunning = true;
+        private boolean _HasPendingFrames;
+
+        // Frames taken from the boards, being rendered by the worker thread
+        // (only accessed by it): as strings, or as chars if _HasRenderChars
+        // is set
+        private final String[] _RenderLines1;
+        private final String[] _RenderLines2;
+        private final char[][] _RenderChars1;
+        private final char[][] _RenderChars2;
+        private final boolean[] _HasRenderChars;
+
+        BusWorker(int nController, int[] Boards) {
+            _Controller = nController;
+            _Boards = Boards;
+            _RenderLines1 = new String[Boards.length];
+            _RenderLines2 = new String[Boards.length];
+            _RenderChars1 = new char[Boards.length][RPIUIDevice.LCD_NUM_COLUMNS];
+            _RenderChars2 = new char[Boards.length][RPIUIDevice.LCD_NUM_COLUMNS];
+            _HasRenderChars = new boolean[Boards.length];
+            _Thread = new Thread(this);
+        }
+
+        synchronized void submitFrame(Board TargetBoard, String Line1, String Line2) {
+            if (_IsRunning) {
+                TargetBoard.PendingLine1 = Line1;
+                TargetBoard.PendingLine2 = Line2;
+                TargetBoard.PendingIsChars = false;
+                TargetBoard.HasPendingFrame = true;
+                _HasPendingFrames = true;
+                notifyAll();
+            }
+        }
+
+        synchronized void submitFrame(Board TargetBoard, char[] Line1, char[] Line2) {
+            if (_IsRunning) {
+                System.arraycopy(Line1, 0, TargetBoard.PendingChars1, 0, RPIUIDevice.LCD_NUM_COLUMNS);
+                System.arraycopy(Line2, 0, TargetBoard.PendingChars2, 0, RPIUIDevice.LCD_NUM_COLUMNS);
+                TargetBoard.PendingLine1 = null;
+                TargetBoard.PendingLine2 = null;
+                TargetBoard.PendingIsChars = true;
+                TargetBoard.HasPendingFrame = true;
+                _HasPendingFrames = true;
+                notifyAll();
+            }
+        }
+
+        synchronized void stop() {
+            _IsRunning = false;
+            notifyAll();
+        }
+
+        // Worker thread implementation
+        @Override
+        public void run() {
+            long nNextPollTime = System.currentTimeMillis();
+            while (true) {
+
+                // Wait for a frame to render, or for the next poll, and take
+                // the pending frames
+                synchronized (this) {
+                    while (_IsRunning && !_HasPendingFrames) {
+                        long nDelay = nNextPollTime - System.currentTimeMillis();
+                        if (nDelay <= 0) {
+                            break;
+                        }
+                        try {
+                            wait(nDelay);
+                        } catch (InterruptedException ex) {
+                            Logger.getLogger(RPIUIDeviceGroup.class.getName()).log(Level.SEVERE, null, ex);
+                        }
+                    }
+                    if (!_IsRunning) {
+                        return;
+                    }
+                    for (int i = 0; i < _Boards.length; i++) {
+                        Board B = RPIUIDeviceGroup.this._Boards[_Boards[i]];
+                        if (B.HasPendingFrame && B.PendingIsChars) {
+                            System.arraycopy(B.PendingChars1, 0, _RenderChars1[i], 0, RPIUIDevice.LCD_NUM_COLUMNS);
+                            System.arraycopy(B.PendingChars2, 0, _RenderChars2[i], 0, RPIUIDevice.LCD_NUM_COLUMNS);
+                            _HasRenderChars[i] = true;
+                            _RenderLines1[i] = null;
+                            _RenderLines2[i] = null;
+                            B.PendingIsChars = false;
+                            B.HasPendingFrame = false;
+                        } else if (B.HasPendingFrame) {
+                            _HasRenderChars[i] = false;
+                            _RenderLines1[i] = B.PendingLine1;
+                            _RenderLines2[i] = B.PendingLine2;
+                            B.PendingLine1 = null;
+                            B.PendingLine2 = null;
+                            B.HasPendingFrame = false;
+                        }
+                    }
+                    _HasPendingFrames = false;
+                }
+
+                // Render the frames, without holding the worker monitor so that
+                // producers are never blocked by I2C writes
+                for (int i = 0; i < _Boards.length; i++) {
+                    if (_HasRenderChars[i]) {
+                        render(RPIUIDeviceGroup.this._Boards[_Boards[i]], null, null, _RenderChars1[i], _RenderChars2[i]);
+                        _HasRenderChars[i] = false;
+                    } else if (_RenderLines1[i] != null) {
+                        render(RPIUIDeviceGroup.this._Boards[_Boards[i]], _RenderLines1[i], _RenderLines2[i], null, null);
+                        _RenderLines1[i] = null;
+                        _RenderLines2[i] = null;
+                    }
+                }
+
+                // Poll the buttons when due
+                long nNow = System.currentTimeMillis();
+                if (nNow >= nNextPollTime) {
+                    nNextPollTime = nNow + _PollInterval;
+                    for (int nBoard : _Boards) {
+                        poll(nBoard);
+                        if (!isRunning()) {
+                            // Stopped by the listener: the devices may be
+                            // ending, don't touch them anymore
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+
+        // Render a frame on a board, given as strings or (if Line1 is null)
+        // as chars
+        private void render(Board B, String Line1, String Line2, char[] Chars1, char[] Chars2) {
+            long nStartTime = System.nanoTime();
+            boolean bRendered = false;
+            try {
+                if (Line1 != null) {
+                    B.Device.displayScreen(Line1, Line2);
+                } else {
+                    B.Device.displayScreen(Chars1, Chars2);
+                }
+                bRendered = true;
+            } catch (RuntimeException ex) {
+                // Keep the worker alive: next frame will be tried anyway
+                Logger.getLogger(RPIUIDeviceGroup.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            synchronized (this) {
+                B.BusyNanos += System.nanoTime() - nStartTime;
+                if (bRendered) {
+                    B.FramesRendered++;
+                } else {
+                    B.Errors++;
+                }
+            }
+        }
+
+        // Poll the buttons of a board, and report its pushes
+        private void poll(int nBoard) {
+            Board B = RPIUIDeviceGroup.this._Boards[nBoard];
+            long nStartTime = System.nanoTime();
+            int nPushedButtons = 0;
+            boolean bPolled = false;
+            try {
+                nPushedButtons = B.Device.getPushedButtons();
+                bPolled = true;
+            } catch (RuntimeException ex) {
+                // I2C fault (the transfer was already retried): skip this poll
+            }
+            synchronized (this) {
+                B.BusyNanos += System.nanoTime() - nStartTime;
+                if (bPolled) {
+                    B.Polls++;
+                } else {
+                    B.Errors++;
+                }
+            }
+
+            ButtonListener Listener = _Listener;
+            if (nPushedButtons != 0 && Listener != null) {
+                try {
+                    Listener.onButtonsPushed(nBoard, nPushedButtons);
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(RPIUIDeviceGroup.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * RPIUIDriverChecksMIDlet.java
+ * This file is part of RPIUIDemo
+ * Copyright 2014 Gabriel Cuvillier
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package fr.gabrielcuvillier.jmedemos;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.microedition.midlet.MIDlet;
+
+/**
+ * RPIUI driver checks MIDlet. <p>
+ *
+ * This MIDlet is separate from the RPIUIDemo MIDlet: it runs the checks of the
+ * RPIUIDevice driver once, from a background thread, prints their results on
+ * the standard output, and then exits. It must not be run while the RPIUIDemo
+ * MIDlet drives the board. <p>
+ *
+ * The checks are: <br>
+ * - DriverBenchmark: throughput and allocations of the driver hot paths, on a
+ *   simulated board (results are printed, not checked) <br>
+ * - DriverStressTest: the driver must stay consistent when used from several
+ *   threads at once, on a simulated board <br>
+ * - AllocationCheck: the driver hot paths must not allocate memory <br>
+ * - ADCBenchmark: latency and noise of the ADC configurations, on a simulated
+ *   board then on the RPIUI, whose ADC configuration is restored once done
+ *   (results are printed, not checked) <p>
+ *
+ * @author Gabriel Cuvillier
+ */
+public class RPIUIDriverChecksMIDlet extends MIDlet {
+
+    /** MIDlet attribute name to enable I2C combined messages ("true" or "false") */
+    private static final String COMBINED_MESSAGES_ATTRIBUTE = "UseCombinedI2CMessages";
+
+    // Allocation check configuration
+    private static final int DEFAULT_ALLOCATION_CHECK_OPERATIONS = 1000;
+    /** MIDlet attribute name to define the number of measured operations per round
+     * of the allocation check */
+    private static final String ALLOCATION_CHECK_OPERATIONS_ATTRIBUTE = "AllocationCheckOperations";
+
+    // Driver benchmark configuration
+    private static final int DEFAULT_DRIVER_BENCHMARK_OPERATIONS = 10000;
+    /** MIDlet attribute name to define the number of operations per benchmark of the
+     * driver benchmark, run on a simulated board (0 to disable it) */
+    private static final String DRIVER_BENCHMARK_OPERATIONS_ATTRIBUTE = "DriverBenchmarkOperations";
+
+    // Driver stress test configuration
+    private static final int DEFAULT_DRIVER_STRESS_TEST_OPERATIONS = 10000;
+    /** MIDlet attribute name to define the number of operations per thread of the
+     * multi-threaded driver stress test, run on a simulated board (0 to disable it) */
+    private static final String DRIVER_STRESS_TEST_OPERATIONS_ATTRIBUTE = "DriverStressTestOperations";
+
+    // ADC benchmark configuration
+    private static final int DEFAULT_ADC_BENCHMARK_READS = 100;
+    /** MIDlet attribute name to define the number of reads per configuration of the
+     * ADC benchmark, run on a simulated board and on the RPIUI (0 to disable it) */
+    private static final String ADC_BENCHMARK_READS_ATTRIBUTE = "ADCBenchmarkReads";
+
+    // Thread running the checks
+    private Thread _ChecksThread;
+
+    // Constructor
+    public RPIUIDriverChecksMIDlet() {
+        System.out.println("RPIUI Driver Checks Created");
+    }
+
+    // Start of application
+    // This method is Thread Safe
+    @Override
+    public void startApp() {
+        System.out.println("RPIUI Driver Checks Started");
+
+        synchronized (this) {
+            if (_ChecksThread == null) {
+                _ChecksThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runChecks();
+                        notifyDestroyed();
+                    }
+                });
+                _ChecksThread.start();
+            } else {
+                // Checks already started
+            }
+        }
+    }
+
+    // End of application
+    @Override
+    public void destroyApp(boolean unconditional) {
+        System.out.println("RPIUI Driver Checks Destroyed");
+    }
+
+    // Run every check, and log the failed ones
+    private void runChecks() {
+        boolean bUseCombinedMessages = "true".equals(getAppProperty(COMBINED_MESSAGES_ATTRIBUTE));
+
+        // Checks on simulated boards first: they do not drive the RPIUI
+        int nDriverBenchmarkOperations = getIntAppProperty(DRIVER_BENCHMARK_OPERATIONS_ATTRIBUTE,
+                                                           DEFAULT_DRIVER_BENCHMARK_OPERATIONS, 0, Integer.MAX_VALUE);
+        if (nDriverBenchmarkOperations > 0) {
+            new DriverBenchmark(nDriverBenchmarkOperations, bUseCombinedMessages).run(System.out);
+        }
+        int nDriverStressTestOperations = getIntAppProperty(DRIVER_STRESS_TEST_OPERATIONS_ATTRIBUTE,
+                                                            DEFAULT_DRIVER_STRESS_TEST_OPERATIONS, 0, Integer.MAX_VALUE);
+        if (nDriverStressTestOperations > 0) {
+            if (!new DriverStressTest(nDriverStressTestOperations).run(System.out)) {
+                Logger.getLogger(RPIUIDriverChecksMIDlet.class.getName()).log(Level.SEVERE,
+                        "RPIUI driver failed the multi-threaded stress test");
+            }
+        }
+        int nADCBenchmarkReads = getIntAppProperty(ADC_BENCHMARK_READS_ATTRIBUTE,
+                                                   DEFAULT_ADC_BENCHMARK_READS, 0, Integer.MAX_VALUE);
+        if (nADCBenchmarkReads > 0) {
+            ADCBenchmark.runSimulated(nADCBenchmarkReads,
+                    ADCBenchmark.createTemperatureConfigurations(), System.out);
+        }
+
+        RPIUIDevice Device = new RPIUIDevice(bUseCombinedMessages);
+        try {
+            int nAllocationCheckOperations = getIntAppProperty(ALLOCATION_CHECK_OPERATIONS_ATTRIBUTE,
+                                                               DEFAULT_ALLOCATION_CHECK_OPERATIONS, 1, Integer.MAX_VALUE);
+            if (!new AllocationCheck(nAllocationCheckOperations).run(Device, System.out)) {
+                Logger.getLogger(RPIUIDriverChecksMIDlet.class.getName()).log(Level.SEVERE,
+                        "RPIUI driver hot paths allocate memory");
+            }
+            if (nADCBenchmarkReads > 0) {
+                new ADCBenchmark(Device, nADCBenchmarkReads)
+                        .run(ADCBenchmark.createTemperatureConfigurations(), System.out);
+            }
+        } finally {
+            Device.end();
+        }
+    }
+
+    // Read an integer MIDlet attribute, or use its default value if it is
+    // missing, invalid or out of the [nMinValue, nMaxValue] range
+    private int getIntAppProperty(String Name, int nDefaultValue, int nMinValue, int nMaxValue) {
+        String Value = getAppProperty(Name);
+        if (Value == null) {
+            return nDefaultValue;
+        }
+        try {
+            int nValue = Integer.parseInt(Value.trim());
+            if (nValue >= nMinValue && nValue <= nMaxValue) {
+                return nValue;
+            } else {
+                Logger.getLogger(RPIUIDriverChecksMIDlet.class.getName()).log(Level.WARNING,
+                        "Out of range " + Name + " attribute: " + Value + " (" + nMinValue + " to "
+                        + nMaxValue + "), using default value " + nDefaultValue);
+            }
+        } catch (NumberFormatException nfe) {
+            Logger.getLogger(RPIUIDriverChecksMIDlet.class.getName()).log(Level.WARNING,
+                    "Invalid " + Name + " attribute: " + Value + ", using default value " + nDefaultValue);
+        }
+        return nDefaultValue;
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * ShutdownHandle.java
+ * This file is part of RPIUIDemo
+ * Copyright 2014 Gabriel Cuvillier
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package fr.gabrielcuvillier.jmedemos;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Completion handle of an asynchronous device shutdown. <p>
+ *
+ * The handle is returned by RPIUIDevice.endAsync(). It allows to wait for the
+ * shutdown to be completed (with a timeout), and to measure its duration. <p>
+ *
+ * This class is thread safe. <p>
+ *
+ * @author Gabriel Cuvillier
+ */
+public final class ShutdownHandle {
+
+    // Shutdown start and end times (in ms), end time is 0 until completed
+    private final long _StartTime;
+    private long _EndTime;
+
+    /** Construct a shutdown handle, for a shutdown starting now */
+    ShutdownHandle() {
+        _StartTime = System.currentTimeMillis();
+    }
+
+    /** Mark the shutdown as completed, and wake up the waiting threads */
+    synchronized void complete() {
+        if (_EndTime == 0) {
+            _EndTime = System.currentTimeMillis();
+            notifyAll();
+        }
+    }
+
+    /** Wait for the shutdown to be completed.
+     * @param nTimeout maximum time to wait (in ms)
+     * @return true if the shutdown is completed, false if the timeout elapsed */
+    public synchronized boolean await(long nTimeout) {
+        long nDeadline = System.currentTimeMillis() + nTimeout;
+        while (_EndTime == 0) {
+            long nRemainingTime = nDeadline - System.currentTimeMillis();
+            if (nRemainingTime <= 0) {
+                return false;
+            }
+            try {
+                wait(nRemainingTime);
+            } catch (InterruptedException ex) {
+                Logger.getLogger(ShutdownHandle.class.getName()).log(Level.SEVERE, null, ex);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Return true if the shutdown is completed */
+    public synchronized boolean isDone() {
+        return _EndTime != 0;
+    }
+
+    /** Get the duration of the shutdown (in ms): the total duration if it is
+     * completed, or the time elapsed since its start otherwise */
+    public synchronized long getDuration() {
+        return ((_EndTime != 0) ? _EndTime : System.currentTimeMillis()) - _StartTime;
+    }
+}
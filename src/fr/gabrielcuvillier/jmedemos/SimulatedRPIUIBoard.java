@@ -0,0 +1,644 @@
+/**
+ * SimulatedRPIUIBoard.java
+ * This file is part of RPIUIDemo
+ * Copyright 2014 Gabriel Cuvillier
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package fr.gabrielcuvillier.jmedemos;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * In-memory simulation of a BitWizard RPIUI board, used as the I2C transport
+ * of a RPIUIDevice. <p>
+ *
+ * The simulation models the registers used by RPIUIDevice: <br>
+ * - the LCD content, text cursor, contrast and custom characters (CGRAM) <br>
+ * - the button register: buttons are pressed and released with pressButton()
+ *   and releaseButton(), and a push is reported until the register is read <br>
+ * - the ADC channels: raw 10 bits values are set with setADCValue(), and
+ *   reported according to the ADC configuration registers (sum of "number of
+ *   samples" values, shifted right by "shift" bits). Each sample may be
+ *   altered by a random noise (see setADCNoise()) <br>
+ * - the identification register, and the reinit command: the board does not
+ *   answer (I/O error) during the reinit duration (see setReinitDuration()),
+ *   then the LCD ignores its commands during LCD_INIT_DURATION more <p>
+ *
+ * Each transaction takes a simulated time: a fixed latency (see setLatency()),
+ * plus the transfer time of its bytes at the current clock frequency (9 clock
+ * cycles per byte, address bytes included). The calling thread waits for that
+ * time, so that the driver throughput can be measured as on the real bus.
+ * Transfers fail with an I/O error when the clock frequency exceeds the
+ * maximum one supported by the simulated wiring (see setMaxClockFrequency()). <p>
+ *
+ * The ADC scans its channels continuously, a scan taking "number of channels"
+ * x "number of samples" conversions of setADCSampleTime() each, and restarts
+ * when its configuration changes. A read of the ADC values waits for the scan
+ * in progress to complete (the board stretches the clock meanwhile), so that
+ * it never returns the same conversion twice: the read latency then reflects
+ * the conversion time of the configuration. <p>
+ *
+ * This is based on documentation from:
+ * http://www.bitwizard.nl/wiki/index.php/User_Interface
+ *
+ * This class is thread safe: the board state may be read and changed while a
+ * RPIUIDevice uses it. <p>
+ *
+ * @author Gabriel Cuvillier
+ */
+public class SimulatedRPIUIBoard implements I2CTransport {
+
+    /** Default latency of a transaction (in us) */
+    public static final int DEFAULT_LATENCY = 50;
+    /** Clock frequency used when the platform default is requested (in Hz) */
+    public static final int DEFAULT_CLOCK_FREQUENCY = 100000;
+    /** Default duration of a reinit, during which the board does not answer
+     * (in ms) */
+    public static final int REINIT_DURATION = 100;
+    /** Duration of the LCD initialization once the board answers again after
+     * a reinit, during which LCD commands are ignored (in ms) */
+    public static final int LCD_INIT_DURATION = 15;
+    /** Default duration of a single ADC conversion (in us), as assumed by
+     * ADCConfiguration.getConversionTime() */
+    public static final int DEFAULT_ADC_SAMPLE_TIME = 104;
+
+    // Identification string of the board
+    private static final String IDENTIFICATION = "rpi_ui 1.0 (sim)";
+
+    // I2C clock cycles per byte (8 data bits and ack bit)
+    private static final int CYCLES_PER_BYTE = 9;
+
+    // Maximum raw value of an ADC sample (10 bits)
+    private static final int ADC_MAX_VALUE = 1023;
+
+    // Registers
+    private static final int REG_DISPLAY_TEXT       = 0x00;
+    private static final int REG_LCD_INSTRUCTION    = 0x01;  // Write
+    private static final int REG_IDENTIFICATION     = 0x01;  // Read
+    private static final int REG_CLEAR_DISPLAY      = 0x10;
+    private static final int REG_SET_TEXT_CURSOR    = 0x11;
+    private static final int REG_SET_CONTRAST       = 0x12;
+    private static final int REG_REINIT             = 0x14;
+    private static final int REG_PUSHED_BUTTONS     = 0x30;
+    private static final int REG_ADC_CHANNEL_0      = 0x68;
+    private static final int REG_ADC_SOURCE_0       = 0x70;
+    private static final int REG_ADC_NUM_CHANNELS   = 0x80;
+    private static final int REG_ADC_NUM_SAMPLES    = 0x81;
+    private static final int REG_ADC_SHIFT          = 0x82;
+
+    // HD44780 instructions
+    private static final int LCD_CLEAR              = 0x01;
+    private static final int LCD_SET_CGRAM_ADDRESS  = 0x40;
+    private static final int LCD_SET_DDRAM_ADDRESS  = 0x80;
+
+    // LCD geometry
+    private static final int LCD_NUM_LINES = RPIUIDevice.LCD_NUM_LINES;
+    private static final int LCD_NUM_COLUMNS = RPIUIDevice.LCD_NUM_COLUMNS;
+    private static final int CGRAM_SIZE = 64;
+
+    // LCD state: displayed characters (lines stored consecutively), cursor,
+    // custom characters, and whether written text goes to the CGRAM
+    private final byte[] _Display = new byte[LCD_NUM_LINES * LCD_NUM_COLUMNS];
+    private int _CursorLine;
+    private int _CursorColumn;
+    private final byte[] _CGRAM = new byte[CGRAM_SIZE];
+    private int _CGRAMAddress;
+    private boolean _IsCGRAMMode;
+    private int _Contrast;
+
+    // Buttons: held buttons, and buttons pushed since last read of the button
+    // register (board format: button n at bit NUM_BUTTONS - n)
+    private int _HeldButtons;
+    private int _PushedButtons;
+
+    // ADC: raw value of each channel, and configuration registers
+    private final int[] _ADCValues = new int[ADCConfiguration.MAX_CHANNELS];
+    private final int[] _ADCSources = new int[ADCConfiguration.MAX_CHANNELS];
+    private int _ADCNumChannels;
+    private int _ADCNumSamples;
+    private int _ADCShift;
+
+    // ADC scan: values reported by the last completed scan, start of the scan
+    // in progress (in ns), duration of a single conversion (in us), and noise
+    // amplitude of the samples with the state of its pseudo random generator
+    private final int[] _ADCReportedValues = new int[ADCConfiguration.MAX_CHANNELS];
+    private long _ADCScanStart;
+    private int _ADCSampleTime = DEFAULT_ADC_SAMPLE_TIME;
+    private int _ADCNoise;
+    private int _NoiseSeed = 1;
+    // Time the current transaction waits for an ADC scan to complete (in ns)
+    private long _ConversionWait;
+
+    // Register selected for the next read, end of the current reinit (in ms,
+    // 0 if ready), end of the LCD initialization (in ms), and duration of a
+    // reinit (in ms)
+    private int _Register;
+    private long _ReadyTime;
+    private long _LCDReadyTime;
+    private int _ReinitDuration = REINIT_DURATION;
+
+    // Timing: latency (in us), clock frequency and maximum clock frequency (in
+    // Hz)
+    private int _Latency = DEFAULT_LATENCY;
+    private int _ClockFrequency = DEFAULT_CLOCK_FREQUENCY;
+    private int _MaxClockFrequency = Integer.MAX_VALUE;
+
+    // Statistics
+    private long _TransactionCount;
+    private long _ByteCount;
+    private long _BusTime;
+
+    /** Construct a simulated board, in its power on state */
+    public SimulatedRPIUIBoard() {
+        reinit();
+        _ReadyTime = 0;
+        _LCDReadyTime = 0;
+    }
+
+    /** Set the latency of each transaction (in us) */
+    public synchronized void setLatency(int nLatency) {
+        _Latency = Math.max(0, nLatency);
+    }
+
+    /** Set the duration of a reinit, during which the board does not answer
+     * (in ms) */
+    public synchronized void setReinitDuration(int nReinitDuration) {
+        _ReinitDuration = Math.max(0, nReinitDuration);
+    }
+
+    /** Set the maximum clock frequency supported by the simulated wiring (in
+     * Hz): faster transfers fail with an I/O error */
+    public synchronized void setMaxClockFrequency(int nMaxClockFrequency) {
+        _MaxClockFrequency = nMaxClockFrequency;
+    }
+
+    /** Get the current clock frequency (in Hz) */
+    public synchronized int getClockFrequency() {
+        return _ClockFrequency;
+    }
+
+    /** Press a button (1 to NUM_BUTTONS): it is reported as pushed until it is
+     * released and the button register is read */
+    public synchronized void pressButton(int nButton) {
+        int nBit = 1 << (RPIUIDevice.NUM_BUTTONS - nButton);
+        _HeldButtons |= nBit;
+        _PushedButtons |= nBit;
+    }
+
+    /** Release a button (1 to NUM_BUTTONS) */
+    public synchronized void releaseButton(int nButton) {
+        _HeldButtons &= ~(1 << (RPIUIDevice.NUM_BUTTONS - nButton));
+    }
+
+    /** Set the raw value of an ADC channel (0 to 1023) */
+    public synchronized void setADCValue(int nChannel, int nRawValue) {
+        _ADCValues[nChannel] = nRawValue;
+    }
+
+    /** Set the duration of a single ADC conversion (in us). With 0, ADC reads
+     * never wait for a scan. */
+    public synchronized void setADCSampleTime(int nSampleTime) {
+        _ADCSampleTime = Math.max(0, nSampleTime);
+        _ADCScanStart = System.nanoTime();
+    }
+
+    /** Set the number of scanned ADC channels, as another application sharing
+     * the board would: the driver only knows it once it reads the ADC
+     * configuration back */
+    public synchronized void setADCNumChannels(int nNumChannels) {
+        _ADCNumChannels = nNumChannels;
+        _ADCScanStart = System.nanoTime();
+    }
+
+    /** Set the noise of the ADC: each sample is altered by a pseudo random
+     * value from -nNoise to nNoise (0 for no noise) */
+    public synchronized void setADCNoise(int nNoise) {
+        _ADCNoise = Math.max(0, nNoise);
+    }
+
+    /** Get a line of the LCD (1 or 2) */
+    public synchronized String getLine(int nLine) {
+        return new String(_Display, (nLine - 1) * LCD_NUM_COLUMNS, LCD_NUM_COLUMNS);
+    }
+
+    /** Get the character displayed at a position of the LCD (codes 0 to 7 are
+     * custom characters) */
+    public synchronized int getChar(int nLine, int nColumn) {
+        return _Display[(nLine - 1) * LCD_NUM_COLUMNS + nColumn] & 0xFF;
+    }
+
+    /** Get a row of a custom character (slot 0 to 7, row 0 to 7) */
+    public synchronized int getGlyphRow(int nSlot, int nRow) {
+        return _CGRAM[nSlot * Glyph.NUM_ROWS + nRow] & 0xFF;
+    }
+
+    /** Get the LCD contrast */
+    public synchronized int getContrast() {
+        return _Contrast;
+    }
+
+    /** Get the number of transactions (a combined message counts as one) */
+    public synchronized long getTransactionCount() {
+        return _TransactionCount;
+    }
+
+    /** Get the number of bytes transferred, address bytes included */
+    public synchronized long getByteCount() {
+        return _ByteCount;
+    }
+
+    /** Get the total simulated bus time (in ns) */
+    public synchronized long getBusTime() {
+        return _BusTime;
+    }
+
+    /** Reset the transaction, byte and bus time counters */
+    public synchronized void resetCounters() {
+        _TransactionCount = 0;
+        _ByteCount = 0;
+        _BusTime = 0;
+    }
+
+    @Override
+    public int write(ByteBuffer Message) throws IOException {
+        int nLength;
+        long nDuration;
+        synchronized (this) {
+            checkReady();
+            nLength = writeMessage(Message);
+            nDuration = endTransaction(nLength + 1);
+        }
+        delay(nDuration);
+        return nLength;
+    }
+
+    @Override
+    public int read(ByteBuffer Result) throws IOException {
+        int nLength;
+        long nDuration;
+        synchronized (this) {
+            checkReady();
+            nLength = readMessage(Result);
+            nDuration = endTransaction(nLength + 1);
+        }
+        delay(nDuration);
+        return nLength;
+    }
+
+    @Override
+    public CombinedMessage createCombinedMessage() {
+        return new SimulatedCombinedMessage();
+    }
+
+    @Override
+    public void reopen() {
+        // Nothing to reopen
+    }
+
+    @Override
+    public synchronized void setClockFrequency(int nClockFrequency) {
+        _ClockFrequency = (nClockFrequency > 0) ? nClockFrequency : DEFAULT_CLOCK_FREQUENCY;
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+
+    /** Internal method checking that the board answers: it does not during a
+     * reinit, or if the clock is too fast */
+    private void checkReady() throws IOException {
+        if (_ReadyTime != 0) {
+            if (System.currentTimeMillis() < _ReadyTime) {
+                throw new IOException("Simulated RPIUI not answering during reinit");
+            }
+            _ReadyTime = 0;
+        }
+        if (_ClockFrequency > _MaxClockFrequency) {
+            throw new IOException("Simulated I2C clock too fast: " + _ClockFrequency + " Hz");
+        }
+    }
+
+    /** Internal method counting a transaction of nNumBytes bytes (address bytes
+     * included), and returning its simulated duration (in ns) */
+    private long endTransaction(int nNumBytes) {
+        long nDuration = _Latency * 1000L
+                + nNumBytes * CYCLES_PER_BYTE * 1000000000L / _ClockFrequency
+                + _ConversionWait;
+        _ConversionWait = 0;
+        _TransactionCount++;
+        _ByteCount += nNumBytes;
+        _BusTime += nDuration;
+        return nDuration;
+    }
+
+    /** Internal method waiting for the simulated duration of a transaction (in
+     * ns). Short durations are busy waited, for accuracy. */
+    private static void delay(long nDuration) {
+        long nEndTime = System.nanoTime() + nDuration;
+        if (nDuration > 2000000) {
+            try {
+                Thread.sleep(nDuration / 1000000 - 1);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+        while (System.nanoTime() < nEndTime) {
+            // Busy wait
+        }
+    }
+
+    /** Internal method applying a write message to the registers: the first
+     * byte selects the register, the next ones are written to it */
+    private int writeMessage(ByteBuffer Message) {
+        int nLength = Message.remaining();
+        if (nLength == 0) {
+            return 0;
+        }
+        _Register = Message.get() & 0xFF;
+        if (isLCDRegister(_Register) && System.currentTimeMillis() < _LCDReadyTime) {
+            // LCD still initializing: the command is lost
+            Message.position(Message.limit());
+            return nLength;
+        }
+        switch (_Register) {
+            case REG_DISPLAY_TEXT:
+                while (Message.hasRemaining()) {
+                    writeChar(Message.get());
+                }
+                break;
+            case REG_LCD_INSTRUCTION:
+                while (Message.hasRemaining()) {
+                    writeInstruction(Message.get() & 0xFF);
+                }
+                break;
+            case REG_CLEAR_DISPLAY:
+                Message.position(Message.limit());
+                clearDisplay();
+                break;
+            case REG_SET_TEXT_CURSOR:
+                if (Message.hasRemaining()) {
+                    int nPosition = Message.get() & 0xFF;
+                    _CursorLine = nPosition >> 5;
+                    _CursorColumn = nPosition & 0x1F;
+                    _IsCGRAMMode = false;
+                }
+                break;
+            case REG_SET_CONTRAST:
+                if (Message.hasRemaining()) {
+                    _Contrast = Message.get() & 0xFF;
+                }
+                break;
+            case REG_REINIT:
+                Message.position(Message.limit());
+                reinit();
+                break;
+            case REG_ADC_NUM_CHANNELS:
+                if (Message.hasRemaining()) {
+                    _ADCNumChannels = Message.get() & 0xFF;
+                    _ADCScanStart = System.nanoTime();
+                }
+                break;
+            case REG_ADC_NUM_SAMPLES:
+                // "short" value (16 bits, little endian)
+                if (Message.remaining() >= 2) {
+                    _ADCNumSamples = (Message.get() & 0xFF) | (Message.get() & 0xFF) << 8;
+                    _ADCScanStart = System.nanoTime();
+                }
+                break;
+            case REG_ADC_SHIFT:
+                if (Message.hasRemaining()) {
+                    _ADCShift = Message.get() & 0xFF;
+                }
+                break;
+            default:
+                // ADC source registers are consecutive, other registers are
+                // ignored
+                for (int nRegister = _Register; Message.hasRemaining(); nRegister++) {
+                    byte Value = Message.get();
+                    if (nRegister >= REG_ADC_SOURCE_0
+                            && nRegister < REG_ADC_SOURCE_0 + ADCConfiguration.MAX_CHANNELS) {
+                        _ADCSources[nRegister - REG_ADC_SOURCE_0] = Value & 0xFF;
+                        _ADCScanStart = System.nanoTime();
+                    }
+                }
+                break;
+        }
+        return nLength;
+    }
+
+    /** Internal method reading the selected register into a message */
+    private int readMessage(ByteBuffer Result) {
+        int nLength = Result.remaining();
+        if (_Register >= REG_ADC_CHANNEL_0 && _Register < REG_ADC_SOURCE_0) {
+            waitForADCScan();
+        }
+        for (int nIndex = 0; nIndex < nLength; nIndex++) {
+            Result.put((byte) readRegister(nIndex));
+        }
+        if (_Register == REG_PUSHED_BUTTONS) {
+            // Pushes are reported once
+            _PushedButtons = 0;
+        }
+        return nLength;
+    }
+
+    /** Internal method reading the nIndex-th byte from the selected register */
+    private int readRegister(int nIndex) {
+        if (_Register == REG_IDENTIFICATION) {
+            return (nIndex < IDENTIFICATION.length()) ? IDENTIFICATION.charAt(nIndex) : 0;
+        } else if (_Register == REG_PUSHED_BUTTONS) {
+            return _HeldButtons | _PushedButtons;
+        } else if (_Register == REG_ADC_NUM_CHANNELS) {
+            return _ADCNumChannels;
+        } else if (_Register == REG_ADC_NUM_SAMPLES) {
+            return (nIndex == 0) ? _ADCNumSamples & 0xFF : (_ADCNumSamples >> 8) & 0xFF;
+        } else if (_Register == REG_ADC_SHIFT) {
+            return _ADCShift;
+        } else if (_Register >= REG_ADC_CHANNEL_0 && _Register < REG_ADC_SOURCE_0) {
+            // 16 bits values (little endian) of consecutive channels
+            int nChannel = _Register - REG_ADC_CHANNEL_0 + nIndex / 2;
+            int nValue = (nChannel < ADCConfiguration.MAX_CHANNELS) ? _ADCReportedValues[nChannel] : 0;
+            return (nIndex % 2 == 0) ? nValue & 0xFF : (nValue >> 8) & 0xFF;
+        } else if (_Register >= REG_ADC_SOURCE_0 && _Register < REG_ADC_NUM_CHANNELS) {
+            int nChannel = _Register - REG_ADC_SOURCE_0 + nIndex;
+            return (nChannel < ADCConfiguration.MAX_CHANNELS) ? _ADCSources[nChannel] : 0;
+        } else {
+            return 0;
+        }
+    }
+
+    /** Internal method waiting for the ADC scan in progress to complete: its
+     * remaining time is added to the current transaction, and the values it
+     * reports are computed. The next scan starts right after. */
+    private void waitForADCScan() {
+        long nScanDuration = (long) Math.min(_ADCNumChannels, ADCConfiguration.MAX_CHANNELS)
+                                * _ADCNumSamples * _ADCSampleTime * 1000L;
+        if (nScanDuration > 0) {
+            long nNow = System.nanoTime();
+            long nScanEnd = _ADCScanStart 
+                    + ((nNow - _ADCScanStart) / nScanDuration + 1) * nScanDuration;
+            _ConversionWait += nScanEnd - nNow;
+            _ADCScanStart = nScanEnd;
+        }
+        for (int nChannel = 0; nChannel < ADCConfiguration.MAX_CHANNELS; nChannel++) {
+            _ADCReportedValues[nChannel] = getReportedADCValue(nChannel);
+        }
+    }
+
+    /** Internal method computing the value reported for an ADC channel: the
+     * sum of the samples, shifted. Channels not scanned report 0. */
+    private int getReportedADCValue(int nChannel) {
+        if (nChannel >= Math.min(_ADCNumChannels, ADCConfiguration.MAX_CHANNELS)) {
+            return 0;
+        }
+        long nSum;
+        if (_ADCNoise == 0) {
+            nSum = (long) _ADCValues[nChannel] * _ADCNumSamples;
+        } else {
+            nSum = 0;
+            for (int nSample = 0; nSample < _ADCNumSamples; nSample++) {
+                int nValue = _ADCValues[nChannel] + nextNoise();
+                nSum += (nValue < 0) ? 0 : ((nValue > ADC_MAX_VALUE) ? ADC_MAX_VALUE : nValue);
+            }
+        }
+        return (int) ((nSum >> Math.min(_ADCShift, 31)) & 0xFFFF);
+    }
+
+    /** Internal method returning the noise of the next ADC sample, from a
+     * linear congruential generator */
+    private int nextNoise() {
+        _NoiseSeed = _NoiseSeed * 1103515245 + 12345;
+        return ((_NoiseSeed >>> 16) % (2 * _ADCNoise + 1)) - _ADCNoise;
+    }
+
+    /** Internal method writing a character at the cursor, or a custom
+     * character row in CGRAM mode */
+    private void writeChar(byte Char) {
+        if (_IsCGRAMMode) {
+            _CGRAM[_CGRAMAddress] = Char;
+            _CGRAMAddress = (_CGRAMAddress + 1) % CGRAM_SIZE;
+        } else {
+            if (_CursorLine < LCD_NUM_LINES && _CursorColumn < LCD_NUM_COLUMNS) {
+                _Display[_CursorLine * LCD_NUM_COLUMNS + _CursorColumn] = Char;
+            }
+            _CursorColumn++;
+        }
+    }
+
+    /** Internal method executing a raw HD44780 instruction */
+    private void writeInstruction(int nInstruction) {
+        if ((nInstruction & LCD_SET_DDRAM_ADDRESS) != 0) {
+            // Second line starts at DDRAM address 0x40
+            int nAddress = nInstruction & 0x7F;
+            _CursorLine = nAddress / 0x40;
+            _CursorColumn = nAddress % 0x40;
+            _IsCGRAMMode = false;
+        } else if ((nInstruction & LCD_SET_CGRAM_ADDRESS) != 0) {
+            _CGRAMAddress = nInstruction & (CGRAM_SIZE - 1);
+            _IsCGRAMMode = true;
+        } else if (nInstruction == LCD_CLEAR) {
+            clearDisplay();
+        }
+    }
+
+    /** Internal method clearing the LCD */
+    private void clearDisplay() {
+        for (int i = 0; i < _Display.length; i++) {
+            _Display[i] = ' ';
+        }
+        _CursorLine = 0;
+        _CursorColumn = 0;
+        _IsCGRAMMode = false;
+    }
+
+    /** Internal method checking if a register drives the LCD controller */
+    private static boolean isLCDRegister(int nRegister) {
+        return nRegister == REG_DISPLAY_TEXT || nRegister == REG_LCD_INSTRUCTION
+               || nRegister == REG_CLEAR_DISPLAY || nRegister == REG_SET_TEXT_CURSOR;
+    }
+
+    /** Internal method reinitializing the board: LCD cleared, ADC scanning
+     * stopped, no answer until the reinit duration elapsed, and LCD commands
+     * ignored during LCD_INIT_DURATION more */
+    private void reinit() {
+        clearDisplay();
+        _Contrast = 0;
+        for (int nChannel = 0; nChannel < ADCConfiguration.MAX_CHANNELS; nChannel++) {
+            _ADCSources[nChannel] = 0;
+        }
+        _ADCNumChannels = 0;
+        _ADCNumSamples = 1;
+        _ADCShift = 0;
+        _ADCScanStart = System.nanoTime();
+        _ReadyTime = System.currentTimeMillis() + _ReinitDuration;
+        _LCDReadyTime = _ReadyTime + LCD_INIT_DURATION;
+    }
+
+    /**
+     * Combined message of the simulated board: the messages are transferred in
+     * order, as a single transaction with a single latency. <p>
+     */
+    private class SimulatedCombinedMessage implements CombinedMessage {
+
+        // Messages, and whether each one is a read
+        private ByteBuffer[] _Messages = new ByteBuffer[4];
+        private boolean[]    _IsRead = new boolean[4];
+        private int          _NumMessages;
+
+        @Override
+        public CombinedMessage appendWrite(ByteBuffer Message) {
+            return append(Message, false);
+        }
+
+        @Override
+        public CombinedMessage appendRead(ByteBuffer Result) {
+            return append(Result, true);
+        }
+
+        @Override
+        public void transfer() throws IOException {
+            long nDuration;
+            synchronized (SimulatedRPIUIBoard.this) {
+                checkReady();
+                int nNumBytes = 0;
+                for (int i = 0; i < _NumMessages; i++) {
+                    // Each message has its own address byte (repeated start)
+                    nNumBytes += 1 + (_IsRead[i] ? readMessage(_Messages[i])
+                                                 : writeMessage(_Messages[i]));
+                }
+                nDuration = endTransaction(nNumBytes);
+            }
+            delay(nDuration);
+        }
+
+        /** Internal method appending a message, growing the arrays if needed */
+        private CombinedMessage append(ByteBuffer Message, boolean bIsRead) {
+            if (_NumMessages == _Messages.length) {
+                ByteBuffer[] Messages = new ByteBuffer[_NumMessages * 2];
+                boolean[] IsRead = new boolean[_NumMessages * 2];
+                System.arraycopy(_Messages, 0, Messages, 0, _NumMessages);
+                System.arraycopy(_IsRead, 0, IsRead, 0, _NumMessages);
+                _Messages = Messages;
+                _IsRead = IsRead;
+            }
+            _Messages[_NumMessages] = Message;
+            _IsRead[_NumMessages] = bIsRead;
+            _NumMessages++;
+            return this;
+        }
+    }
+}
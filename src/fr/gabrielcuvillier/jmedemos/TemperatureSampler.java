@@ -0,0 +1,265 @@
+/**
+ * TemperatureSampler.java
+ * This file is part of RPIUIDemo
+ * Copyright 2014 Gabriel Cuvillier
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package fr.gabrielcuvillier.jmedemos;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Background temperature sampler for the RPIUIDevice. <p>
+ * 
+ * A dedicated thread reads all temperature sensors of the device at a regular 
+ * cadence, and publishes the latest reading with its timestamp. Consumers get the 
+ * latest reading instantly with getTemperatures(), without touching the I2C bus, 
+ * and give the maximum age they accept for it. <p>
+ * 
+ * When no consumer asked for temperatures during the idle timeout, the sampler 
+ * backs off to the idle sampling interval. It goes back to the regular cadence 
+ * (with an immediate sample) as soon as a consumer asks again, or as soon as a 
+ * consumer finds the latest reading older than the age it accepts. Such a 
+ * consumer gets no reading: it may use an older one, and ask again later. <p>
+ * 
+ * The sampler thread acquires the bus from an I2CBusScheduler, with ADC priority. 
+ * Each sample is an immutable reading, published through a volatile reference: 
+ * consumers never lock, and always copy a consistent reading. This allocates one 
+ * small reading per sample, at the sampling cadence. This class is thread safe. <p>
+ * 
+ * Readings are kept as raw ADC values, and converted only when asked: either as 
+ * temperatures (getTemperatures()), or as raw values to be converted with the 
+ * RPIUIDevice precomputed tables (getRawValues()). <p>
+ * 
+ * @author Gabriel Cuvillier
+ */
+public class TemperatureSampler implements Runnable {
+    
+    // Temperature reading (raw ADC values), immutable once published
+    private static final class Reading {
+        private final int[] _RawValues;
+        private final long  _Time;
+        
+        Reading(int[] RawValues, int nNumChannels, long nTime) {
+            _RawValues = new int[nNumChannels];
+            System.arraycopy(RawValues, 0, _RawValues, 0, nNumChannels);
+            _Time = nTime;
+        }
+    }
+    
+    // The device to sample, and the scheduler of its bus
+    private final RPIUIDevice     _Device;
+    private final I2CBusScheduler _BusScheduler;
+    
+    // Configuration (in ms)
+    private final int _SamplingInterval;
+    private final int _IdleSamplingInterval;
+    private final int _IdleTimeout;
+    
+    // Sampler thread, and its running flag
+    private Thread  _SamplerThread;
+    private boolean _IsRunning;
+    
+    // The latest reading (null until the first sample), the values read by 
+    // the sampler thread, and last time a consumer asked for the latest reading
+    private volatile Reading _LatestReading;
+    private final int[]      _SampledValues = new int[RPIUIDevice.NUM_TEMPERATURE_SENSORS];
+    private volatile long    _LastDemandTime;
+    
+    // Statistics
+    private volatile long _SampleCount;
+    
+    /** Construct a temperature sampler. The sampler thread is not started. 
+     * @param Device the device to sample
+     * @param BusScheduler the scheduler of the device bus
+     * @param nSamplingInterval sampling interval (in ms) when temperatures are 
+     * consumed
+     * @param nIdleSamplingInterval sampling interval (in ms) when temperatures 
+     * are not consumed
+     * @param nIdleTimeout delay (in ms) without consumer after which the sampler 
+     * backs off to the idle sampling interval */
+    public TemperatureSampler(RPIUIDevice Device, I2CBusScheduler BusScheduler, 
+                              int nSamplingInterval, int nIdleSamplingInterval, 
+                              int nIdleTimeout) {
+        _Device = Device;
+        _BusScheduler = BusScheduler;
+        _SamplingInterval = nSamplingInterval;
+        _IdleSamplingInterval = Math.max(nSamplingInterval, nIdleSamplingInterval);
+        _IdleTimeout = nIdleTimeout;
+        _LastDemandTime = System.currentTimeMillis();
+    }
+    
+    /** Start the sampler thread. */
+    public synchronized void start() {
+        if (!_IsRunning) {
+            _IsRunning = true;
+            _SamplerThread = new Thread(this);
+            _SamplerThread.start();
+        } else {
+            // Already started
+        }
+    }
+    
+    /** Stop the sampler thread, waiting for the sample being currently read 
+     * (if any) to be completed. */
+    public void stop() {
+        Thread SamplerThread;
+        synchronized (this) {
+            _IsRunning = false;
+            SamplerThread = _SamplerThread;
+            _SamplerThread = null;
+            notifyAll();
+        }
+        
+        if (SamplerThread != null && SamplerThread != Thread.currentThread()) {
+            try {
+                SamplerThread.join();
+            } catch (InterruptedException ex) {
+                Logger.getLogger(TemperatureSampler.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+    
+    /** Get the latest temperatures, if not older than nMaxAge. This method 
+     * never touches the bus: if the latest reading is older, the sampler is 
+     * woken up to read a new one.
+     * @param Temperatures array receiving the temperature of each sensor, 
+     * indexed by ADC channel number
+     * @param nMaxAge maximum age (in ms) of the reading
+     * @return the number of temperatures copied in the array, or 0 if there is 
+     * no reading recent enough */
+    public int getTemperatures(double[] Temperatures, long nMaxAge) {
+        return copyLatestReading(null, Temperatures, nMaxAge);
+    }
+    
+    /** Get the raw ADC values of the latest reading, if not older than nMaxAge. 
+     * This method never touches the bus: if the latest reading is older, the 
+     * sampler is woken up to read a new one. The values may be converted with 
+     * RPIUIDevice.toTenthsOfDegree() or RPIUIDevice.formatTemperature().
+     * @param RawValues array receiving the raw value of each sensor, indexed by 
+     * ADC channel number
+     * @param nMaxAge maximum age (in ms) of the reading
+     * @return the number of values copied in the array, or 0 if there is no 
+     * reading recent enough */
+    public int getRawValues(int[] RawValues, long nMaxAge) {
+        return copyLatestReading(RawValues, null, nMaxAge);
+    }
+    
+    /** Internal method recording a consumer demand, and copying the latest 
+     * reading if not older than nMaxAge, as raw values or as temperatures 
+     * (either array may be null). The sampler is woken up if it was idle, or 
+     * if the latest reading is too old. 
+     * @return the number of values copied, or 0 if there is no reading recent 
+     * enough */
+    private int copyLatestReading(int[] RawValues, double[] Temperatures, long nMaxAge) {
+        long nNow = System.currentTimeMillis();
+        
+        // Record the demand
+        boolean bWasIdle = nNow - _LastDemandTime >= _IdleTimeout;
+        _LastDemandTime = nNow;
+        
+        Reading LatestReading = _LatestReading;
+        if (LatestReading == null || nNow - LatestReading._Time > nMaxAge) {
+            // Too old: wake up the sampler for a new reading
+            wakeUp();
+            return 0;
+        } else if (bWasIdle) {
+            // Back to the regular cadence
+            wakeUp();
+        } else {
+            // Sampler already at the regular cadence
+        }
+        
+        int nCount = LatestReading._RawValues.length;
+        if (RawValues != null) {
+            nCount = Math.min(nCount, RawValues.length);
+            System.arraycopy(LatestReading._RawValues, 0, RawValues, 0, nCount);
+        }
+        if (Temperatures != null) {
+            nCount = Math.min(nCount, Temperatures.length);
+            for (int nChannel = 0; nChannel < nCount; nChannel++) {
+                Temperatures[nChannel] = RPIUIDevice.toTenthsOfDegree(LatestReading._RawValues[nChannel]) / 10.0;
+            }
+        }
+        return nCount;
+    }
+    
+    /** Internal method waking up the sampler thread, for an immediate sample */
+    private synchronized void wakeUp() {
+        notifyAll();
+    }
+    
+    /** Get the time of the latest reading (in ms), or 0 if there is none */
+    public long getLatestSampleTime() {
+        Reading LatestReading = _LatestReading;
+        return (LatestReading == null) ? 0 : LatestReading._Time;
+    }
+    
+    /** Get the number of samples read since construction */
+    public long getSampleCount() {
+        return _SampleCount;
+    }
+    
+    // Sampler thread implementation
+    @Override
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                if (!_IsRunning) {
+                    return;
+                }
+            }
+            
+            sample();
+            
+            // Wait for next sample. A consumer coming back after the idle 
+            // timeout, or finding the latest reading too old, wakes the 
+            // sampler up immediately.
+            synchronized (this) {
+                if (_IsRunning) {
+                    boolean bIsIdle = System.currentTimeMillis() - _LastDemandTime >= _IdleTimeout;
+                    try {
+                        wait(bIsIdle ? _IdleSamplingInterval : _SamplingInterval);
+                    } catch (InterruptedException ex) {
+                        Logger.getLogger(TemperatureSampler.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+            }
+        }
+    }
+    
+    /** Internal method reading all temperatures, and publishing them */
+    private void sample() {
+        try {
+            if (_BusScheduler.acquire(I2CBusScheduler.PRIORITY_ADC)) {
+                int nNumChannels;
+                try {
+                    nNumChannels = _Device.readADCChannels(_SampledValues);
+                } finally {
+                    _BusScheduler.release();
+                }
+                
+                _LatestReading = new Reading(_SampledValues, nNumChannels, System.currentTimeMillis());
+                _SampleCount++;
+            } else {
+                // ADC queue is full: skip this sample
+            }
+        } catch (RuntimeException ex) {
+            // Keep the sampler alive: next sample will be tried anyway
+            Logger.getLogger(TemperatureSampler.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}